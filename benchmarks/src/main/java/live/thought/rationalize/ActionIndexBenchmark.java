@@ -0,0 +1,73 @@
+package live.thought.rationalize;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Taking the biggest pending action below an amount, as Rationalize does when
+ * it packs small actions behind a large one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ActionIndexBenchmark
+{
+  @Param({ "10000", "100000", "1000000" })
+  public int          actionCount;
+
+  /** Number of distinct amounts in the plan, as from that many funding lines. */
+  @Param({ "10", "1000" })
+  public int          amountCount;
+
+  private ActionIndex actions;
+  private long[]      limits;
+  private int         next;
+
+  @Setup
+  public void setUp()
+  {
+    Random random  = new Random(actionCount);
+    long[] amounts = new long[amountCount];
+    for (int i = 0; i < amountCount; i++)
+    {
+      amounts[i] = Amounts.COIN / 10 + (long) (random.nextDouble() * 20000 * Amounts.COIN);
+    }
+    actions = new ActionIndex();
+    for (int i = 0; i < actionCount; i++)
+    {
+      actions.add(new FundingAction("action-" + i, amounts[i % amountCount]));
+    }
+    limits = new long[1024];
+    for (int i = 0; i < limits.length; i++)
+    {
+      limits[i] = (long) (random.nextDouble() * 20000 * Amounts.COIN);
+    }
+  }
+
+  /** Take the largest action below a random limit and put it back. */
+  @Benchmark
+  public FundingAction takeLargestBelow()
+  {
+    FundingAction act = actions.takeLargestBelow(limits[next++ & (limits.length - 1)]);
+    if (null != act)
+    {
+      actions.add(act);
+    }
+    return act;
+  }
+}
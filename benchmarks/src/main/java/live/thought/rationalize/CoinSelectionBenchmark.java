@@ -0,0 +1,71 @@
+package live.thought.rationalize;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Choosing the inputs for one chunk of an action with each funding strategy.
+ * The chosen outputs are put back into the cache after each selection, and
+ * that is included in the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoinSelectionBenchmark
+{
+  @Param({ "1000", "10000", "100000" })
+  public int           utxoCount;
+
+  @Param({ Config.OLDEST_FIRST, Config.BRANCH_AND_BOUND, Config.KNAPSACK })
+  public String        strategy;
+
+  /** Amount to select, in THT. */
+  @Param({ "0.5", "40", "10000" })
+  public String        target;
+
+  /** Time each search may take, in milliseconds, as the selectionTime option. */
+  @Param({ "50" })
+  public long          selectionTime;
+
+  private UnspentIndex cache;
+  private CoinSelector selector;
+  private long         amount;
+
+  @Setup
+  public void setUp()
+  {
+    cache = UnspentIndexBenchmark.randomCache(utxoCount, new Random(utxoCount));
+    selector = CoinSelector.forStrategy(strategy, selectionTime);
+    amount = Amounts.parse(target) + Rationalize.FEE_ALLOWANCE;
+  }
+
+  @Benchmark
+  public List<Utxo> select()
+  {
+    List<Utxo> inputs = selector.select(cache, amount);
+    if (null != inputs)
+    {
+      for (Utxo u : inputs)
+      {
+        cache.add(u);
+      }
+    }
+    return inputs;
+  }
+}
@@ -0,0 +1,76 @@
+package live.thought.rationalize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a funding file of the given number of lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FundingFileBenchmark
+{
+  @Param({ "10", "1000", "100000" })
+  public int  lineCount;
+
+  private File file;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    Random random = new Random(lineCount);
+    file = File.createTempFile("funding", ".csv");
+    try (PrintWriter pw = new PrintWriter(file, "UTF-8"))
+    {
+      pw.println("# Generated funding file");
+      for (int i = 0; i < lineCount; i++)
+      {
+        pw.println(String.format("%d.%08d, %d", random.nextInt(100000), random.nextInt(100000000),
+            1 + random.nextInt(100)));
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    file.delete();
+  }
+
+  @Benchmark
+  public List<FundingLine> parse() throws IOException
+  {
+    List<FundingLine> lines = new ArrayList<FundingLine>();
+    try (FundingFileReader reader = new FundingFileReader(file))
+    {
+      FundingLine line;
+      while (null != (line = reader.next()))
+      {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+}
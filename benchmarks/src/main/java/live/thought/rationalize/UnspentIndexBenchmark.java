@@ -0,0 +1,70 @@
+package live.thought.rationalize;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding and taking the biggest unspent output, as Rationalize does for
+ * each large action.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnspentIndexBenchmark
+{
+  @Param({ "1000", "10000", "100000", "1000000" })
+  public int           utxoCount;
+
+  private UnspentIndex cache;
+
+  @Setup
+  public void setUp()
+  {
+    cache = randomCache(utxoCount, new Random(utxoCount));
+  }
+
+  @Benchmark
+  public Utxo largest()
+  {
+    return cache.largest();
+  }
+
+  /** Take the largest output and put it back, so the cache stays the same size. */
+  @Benchmark
+  public Utxo takeLargest()
+  {
+    Utxo u = cache.takeLargest();
+    cache.add(u);
+    return u;
+  }
+
+  /**
+   * @return a cache of outputs with amounts spread evenly between 0.001 and
+   *         5000 THT.
+   */
+  static UnspentIndex randomCache(int count, Random random)
+  {
+    UnspentIndex cache = new UnspentIndex(false);
+    for (int i = 0; i < count; i++)
+    {
+      long amount = Amounts.COIN / 1000 + (long) (random.nextDouble() * 5000 * Amounts.COIN);
+      cache.add(new Utxo(String.format("%064x", i), 0, amount, 1 + random.nextInt(100000), "source"));
+    }
+    return cache;
+  }
+}
@@ -0,0 +1,144 @@
+package live.thought.rationalize;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The funding actions still waiting to be sent. A funding line's actions
+ * are only created, and named, as they are taken, so a line of two million
+ * accounts is a single entry until it is worked through. Entries are kept in
+ * a multiset ordered by amount, so finding and taking the largest action
+ * below a limit is O(log n), and in the order they were added for taking
+ * them in turn.
+ */
+public class ActionIndex
+{
+  private final TreeMap<Long, Set<Pending>> byAmount = new TreeMap<Long, Set<Pending>>();
+  private final Set<Pending>                pending  = new LinkedHashSet<Pending>();
+  private long                              size;
+
+  /** Add a single action, such as one carried over from an interrupted run. */
+  public void add(FundingAction act)
+  {
+    add(new Pending(act));
+  }
+
+  /**
+   * Add the actions of a funding line, named
+   * &lt;prefix&gt;-&lt;line&gt;-&lt;account index&gt;.
+   */
+  public void addLine(String prefix, int line, FundingLine fundingLine)
+  {
+    addLine(prefix, line, fundingLine, 1);
+  }
+
+  /**
+   * Add some of the actions of a funding line, such as one node's share of
+   * them: as many as fundingLine gives, with indexes starting at first.
+   */
+  public void addLine(String prefix, int line, FundingLine fundingLine, int first)
+  {
+    if (fundingLine.getAccounts() > 0)
+    {
+      add(new Pending(prefix + "-" + line + "-", line, fundingLine, first));
+    }
+  }
+
+  private void add(Pending p)
+  {
+    pending.add(p);
+    byAmount.computeIfAbsent(p.amount, k -> new LinkedHashSet<Pending>()).add(p);
+    size += p.remaining();
+  }
+
+  /**
+   * Remove and return the largest action whose amount is strictly less than
+   * the limit, or null if there is none. Among equal amounts, the earliest
+   * added is taken first.
+   */
+  public FundingAction takeLargestBelow(long max)
+  {
+    Map.Entry<Long, Set<Pending>> entry = byAmount.lowerEntry(max);
+    return null == entry ? null : take(entry.getValue().iterator().next());
+  }
+
+  /** Remove and return the earliest added action, or null if there are none. */
+  public FundingAction takeFirst()
+  {
+    Iterator<Pending> i = pending.iterator();
+    return i.hasNext() ? take(i.next()) : null;
+  }
+
+  private FundingAction take(Pending p)
+  {
+    FundingAction act = p.take();
+    size--;
+    if (p.remaining() == 0)
+    {
+      pending.remove(p);
+      Set<Pending> same = byAmount.get(p.amount);
+      same.remove(p);
+      if (same.isEmpty())
+      {
+        byAmount.remove(p.amount);
+      }
+    }
+    return act;
+  }
+
+  public long size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  /** A single action, or the actions of a funding line not yet taken. */
+  private static class Pending
+  {
+    private final long          amount;
+    private final FundingAction single;
+    private final String        prefix;
+    private final int           line;
+    /** Index of the next account of the line, and of its last */
+    private int                 next;
+    private final int           last;
+
+    Pending(FundingAction single)
+    {
+      this.amount = single.getAmount();
+      this.single = single;
+      this.prefix = null;
+      this.line = single.getLine();
+      this.next = 1;
+      this.last = 1;
+    }
+
+    Pending(String prefix, int line, FundingLine fundingLine, int first)
+    {
+      this.amount = fundingLine.getAmount();
+      this.single = null;
+      this.prefix = prefix;
+      this.line = line;
+      this.next = first;
+      this.last = first + fundingLine.getAccounts() - 1;
+    }
+
+    long remaining()
+    {
+      return last - next + 1;
+    }
+
+    FundingAction take()
+    {
+      int index = next++;
+      return null != single ? single : new FundingAction(prefix + index, amount, line);
+    }
+  }
+}
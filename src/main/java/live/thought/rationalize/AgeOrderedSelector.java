@@ -0,0 +1,16 @@
+package live.thought.rationalize;
+
+import java.util.List;
+
+/**
+ * Takes outputs oldest or newest first, in cache order, until the target is
+ * reached.
+ */
+public class AgeOrderedSelector implements CoinSelector
+{
+  @Override
+  public List<Utxo> select(UnspentIndex cache, long amount, long allowance)
+  {
+    return cache.take(amount + allowance);
+  }
+}
@@ -0,0 +1,60 @@
+package live.thought.rationalize;
+
+import java.math.BigDecimal;
+
+/**
+ * Amounts are carried internally as a long count of the smallest coin unit
+ * (1e-8 THT) so totals stay exact. These convert at the RPC and file
+ * boundaries.
+ */
+public final class Amounts
+{
+  /** Units per THT */
+  public static final long COIN     = 100000000L;
+  public static final int  DECIMALS = 8;
+
+  private Amounts()
+  {
+  }
+
+  /** Convert an amount reported by the daemon. */
+  public static long toUnits(double coins)
+  {
+    return Math.round(coins * COIN);
+  }
+
+  /** Convert an amount for the daemon. */
+  public static double toCoins(long units)
+  {
+    return BigDecimal.valueOf(units, DECIMALS).doubleValue();
+  }
+
+  /**
+   * Parse a decimal THT amount exactly.
+   *
+   * @throws NumberFormatException
+   *           if the text is not a number or has more than 8 decimal places.
+   */
+  public static long parse(String coins)
+  {
+    try
+    {
+      return new BigDecimal(coins.trim()).movePointRight(DECIMALS).longValueExact();
+    }
+    catch (ArithmeticException e)
+    {
+      throw new NumberFormatException("Invalid THT amount: " + coins);
+    }
+  }
+
+  /** Format an amount as decimal THT, without trailing zeros. */
+  public static String format(long units)
+  {
+    BigDecimal coins = BigDecimal.valueOf(units, DECIMALS).stripTrailingZeros();
+    if (coins.scale() < 1)
+    {
+      coins = coins.setScale(1);
+    }
+    return coins.toPlainString();
+  }
+}
@@ -0,0 +1,173 @@
+package live.thought.rationalize;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Depth-first branch and bound search for a set of outputs that pays the
+ * amount and its own fee, with no more left over than a change output would
+ * cost, so the transaction is better off without one. Each output counts for
+ * its amount less the fee to spend it, and the target is the amount plus the
+ * fee for an output and the transaction's overhead, at the fee rate.
+ * Candidates are tried largest first, which favours selections with few
+ * inputs.
+ */
+public class BranchAndBoundSelector implements CoinSelector
+{
+  /** Largest candidates considered, to bound setup on very large caches. */
+  private static final int    MAX_CANDIDATES = 2000;
+  private static final int    MAX_TRIES      = 100000;
+
+  private final long          budgetMillis;
+  /** Fee to spend an output */
+  private final long          inputFee;
+  /** Fee for an output and the transaction's overhead */
+  private final long          fixedFee;
+  /** How far over the target a match may land */
+  private final long          changeCost;
+  private final CoinSelector  fallback;
+
+  /**
+   * @param feeRate
+   *          fee rate in units of 1e-8 THT per 1000 bytes.
+   */
+  public BranchAndBoundSelector(long budgetMillis, long feeRate, CoinSelector fallback)
+  {
+    this.budgetMillis = budgetMillis;
+    this.inputFee = LocalTransactionBuilder.fee(LocalTransactionBuilder.MAX_INPUT_SIZE, feeRate);
+    this.fixedFee = LocalTransactionBuilder.fee(LocalTransactionBuilder.OUTPUT_SIZE + LocalTransactionBuilder.OVERHEAD,
+        feeRate);
+    this.changeCost = CoinSelector.changeCost(feeRate);
+    this.fallback = fallback;
+  }
+
+  @Override
+  public List<Utxo> select(UnspentIndex cache, long amount, long allowance)
+  {
+    long       target     = amount + fixedFee;
+    long       upper      = target + changeCost;
+    List<Utxo> candidates = new ArrayList<Utxo>();
+    for (Iterator<Utxo> i = cache.descendingFrom(upper + inputFee, true); i.hasNext()
+        && candidates.size() < MAX_CANDIDATES;)
+    {
+      Utxo u = i.next();
+      if (u.getAmount() <= inputFee)
+      {
+        // This and everything smaller costs more to spend than it brings.
+        break;
+      }
+      candidates.add(u);
+    }
+    int      n      = candidates.size();
+    long[]   values = new long[n];
+    long[]   suffix = new long[n + 1];
+    for (int i = n - 1; i >= 0; i--)
+    {
+      values[i] = candidates.get(i).getAmount() - inputFee;
+      suffix[i] = suffix[i + 1] + values[i];
+    }
+
+    boolean[] included  = new boolean[n];
+    boolean[] best      = null;
+    long      bestTotal = Long.MAX_VALUE;
+    long      current   = 0;
+    int       depth     = 0;
+    long      deadline  = System.nanoTime() + budgetMillis * 1000000L;
+    if (suffix[0] >= target)
+    {
+      for (int tries = 0; tries < MAX_TRIES; tries++)
+      {
+        if ((tries & 0x3ff) == 0 && System.nanoTime() > deadline)
+        {
+          Console.debug("Branch and bound ran out of time after " + tries + " tries.", 1);
+          break;
+        }
+        boolean backtrack;
+        if (current >= target)
+        {
+          // Adding more can only overshoot further, so this branch ends here.
+          if (current <= upper && current < bestTotal)
+          {
+            bestTotal = current;
+            best = included.clone();
+            if (current == target)
+            {
+              break;
+            }
+          }
+          backtrack = true;
+        }
+        else
+        {
+          // Out of candidates, or the rest can't reach the target.
+          backtrack = depth >= n || current + suffix[depth] < target;
+        }
+        if (backtrack)
+        {
+          // Step back to the last output included and try the branch without it.
+          int last = depth - 1;
+          while (last >= 0 && !included[last])
+          {
+            last--;
+          }
+          if (last < 0)
+          {
+            break;
+          }
+          included[last] = false;
+          current -= values[last];
+          depth = last + 1;
+        }
+        else
+        {
+          // Skip straight past candidates too big to fit under the upper bound.
+          depth = firstAtMost(values, depth, upper - current);
+          if (depth < n)
+          {
+            included[depth] = true;
+            current += values[depth];
+            depth++;
+          }
+        }
+      }
+    }
+
+    if (null == best)
+    {
+      Console.debug("No exact match for " + Amounts.format(amount) + ", falling back.", 1);
+      return fallback.select(cache, amount, allowance);
+    }
+    List<Utxo> selected = new ArrayList<Utxo>();
+    for (int i = 0; i < n; i++)
+    {
+      if (best[i])
+      {
+        selected.add(candidates.get(i));
+        cache.remove(candidates.get(i));
+      }
+    }
+    Console.debug("Exact match for " + Amounts.format(amount) + " with " + selected.size() + " inputs.", 1);
+    return selected;
+  }
+
+  /** @return the first index from start whose value is at most max, in values sorted descending. */
+  private static int firstAtMost(long[] values, int start, long max)
+  {
+    int low  = start;
+    int high = values.length;
+    while (low < high)
+    {
+      int mid = (low + high) >>> 1;
+      if (values[mid] > max)
+      {
+        low = mid + 1;
+      }
+      else
+      {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
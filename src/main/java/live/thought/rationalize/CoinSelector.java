@@ -0,0 +1,63 @@
+package live.thought.rationalize;
+
+import java.util.List;
+
+/**
+ * Chooses which unspent outputs fund a transaction.
+ */
+public interface CoinSelector
+{
+  /**
+   * Choose outputs from the cache whose total is at least the amount plus
+   * the allowance, removing them from the cache. A total equal to that
+   * counts. The allowance stands in for the fee; bnb instead matches the
+   * amount plus the fee its own inputs and an output add at the fee rate,
+   * since a match leaves nothing over to pay change from.
+   *
+   * @param allowance
+   *          fee allowance beyond what the transaction's inputs already
+   *          spare.
+   * @return the chosen outputs, or null (removing nothing) if no selection
+   *         could be made.
+   */
+  List<Utxo> select(UnspentIndex cache, long amount, long allowance);
+
+  /**
+   * @param feeRate
+   *          fee rate in units of 1e-8 THT per 1000 bytes.
+   * @return what a change output costs: the fee to add it and to spend it
+   *         later, and no less than dust. A selection this close to its
+   *         target is better off leaving the difference to the fee.
+   */
+  static long changeCost(long feeRate)
+  {
+    long fee = ((PlannedTransaction.OUTPUT_SIZE + PlannedTransaction.INPUT_SIZE) * feeRate + 999) / 1000;
+    return Math.max(LocalTransactionBuilder.DUST, fee);
+  }
+
+  /**
+   * Build the selector for a funding strategy. The oldest and newest
+   * strategies take outputs in cache order; bnb looks for a match within the
+   * cost of a change output first and knapsack for the smallest total
+   * reaching the target, each falling back to the next.
+   *
+   * @param budgetMillis
+   *          time allowed for each search before it settles for the best
+   *          selection found so far.
+   * @param feeRate
+   *          fee rate in units of 1e-8 THT per 1000 bytes.
+   */
+  static CoinSelector forStrategy(String strategy, long budgetMillis, long feeRate)
+  {
+    CoinSelector greedy = new AgeOrderedSelector();
+    if (Config.BRANCH_AND_BOUND.equals(strategy))
+    {
+      return new BranchAndBoundSelector(budgetMillis, feeRate, new KnapsackSelector(budgetMillis, greedy));
+    }
+    else if (Config.KNAPSACK.equals(strategy))
+    {
+      return new KnapsackSelector(budgetMillis, greedy);
+    }
+    return greedy;
+  }
+}
@@ -2,7 +2,13 @@ package live.thought.rationalize;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -11,10 +17,20 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-public class Config
+public class Config implements Cloneable
 {
   public static final String OLDEST_FIRST = "oldest";
   public static final String NEWEST_FIRST = "newest";
+  public static final String BRANCH_AND_BOUND = "bnb";
+  public static final String KNAPSACK = "knapsack";
+  public static final String DAEMON_BUILDER = "daemon";
+  public static final String LOCAL_BUILDER = "local";
+  public static final String DAEMON_SIGNING = "daemon";
+  public static final String LOCAL_SIGNING = "local";
+  public static final String RANDOM_KEYS = "random";
+  public static final String HD_KEYS = "hd";
+  public static final String KEEPALIVE_TRANSPORT = "keepalive";
+  public static final String URL_TRANSPORT = "urlconnection";
   
   
   /** Options for the command line parser. */
@@ -30,6 +46,30 @@ public class Config
   private static final String              DEFAULT_INPUT_FILE        = "rationalize_input.csv";
   private static final String              DEFAULT_OUTPUT_FILE       = "rationalize_results.csv";
   private static final String              DEFAULT_FUNDING_STRATEGY  = "oldest";
+  private static final String              DEFAULT_CONCURRENCY       = "4";
+  private static final String              DEFAULT_BATCH_SIZE        = "500";
+  private static final String              DEFAULT_VERIFY_INTERVAL   = "100";
+  private static final String              DEFAULT_KEY_LOOKAHEAD     = "1000";
+  private static final String              DEFAULT_KEY_DERIVATION    = RANDOM_KEYS;
+  private static final String              DEFAULT_KEY_PATH          = HdKeyChain.DEFAULT_PATH;
+  private static final String              DEFAULT_SEED_FILE         = "rationalize_seed.txt";
+  private static final String              DEFAULT_SELECTION_TIME    = "50";
+  private static final String              DEFAULT_MAX_OUTPUTS       = "100";
+  private static final String              DEFAULT_MAX_TX_SIZE       = "50000";
+  private static final String              DEFAULT_JOURNAL_FILE      = "rationalize_journal.log";
+  private static final String              DEFAULT_WINDOW_TARGET     = "2000";
+  private static final String              DEFAULT_FETCH_WORKERS     = "4";
+  private static final String              DEFAULT_METRICS_FILE      = "rationalize_metrics.json";
+  private static final String              DEFAULT_PROMETHEUS_FILE   = "rationalize_metrics.prom";
+  private static final String              DEFAULT_PROGRESS_INTERVAL = "10";
+  private static final String              DEFAULT_SNAPSHOT_FILE     = "";
+  private static final String              DEFAULT_OUTPUT_FORMAT     = ResultsWriter.CSV;
+  private static final String              DEFAULT_COMMIT_INTERVAL   = "200";
+  private static final String              DEFAULT_COMMIT_RECORDS    = "1000";
+  private static final String              DEFAULT_BUILDER           = DAEMON_BUILDER;
+  private static final String              DEFAULT_FEE_RATE          = "0.00001";
+  private static final String              DEFAULT_SIGNING           = DAEMON_SIGNING;
+  private static final String              DEFAULT_TRANSPORT         = KEEPALIVE_TRANSPORT;
 
   private static final String              HOST_PROPERTY             = "host";
   private static final String              PORT_PROPERTY             = "port";
@@ -40,9 +80,42 @@ public class Config
   private static final String              FUNDING_STRATEGY_PROPERTY = "fundingStrategy";
   private static final String              FUNDING_FILE_PROPERTY     = "fundingFile";
   private static final String              OUTPUT_FILE_PROPERTY      = "output";
+  private static final String              CONCURRENCY_PROPERTY      = "concurrency";
+  private static final String              BATCH_SIZE_PROPERTY       = "batchSize";
+  private static final String              VERIFY_INTERVAL_PROPERTY  = "verifyInterval";
+  private static final String              KEY_LOOKAHEAD_PROPERTY    = "keyLookahead";
+  private static final String              KEY_DERIVATION_PROPERTY   = "keyDerivation";
+  private static final String              KEY_PATH_PROPERTY         = "keyPath";
+  private static final String              SEED_FILE_PROPERTY        = "seedFile";
+  private static final String              SELECTION_TIME_PROPERTY   = "selectionTime";
+  private static final String              MAX_OUTPUTS_PROPERTY      = "maxOutputs";
+  private static final String              MAX_TX_SIZE_PROPERTY      = "maxTxSize";
+  private static final String              JOURNAL_FILE_PROPERTY     = "journal";
+  private static final String              WINDOW_TARGET_PROPERTY    = "windowTarget";
+  private static final String              FETCH_WORKERS_PROPERTY    = "fetchWorkers";
+  private static final String              METRICS_FILE_PROPERTY     = "metrics";
+  private static final String              PROMETHEUS_FILE_PROPERTY  = "prometheus";
+  private static final String              PROGRESS_PROPERTY         = "progressInterval";
+  private static final String              SNAPSHOT_FILE_PROPERTY    = "snapshot";
+  private static final String              OUTPUT_FORMAT_PROPERTY    = "outputFormat";
+  private static final String              COMMIT_INTERVAL_PROPERTY  = "commitInterval";
+  private static final String              COMMIT_RECORDS_PROPERTY   = "commitRecords";
+  private static final String              BUILDER_PROPERTY          = "transactionBuilder";
+  private static final String              FEE_RATE_PROPERTY         = "feeRate";
+  private static final String              SIGNING_PROPERTY          = "signing";
+  private static final String              KEY_FILE_PROPERTY         = "keyFile";
+  private static final String              TRANSPORT_PROPERTY        = "rpcTransport";
   private static final String              HELP_OPTION               = "help";
   private static final String              CONFIG_OPTION             = "config";
   private static final String              DEBUG_OPTION              = "debug";
+  private static final String              RESUME_OPTION             = "resume";
+  private static final String              PLAN_OPTION               = "plan";
+  private static final String              UNSPENT_OPTION            = "unspent";
+  private static final String              EXPORT_KEYS_OPTION        = "exportKeys";
+  /** Prefix of the properties of one of several daemons: node.&lt;n&gt;.&lt;property&gt; */
+  private static final String              NODE_PREFIX               = "node.";
+  private static final List<String>        NODE_PROPERTIES           = Arrays.asList(HOST_PROPERTY, PORT_PROPERTY,
+      USER_PROPERTY, PASS_PROPERTY, ADDRESS_PROPERTY);
 
   /** Set up command line options. */
   static
@@ -57,9 +130,67 @@ public class Config
     options.addOption("F", FUNDING_FILE_PROPERTY, true,
         "File containing funding lines (default: rationalize_input.csv)");
     options.addOption("s", FUNDING_STRATEGY_PROPERTY, true,
-        "Strategy for selecting funding inputs (oldest or newest) (default: oldest");
+        "Strategy for selecting funding inputs (oldest, newest, bnb or knapsack) (default: oldest)");
     options.addOption("o", OUTPUT_FILE_PROPERTY, true,
         "File to write account keys to (default: rationalize_results.csv)");
+    options.addOption("O", OUTPUT_FORMAT_PROPERTY, true,
+        "Format of the output file: csv, or gzip for the same lines compressed (default: csv)");
+    options.addOption("g", COMMIT_INTERVAL_PROPERTY, true,
+        "Longest time in milliseconds a result waits to be written and synced to the output file (default: 200)");
+    options.addOption("G", COMMIT_RECORDS_PROPERTY, true,
+        "Most results written and synced to the output file at once (default: 1000)");
+    options.addOption("T", BUILDER_PROPERTY, true,
+        "Build and fund transactions with the daemon, or locally from the selected inputs (daemon or local) (default: daemon)");
+    options.addOption("R", FEE_RATE_PROPERTY, true,
+        "Fee rate in THT per 1000 bytes for locally built transactions and plans (default: 0.00001)");
+    options.addOption("k", SIGNING_PROPERTY, true,
+        "Sign transactions with the daemon, or locally with the source addresses' keys (daemon or local) (default: daemon)");
+    options.addOption("K", KEY_FILE_PROPERTY, true,
+        "File of private keys for the source addresses, one per line, for local signing (default: from the wallet)");
+    options.addOption("c", CONCURRENCY_PROPERTY, true,
+        "Maximum number of transactions in flight at once (default: 4)");
+    options.addOption("C", TRANSPORT_PROPERTY, true,
+        "How RPC calls reach the daemon: over a pool of kept-alive connections, or a new connection per call (keepalive or urlconnection) (default: keepalive)");
+    options.addOption("b", BATCH_SIZE_PROPERTY, true,
+        "Number of wallet calls to send in a single RPC batch (default: 500)");
+    options.addOption("v", VERIFY_INTERVAL_PROPERTY, true,
+        "Check one in this many derived account addresses against the wallet, 0 to disable (default: 100)");
+    options.addOption("L", KEY_LOOKAHEAD_PROPERTY, true,
+        "Account keys to generate and import into the wallet ahead of the sends (default: 1000)");
+    options.addOption("D", KEY_DERIVATION_PROPERTY, true,
+        "Make account keys at random, or derive them from a seed saved for the run (random or hd) (default: random)");
+    options.addOption("Y", KEY_PATH_PROPERTY, true,
+        "BIP32 path under which account keys are derived from the seed (default: m/0')");
+    options.addOption("E", SEED_FILE_PROPERTY, true,
+        "File to save the seed of derived account keys in, which must not exist yet (default: rationalize_seed.txt)");
+    options.addOption("t", SELECTION_TIME_PROPERTY, true,
+        "Milliseconds the bnb and knapsack strategies may search per transaction (default: 50)");
+    options.addOption("m", MAX_OUTPUTS_PROPERTY, true,
+        "Maximum number of accounts funded by one small-input transaction (default: 100)");
+    options.addOption("x", MAX_TX_SIZE_PROPERTY, true,
+        "Maximum estimated size in bytes of a small-input transaction (default: 50000)");
+    options.addOption("w", WINDOW_TARGET_PROPERTY, true,
+        "Number of unspent inputs to aim for in each wallet listunspent call (default: 2000)");
+    options.addOption("W", FETCH_WORKERS_PROPERTY, true,
+        "Number of unspent input ranges to fetch from the wallet at once (default: 4)");
+    options.addOption("j", JOURNAL_FILE_PROPERTY, true,
+        "File to record progress in, for resuming an interrupted run (default: rationalize_journal.log)");
+    options.addOption("M", METRICS_FILE_PROPERTY, true,
+        "File to write RPC and phase timings to as JSON at the end of the run (default: rationalize_metrics.json)");
+    options.addOption("e", PROMETHEUS_FILE_PROPERTY, true,
+        "File to write the same timings to in Prometheus text format (default: rationalize_metrics.prom)");
+    options.addOption("i", PROGRESS_PROPERTY, true,
+        "Seconds between progress lines while sending, or 0 for none (default: 10)");
+    options.addOption("S", SNAPSHOT_FILE_PROPERTY, true,
+        "File to keep the source addresses' unspent inputs in between runs (default: none)");
+    options.addOption("r", RESUME_OPTION, true,
+        "Resume the interrupted run recorded in the given journal.  Command-line only.");
+    options.addOption("n", PLAN_OPTION, true,
+        "Plan the run without changing the wallet, writing the transactions to the given file.  Command-line only.");
+    options.addOption("U", UNSPENT_OPTION, true,
+        "With --plan, read unspent inputs from the given snapshot file as they are, or fetch them once and save them there.  Command-line only.");
+    options.addOption("X", EXPORT_KEYS_OPTION, true,
+        "Regenerate every account key of the run saved in seedFile, writing them to the given file.  Command-line only.");
     options.addOption("h", HELP_OPTION, false, "Displays usage information");
     options.addOption("f", CONFIG_OPTION, true,
         "Configuration file to load options from.  Command line options override config file.");
@@ -76,9 +207,39 @@ public class Config
   protected String[] sourceAddresses;
   protected String   fundingFileName;
   protected String   outputFileName;
+  protected String   outputFormat;
+  protected long     commitInterval;
+  protected int      commitRecords;
   protected String   fundingStrategy;
+  protected String   transactionBuilder;
+  protected long     feeRate;
+  protected String   signing;
+  protected String   keyFileName;
+  protected String   rpcTransport;
+  protected int      concurrency;
+  protected int      batchSize;
+  protected int      verifyInterval;
+  protected int      keyLookahead;
+  protected String   keyDerivation;
+  protected String   keyPath;
+  protected String   seedFileName;
+  protected long     selectionTime;
+  protected int      maxOutputs;
+  protected int      maxTxSize;
+  protected int      windowTarget;
+  protected int      fetchWorkers;
+  protected String   journalFileName;
+  protected String   metricsFileName;
+  protected String   prometheusFileName;
+  protected int      progressInterval;
+  protected String   snapshotFileName;
+  protected String   resumeFileName;
+  protected String   planFileName;
+  protected String   unspentFileName;
+  protected String   exportFileName;
 
   protected boolean  testnet = false;
+  protected List<Config> nodes = new ArrayList<Config>();
 
   public Config(String[] args)
   {
@@ -142,6 +303,18 @@ public class Config
       {
         props.setProperty(OUTPUT_FILE_PROPERTY, commandLine.getOptionValue(OUTPUT_FILE_PROPERTY));
       }
+      if (commandLine.hasOption(OUTPUT_FORMAT_PROPERTY))
+      {
+        props.setProperty(OUTPUT_FORMAT_PROPERTY, commandLine.getOptionValue(OUTPUT_FORMAT_PROPERTY));
+      }
+      if (commandLine.hasOption(COMMIT_INTERVAL_PROPERTY))
+      {
+        props.setProperty(COMMIT_INTERVAL_PROPERTY, commandLine.getOptionValue(COMMIT_INTERVAL_PROPERTY));
+      }
+      if (commandLine.hasOption(COMMIT_RECORDS_PROPERTY))
+      {
+        props.setProperty(COMMIT_RECORDS_PROPERTY, commandLine.getOptionValue(COMMIT_RECORDS_PROPERTY));
+      }
       if (commandLine.hasOption(PREFIX_PROPERTY))
       {
         props.setProperty(PREFIX_PROPERTY, commandLine.getOptionValue(PREFIX_PROPERTY));
@@ -150,6 +323,94 @@ public class Config
       {
         props.setProperty(FUNDING_STRATEGY_PROPERTY, commandLine.getOptionValue(FUNDING_STRATEGY_PROPERTY));
       }
+      if (commandLine.hasOption(BUILDER_PROPERTY))
+      {
+        props.setProperty(BUILDER_PROPERTY, commandLine.getOptionValue(BUILDER_PROPERTY));
+      }
+      if (commandLine.hasOption(FEE_RATE_PROPERTY))
+      {
+        props.setProperty(FEE_RATE_PROPERTY, commandLine.getOptionValue(FEE_RATE_PROPERTY));
+      }
+      if (commandLine.hasOption(SIGNING_PROPERTY))
+      {
+        props.setProperty(SIGNING_PROPERTY, commandLine.getOptionValue(SIGNING_PROPERTY));
+      }
+      if (commandLine.hasOption(TRANSPORT_PROPERTY))
+      {
+        props.setProperty(TRANSPORT_PROPERTY, commandLine.getOptionValue(TRANSPORT_PROPERTY));
+      }
+      if (commandLine.hasOption(KEY_FILE_PROPERTY))
+      {
+        props.setProperty(KEY_FILE_PROPERTY, commandLine.getOptionValue(KEY_FILE_PROPERTY));
+      }
+      if (commandLine.hasOption(CONCURRENCY_PROPERTY))
+      {
+        props.setProperty(CONCURRENCY_PROPERTY, commandLine.getOptionValue(CONCURRENCY_PROPERTY));
+      }
+      if (commandLine.hasOption(BATCH_SIZE_PROPERTY))
+      {
+        props.setProperty(BATCH_SIZE_PROPERTY, commandLine.getOptionValue(BATCH_SIZE_PROPERTY));
+      }
+      if (commandLine.hasOption(VERIFY_INTERVAL_PROPERTY))
+      {
+        props.setProperty(VERIFY_INTERVAL_PROPERTY, commandLine.getOptionValue(VERIFY_INTERVAL_PROPERTY));
+      }
+      if (commandLine.hasOption(KEY_LOOKAHEAD_PROPERTY))
+      {
+        props.setProperty(KEY_LOOKAHEAD_PROPERTY, commandLine.getOptionValue(KEY_LOOKAHEAD_PROPERTY));
+      }
+      if (commandLine.hasOption(KEY_DERIVATION_PROPERTY))
+      {
+        props.setProperty(KEY_DERIVATION_PROPERTY, commandLine.getOptionValue(KEY_DERIVATION_PROPERTY));
+      }
+      if (commandLine.hasOption(KEY_PATH_PROPERTY))
+      {
+        props.setProperty(KEY_PATH_PROPERTY, commandLine.getOptionValue(KEY_PATH_PROPERTY));
+      }
+      if (commandLine.hasOption(SEED_FILE_PROPERTY))
+      {
+        props.setProperty(SEED_FILE_PROPERTY, commandLine.getOptionValue(SEED_FILE_PROPERTY));
+      }
+      if (commandLine.hasOption(SELECTION_TIME_PROPERTY))
+      {
+        props.setProperty(SELECTION_TIME_PROPERTY, commandLine.getOptionValue(SELECTION_TIME_PROPERTY));
+      }
+      if (commandLine.hasOption(MAX_OUTPUTS_PROPERTY))
+      {
+        props.setProperty(MAX_OUTPUTS_PROPERTY, commandLine.getOptionValue(MAX_OUTPUTS_PROPERTY));
+      }
+      if (commandLine.hasOption(MAX_TX_SIZE_PROPERTY))
+      {
+        props.setProperty(MAX_TX_SIZE_PROPERTY, commandLine.getOptionValue(MAX_TX_SIZE_PROPERTY));
+      }
+      if (commandLine.hasOption(WINDOW_TARGET_PROPERTY))
+      {
+        props.setProperty(WINDOW_TARGET_PROPERTY, commandLine.getOptionValue(WINDOW_TARGET_PROPERTY));
+      }
+      if (commandLine.hasOption(FETCH_WORKERS_PROPERTY))
+      {
+        props.setProperty(FETCH_WORKERS_PROPERTY, commandLine.getOptionValue(FETCH_WORKERS_PROPERTY));
+      }
+      if (commandLine.hasOption(JOURNAL_FILE_PROPERTY))
+      {
+        props.setProperty(JOURNAL_FILE_PROPERTY, commandLine.getOptionValue(JOURNAL_FILE_PROPERTY));
+      }
+      if (commandLine.hasOption(METRICS_FILE_PROPERTY))
+      {
+        props.setProperty(METRICS_FILE_PROPERTY, commandLine.getOptionValue(METRICS_FILE_PROPERTY));
+      }
+      if (commandLine.hasOption(PROMETHEUS_FILE_PROPERTY))
+      {
+        props.setProperty(PROMETHEUS_FILE_PROPERTY, commandLine.getOptionValue(PROMETHEUS_FILE_PROPERTY));
+      }
+      if (commandLine.hasOption(PROGRESS_PROPERTY))
+      {
+        props.setProperty(PROGRESS_PROPERTY, commandLine.getOptionValue(PROGRESS_PROPERTY));
+      }
+      if (commandLine.hasOption(SNAPSHOT_FILE_PROPERTY))
+      {
+        props.setProperty(SNAPSHOT_FILE_PROPERTY, commandLine.getOptionValue(SNAPSHOT_FILE_PROPERTY));
+      }
 
       host = props.getProperty(HOST_PROPERTY, DEFAULT_HOST);
       port = Integer.parseInt(props.getProperty(PORT_PROPERTY, DEFAULT_PORT));
@@ -158,14 +419,44 @@ public class Config
       
       fundingFileName = props.getProperty(FUNDING_FILE_PROPERTY, DEFAULT_INPUT_FILE);
       outputFileName = props.getProperty(OUTPUT_FILE_PROPERTY, DEFAULT_OUTPUT_FILE);
+      outputFormat = props.getProperty(OUTPUT_FORMAT_PROPERTY, DEFAULT_OUTPUT_FORMAT);
+      commitInterval = Long.parseLong(props.getProperty(COMMIT_INTERVAL_PROPERTY, DEFAULT_COMMIT_INTERVAL));
+      commitRecords = Integer.parseInt(props.getProperty(COMMIT_RECORDS_PROPERTY, DEFAULT_COMMIT_RECORDS));
+      journalFileName = props.getProperty(JOURNAL_FILE_PROPERTY, DEFAULT_JOURNAL_FILE);
+      metricsFileName = props.getProperty(METRICS_FILE_PROPERTY, DEFAULT_METRICS_FILE);
+      prometheusFileName = props.getProperty(PROMETHEUS_FILE_PROPERTY, DEFAULT_PROMETHEUS_FILE);
+      snapshotFileName = props.getProperty(SNAPSHOT_FILE_PROPERTY, DEFAULT_SNAPSHOT_FILE).trim();
+      if (snapshotFileName.isEmpty())
+      {
+        snapshotFileName = null;
+      }
+      resumeFileName = commandLine.getOptionValue(RESUME_OPTION);
+      planFileName = commandLine.getOptionValue(PLAN_OPTION);
+      unspentFileName = commandLine.getOptionValue(UNSPENT_OPTION);
+      exportFileName = commandLine.getOptionValue(EXPORT_KEYS_OPTION);
       prefix = props.getProperty(PREFIX_PROPERTY, DEFAULT_PREFIX);
       fundingStrategy = props.getProperty(FUNDING_STRATEGY_PROPERTY, DEFAULT_FUNDING_STRATEGY);
+      transactionBuilder = props.getProperty(BUILDER_PROPERTY, DEFAULT_BUILDER);
+      rpcTransport = props.getProperty(TRANSPORT_PROPERTY, DEFAULT_TRANSPORT);
+      feeRate = Amounts.parse(props.getProperty(FEE_RATE_PROPERTY, DEFAULT_FEE_RATE));
+      signing = props.getProperty(SIGNING_PROPERTY, DEFAULT_SIGNING);
+      keyFileName = props.getProperty(KEY_FILE_PROPERTY);
+      selectionTime = Long.parseLong(props.getProperty(SELECTION_TIME_PROPERTY, DEFAULT_SELECTION_TIME));
+      maxOutputs = Integer.parseInt(props.getProperty(MAX_OUTPUTS_PROPERTY, DEFAULT_MAX_OUTPUTS));
+      maxTxSize = Integer.parseInt(props.getProperty(MAX_TX_SIZE_PROPERTY, DEFAULT_MAX_TX_SIZE));
+      concurrency = Integer.parseInt(props.getProperty(CONCURRENCY_PROPERTY, DEFAULT_CONCURRENCY));
+      batchSize = Integer.parseInt(props.getProperty(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE));
+      verifyInterval = Integer.parseInt(props.getProperty(VERIFY_INTERVAL_PROPERTY, DEFAULT_VERIFY_INTERVAL));
+      keyLookahead = Integer.parseInt(props.getProperty(KEY_LOOKAHEAD_PROPERTY, DEFAULT_KEY_LOOKAHEAD));
+      keyDerivation = props.getProperty(KEY_DERIVATION_PROPERTY, DEFAULT_KEY_DERIVATION);
+      keyPath = props.getProperty(KEY_PATH_PROPERTY, DEFAULT_KEY_PATH);
+      seedFileName = props.getProperty(SEED_FILE_PROPERTY, DEFAULT_SEED_FILE);
+      windowTarget = Integer.parseInt(props.getProperty(WINDOW_TARGET_PROPERTY, DEFAULT_WINDOW_TARGET));
+      fetchWorkers = Integer.parseInt(props.getProperty(FETCH_WORKERS_PROPERTY, DEFAULT_FETCH_WORKERS));
+      progressInterval = Integer.parseInt(props.getProperty(PROGRESS_PROPERTY, DEFAULT_PROGRESS_INTERVAL));
       
-      if (null == props.getProperty(ADDRESS_PROPERTY))
-      {
-        throw new IllegalArgumentException("Funding source address(es) not specified.");
-      }
-      else
+      parseNodes(props);
+      if (null != props.getProperty(ADDRESS_PROPERTY))
       {
         String addresses = props.getProperty(ADDRESS_PROPERTY);
         String[] split = addresses.split(",");
@@ -180,11 +471,14 @@ public class Config
       {
         testnet = true;
       }
+      validate();
     }
-    catch (ParseException pe)
+    catch (ParseException | IllegalArgumentException e)
     {
-      System.err.println(pe.getLocalizedMessage());
+      // Settings read after a bad one are left unset, so the run can't go on.
+      System.err.println(e.getLocalizedMessage());
       usage();
+      System.exit(1);
     }
     catch (Exception e)
     {
@@ -193,6 +487,197 @@ public class Config
     }
   }
 
+  /**
+   * Check the settings, once they are all read.
+   *
+   * @throws IllegalArgumentException
+   *           naming the first setting that is out of range or doesn't fit
+   *           with the others.
+   */
+  private void validate()
+  {
+    // Exporting keys needs only the seed file, and nodes have addresses of their own.
+    if (null == sourceAddresses && null == exportFileName && nodes.isEmpty())
+    {
+      throw new IllegalArgumentException("Funding source address(es) not specified.");
+    }
+    if (!ResultsWriter.CSV.equals(outputFormat) && !ResultsWriter.GZIP.equals(outputFormat))
+    {
+      throw new IllegalArgumentException("Unknown output format: " + outputFormat);
+    }
+    if (commitInterval < 0)
+    {
+      throw new IllegalArgumentException("Commit interval must not be negative.");
+    }
+    if (commitRecords < 1)
+    {
+      throw new IllegalArgumentException("Commit records must be at least 1.");
+    }
+    if (null != planFileName && null != resumeFileName)
+    {
+      throw new IllegalArgumentException("A resumed run can't be planned.");
+    }
+    if (null != unspentFileName && null == planFileName)
+    {
+      throw new IllegalArgumentException("An unspent file can only be used with --plan.");
+    }
+    if (!OLDEST_FIRST.equals(fundingStrategy) && !NEWEST_FIRST.equals(fundingStrategy)
+        && !BRANCH_AND_BOUND.equals(fundingStrategy) && !KNAPSACK.equals(fundingStrategy))
+    {
+      throw new IllegalArgumentException("Unknown funding strategy: " + fundingStrategy);
+    }
+    if (selectionTime < 1)
+    {
+      throw new IllegalArgumentException("Selection time must be at least 1.");
+    }
+    if (!DAEMON_BUILDER.equals(transactionBuilder) && !LOCAL_BUILDER.equals(transactionBuilder))
+    {
+      throw new IllegalArgumentException("Unknown transaction builder: " + transactionBuilder);
+    }
+    if (!KEEPALIVE_TRANSPORT.equals(rpcTransport) && !URL_TRANSPORT.equals(rpcTransport))
+    {
+      throw new IllegalArgumentException("Unknown RPC transport: " + rpcTransport);
+    }
+    if (feeRate < 0)
+    {
+      throw new IllegalArgumentException("Fee rate must not be negative.");
+    }
+    if (!DAEMON_SIGNING.equals(signing) && !LOCAL_SIGNING.equals(signing))
+    {
+      throw new IllegalArgumentException("Unknown signing: " + signing);
+    }
+    if (LOCAL_SIGNING.equals(signing) && !LOCAL_BUILDER.equals(transactionBuilder))
+    {
+      throw new IllegalArgumentException("Local signing needs transactions built locally.");
+    }
+    if (maxOutputs < 1)
+    {
+      throw new IllegalArgumentException("Maximum outputs must be at least 1.");
+    }
+    if (maxTxSize < 1)
+    {
+      throw new IllegalArgumentException("Maximum transaction size must be at least 1.");
+    }
+    if (concurrency < 1)
+    {
+      throw new IllegalArgumentException("Concurrency must be at least 1.");
+    }
+    if (batchSize < 1)
+    {
+      throw new IllegalArgumentException("Batch size must be at least 1.");
+    }
+    if (keyLookahead < 1)
+    {
+      throw new IllegalArgumentException("Key lookahead must be at least 1.");
+    }
+    if (!RANDOM_KEYS.equals(keyDerivation) && !HD_KEYS.equals(keyDerivation))
+    {
+      throw new IllegalArgumentException("Unknown key derivation: " + keyDerivation);
+    }
+    HdKeyChain.parsePath(keyPath);
+    if (windowTarget < 1)
+    {
+      throw new IllegalArgumentException("Window target must be at least 1.");
+    }
+    if (fetchWorkers < 1)
+    {
+      throw new IllegalArgumentException("Fetch workers must be at least 1.");
+    }
+    if (progressInterval < 0)
+    {
+      throw new IllegalArgumentException("Progress interval must not be negative.");
+    }
+  }
+
+  /** Make a config for each node.&lt;n&gt; in the properties, in order of n. */
+  private void parseNodes(Properties props)
+  {
+    Map<Integer, Properties> byNode = new TreeMap<Integer, Properties>();
+    for (String name : props.stringPropertyNames())
+    {
+      if (!name.startsWith(NODE_PREFIX))
+      {
+        continue;
+      }
+      String rest = name.substring(NODE_PREFIX.length());
+      int    dot  = rest.indexOf('.');
+      if (dot < 0 || !NODE_PROPERTIES.contains(rest.substring(dot + 1)))
+      {
+        throw new IllegalArgumentException("Unknown node property: " + name);
+      }
+      int node;
+      try
+      {
+        node = Integer.parseInt(rest.substring(0, dot));
+      }
+      catch (NumberFormatException e)
+      {
+        throw new IllegalArgumentException("Unknown node property: " + name);
+      }
+      byNode.computeIfAbsent(node, n -> new Properties()).setProperty(rest.substring(dot + 1), props.getProperty(name));
+    }
+    for (Map.Entry<Integer, Properties> e : byNode.entrySet())
+    {
+      nodes.add(forNode(e.getKey(), e.getValue()));
+    }
+  }
+
+  /**
+   * @return this config for one node: its connection and source addresses,
+   *         with the other settings shared, and its own journal, snapshot,
+   *         metrics and plan files.
+   */
+  private Config forNode(int node, Properties props)
+  {
+    Config config;
+    try
+    {
+      config = (Config) clone();
+    }
+    catch (CloneNotSupportedException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    config.nodes = Collections.emptyList();
+    config.host = props.getProperty(HOST_PROPERTY, host);
+    config.port = Integer.parseInt(props.getProperty(PORT_PROPERTY, Integer.toString(port)));
+    config.user = props.getProperty(USER_PROPERTY, user);
+    config.password = props.getProperty(PASS_PROPERTY, password);
+    config.testnet = Integer.toString(config.port).startsWith("11");
+    String addresses = props.getProperty(ADDRESS_PROPERTY);
+    if (null == addresses)
+    {
+      throw new IllegalArgumentException("Funding source address(es) not specified for node " + node + ".");
+    }
+    String[] split = addresses.split(",");
+    config.sourceAddresses = new String[split.length];
+    for (int i = 0; i < split.length; i++)
+    {
+      config.sourceAddresses[i] = split[i].trim();
+    }
+    String suffix = "-node" + node;
+    config.journalFileName = nodeFileName(journalFileName, suffix);
+    config.snapshotFileName = nodeFileName(snapshotFileName, suffix);
+    config.metricsFileName = nodeFileName(metricsFileName, suffix);
+    config.prometheusFileName = nodeFileName(prometheusFileName, suffix);
+    config.resumeFileName = nodeFileName(resumeFileName, suffix);
+    config.planFileName = nodeFileName(planFileName, suffix);
+    config.unspentFileName = nodeFileName(unspentFileName, suffix);
+    return config;
+  }
+
+  /** @return the file name with the suffix before its extension, or null if the name is. */
+  static String nodeFileName(String name, String suffix)
+  {
+    if (null == name)
+    {
+      return null;
+    }
+    int dot   = name.lastIndexOf('.');
+    int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf(File.separatorChar));
+    return dot > slash + 1 ? name.substring(0, dot) + suffix + name.substring(dot) : name + suffix;
+  }
+
   public String[] getSourceAddresses()
   {
     return sourceAddresses;
@@ -263,6 +748,94 @@ public class Config
     this.outputFileName = outputFileName;
   }
 
+  /** @return csv, or gzip for the same lines compressed. */
+  public String getOutputFormat()
+  {
+    return outputFormat;
+  }
+
+  public void setOutputFormat(String outputFormat)
+  {
+    this.outputFormat = outputFormat;
+  }
+
+  /** @return the longest time in milliseconds a result waits to be synced to the output file. */
+  public long getCommitInterval()
+  {
+    return commitInterval;
+  }
+
+  public void setCommitInterval(long commitInterval)
+  {
+    this.commitInterval = commitInterval;
+  }
+
+  /** @return the most results synced to the output file at once. */
+  public int getCommitRecords()
+  {
+    return commitRecords;
+  }
+
+  public void setCommitRecords(int commitRecords)
+  {
+    this.commitRecords = commitRecords;
+  }
+
+  /** @return daemon, or local to build and fund transactions without the daemon. */
+  public String getTransactionBuilder()
+  {
+    return transactionBuilder;
+  }
+
+  public void setTransactionBuilder(String transactionBuilder)
+  {
+    this.transactionBuilder = transactionBuilder;
+  }
+
+  /** @return keepalive, or urlconnection to open a new connection for every call. */
+  public String getRpcTransport()
+  {
+    return rpcTransport;
+  }
+
+  public void setRpcTransport(String rpcTransport)
+  {
+    this.rpcTransport = rpcTransport;
+  }
+
+  /** @return the fee rate in units of 1e-8 THT per 1000 bytes. */
+  public long getFeeRate()
+  {
+    return feeRate;
+  }
+
+  public void setFeeRate(long feeRate)
+  {
+    this.feeRate = feeRate;
+  }
+
+  /** @return daemon, or local to sign transactions with the source addresses' keys. */
+  public String getSigning()
+  {
+    return signing;
+  }
+
+  public void setSigning(String signing)
+  {
+    this.signing = signing;
+  }
+
+  /** @return the file of source address keys for local signing, or null to ask the wallet for them. */
+  public String getKeyFileName()
+  {
+    return keyFileName;
+  }
+
+  public void setKeyFileName(String keyFileName)
+  {
+    this.keyFileName = keyFileName;
+  }
+
   public boolean isTestnet()
   {
     return testnet;
@@ -288,6 +861,228 @@ public class Config
     this.fundingStrategy = fundingStrategy;
   }
 
+  public int getConcurrency()
+  {
+    return concurrency;
+  }
+
+  public void setConcurrency(int concurrency)
+  {
+    this.concurrency = concurrency;
+  }
+
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize)
+  {
+    this.batchSize = batchSize;
+  }
+
+  public int getVerifyInterval()
+  {
+    return verifyInterval;
+  }
+
+  public void setVerifyInterval(int verifyInterval)
+  {
+    this.verifyInterval = verifyInterval;
+  }
+
+  public int getKeyLookahead()
+  {
+    return keyLookahead;
+  }
+
+  public void setKeyLookahead(int keyLookahead)
+  {
+    this.keyLookahead = keyLookahead;
+  }
+
+  public String getKeyDerivation()
+  {
+    return keyDerivation;
+  }
+
+  public void setKeyDerivation(String keyDerivation)
+  {
+    this.keyDerivation = keyDerivation;
+  }
+
+  public String getKeyPath()
+  {
+    return keyPath;
+  }
+
+  public void setKeyPath(String keyPath)
+  {
+    this.keyPath = keyPath;
+  }
+
+  public String getSeedFileName()
+  {
+    return seedFileName;
+  }
+
+  public void setSeedFileName(String seedFileName)
+  {
+    this.seedFileName = seedFileName;
+  }
+
+  public long getSelectionTime()
+  {
+    return selectionTime;
+  }
+
+  public void setSelectionTime(long selectionTime)
+  {
+    this.selectionTime = selectionTime;
+  }
+
+  public int getMaxOutputs()
+  {
+    return maxOutputs;
+  }
+
+  public void setMaxOutputs(int maxOutputs)
+  {
+    this.maxOutputs = maxOutputs;
+  }
+
+  public int getMaxTxSize()
+  {
+    return maxTxSize;
+  }
+
+  public void setMaxTxSize(int maxTxSize)
+  {
+    this.maxTxSize = maxTxSize;
+  }
+
+  public int getWindowTarget()
+  {
+    return windowTarget;
+  }
+
+  public void setWindowTarget(int windowTarget)
+  {
+    this.windowTarget = windowTarget;
+  }
+
+  public int getFetchWorkers()
+  {
+    return fetchWorkers;
+  }
+
+  public void setFetchWorkers(int fetchWorkers)
+  {
+    this.fetchWorkers = fetchWorkers;
+  }
+
+  public String getJournalFileName()
+  {
+    return journalFileName;
+  }
+
+  public void setJournalFileName(String journalFileName)
+  {
+    this.journalFileName = journalFileName;
+  }
+
+  public String getMetricsFileName()
+  {
+    return metricsFileName;
+  }
+
+  public void setMetricsFileName(String metricsFileName)
+  {
+    this.metricsFileName = metricsFileName;
+  }
+
+  public String getPrometheusFileName()
+  {
+    return prometheusFileName;
+  }
+
+  public void setPrometheusFileName(String prometheusFileName)
+  {
+    this.prometheusFileName = prometheusFileName;
+  }
+
+  /** @return seconds between progress lines, or 0 for none. */
+  public int getProgressInterval()
+  {
+    return progressInterval;
+  }
+
+  public void setProgressInterval(int progressInterval)
+  {
+    this.progressInterval = progressInterval;
+  }
+
+  /** @return the file the unspent inputs are kept in between runs, or null to fetch them every run. */
+  public String getSnapshotFileName()
+  {
+    return snapshotFileName;
+  }
+
+  public void setSnapshotFileName(String snapshotFileName)
+  {
+    this.snapshotFileName = snapshotFileName;
+  }
+
+  /** @return the journal of the run to resume, or null to start a new run. */
+  public String getResumeFileName()
+  {
+    return resumeFileName;
+  }
+
+  public void setResumeFileName(String resumeFileName)
+  {
+    this.resumeFileName = resumeFileName;
+  }
+
+  /** @return the file to write a dry run's plan to, or null for a real run. */
+  public String getPlanFileName()
+  {
+    return planFileName;
+  }
+
+  public void setPlanFileName(String planFileName)
+  {
+    this.planFileName = planFileName;
+  }
+
+  /** @return the file a dry run keeps the unspent inputs in, or null to always fetch them. */
+  public String getUnspentFileName()
+  {
+    return unspentFileName;
+  }
+
+  public void setUnspentFileName(String unspentFileName)
+  {
+    this.unspentFileName = unspentFileName;
+  }
+
+  /** @return a config for each of several daemons the run is spread over, or none for a single daemon. */
+  public List<Config> getNodes()
+  {
+    return nodes;
+  }
+
+  /** @return the file to regenerate the seed file's account keys into, or null for a normal run. */
+  public String getExportFileName()
+  {
+    return exportFileName;
+  }
+
+  public void setExportFileName(String exportFileName)
+  {
+    this.exportFileName = exportFileName;
+  }
+
   public static void usage()
   {
     HelpFormatter formatter = new HelpFormatter();
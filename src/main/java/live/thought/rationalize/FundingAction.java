@@ -3,16 +3,26 @@ package live.thought.rationalize;
 public class FundingAction
 {
   protected String name;
-  protected double amount;
+  protected long   amount;
   protected String privateKey;
   protected String publicKey;
+  /** BIP32 path of a derived key, or null for a random one */
+  protected String keyPath;
+  /** Funding line the action came from, counting from 1, or 0 if unknown */
+  protected int    line;
   
-  public FundingAction(String name, double amount)
+  public FundingAction(String name, long amount)
   {
     this.name = name;
     this.amount = amount;
   }
 
+  public FundingAction(String name, long amount, int line)
+  {
+    this(name, amount);
+    this.line = line;
+  }
+
   public String getName()
   {
     return name;
@@ -23,12 +33,17 @@ public class FundingAction
     this.name = name;
   }
 
-  public double getAmount()
+  public int getLine()
+  {
+    return line;
+  }
+
+  public long getAmount()
   {
     return amount;
   }
 
-  public void setAmount(double amount)
+  public void setAmount(long amount)
   {
     this.amount = amount;
   }
@@ -52,9 +67,19 @@ public class FundingAction
   {
     this.publicKey = publicKey;
   }
+
+  public String getKeyPath()
+  {
+    return keyPath;
+  }
+
+  public void setKeyPath(String keyPath)
+  {
+    this.keyPath = keyPath;
+  }
   
   public String toString()
   {
-    return String.format("%s,%s,%s,%s\n", name, privateKey, publicKey, Double.toString(amount));
+    return ResultsWriter.line(this);
   }
 }
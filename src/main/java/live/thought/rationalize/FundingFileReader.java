@@ -0,0 +1,77 @@
+package live.thought.rationalize;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Reads a funding file one line at a time. Each funding line is an amount of
+ * THT and the number of accounts to create with that amount, separated by a
+ * comma; blank lines and lines starting with # are skipped. A malformed line
+ * is reported with its line number rather than skipped.
+ */
+public class FundingFileReader implements Closeable
+{
+  private final File           file;
+  private final BufferedReader reader;
+  /** Number of the last line read */
+  private int                  number;
+
+  public FundingFileReader(File file) throws IOException
+  {
+    this.file = file;
+    this.reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+  }
+
+  /** @return the next funding line, or null at the end of the file. */
+  public FundingLine next() throws IOException
+  {
+    String line;
+    while (null != (line = reader.readLine()))
+    {
+      number++;
+      line = line.trim();
+      // Ignore blank lines and comments
+      if (line.isEmpty() || line.startsWith("#"))
+      {
+        continue;
+      }
+      FundingLine f = parse(line.split(","));
+      if (null == f)
+      {
+        throw new IOException("Bad funding line at line " + number + " of " + file + ": " + line);
+      }
+      return f;
+    }
+    return null;
+  }
+
+  /** @return the funding line, or null if the values don't make one. */
+  private static FundingLine parse(String[] values)
+  {
+    if (values.length != 2)
+    {
+      return null;
+    }
+    FundingLine f = new FundingLine();
+    try
+    {
+      f.setAmount(Amounts.parse(values[0]));
+      f.setAccounts(Integer.parseInt(values[1].trim()));
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+    return f.getAmount() > 0 && f.getAccounts() >= 0 ? f : null;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    reader.close();
+  }
+}
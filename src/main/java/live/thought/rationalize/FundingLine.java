@@ -2,15 +2,15 @@ package live.thought.rationalize;
 
 public class FundingLine
 {
-  protected double amount;
+  protected long   amount;
   protected int    accounts;
 
-  public double getAmount()
+  public long getAmount()
   {
     return amount;
   }
 
-  public void setAmount(double amount)
+  public void setAmount(long amount)
   {
     this.amount = amount;
   }
@@ -0,0 +1,154 @@
+package live.thought.rationalize;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The transactions a dry run would have sent, written one per line to a plan
+ * file, with totals for the run and for each funding line. Fees are estimated
+ * from transaction sizes, since the wallet is never asked to fund anything.
+ */
+public class FundingPlan implements Closeable
+{
+  private final PrintWriter      pw;
+  /** Fee rate assumed for estimates, in units of 1e-8 THT per 1000 bytes */
+  private final long             feePerKb;
+  private final List<LineTotals> lines = new ArrayList<LineTotals>();
+  private long                   largeTransactions;
+  private long                   smallTransactions;
+  private long                   inputs;
+  private long                   outputs;
+  private int                    maxInputs;
+  private int                    maxSize;
+  private long                   fees;
+  private long                   sent;
+
+  public FundingPlan(File file, long feePerKb) throws IOException
+  {
+    this.feePerKb = feePerKb;
+    pw = new PrintWriter(file, StandardCharsets.UTF_8.name());
+    pw.println("# transaction,kind,inputs,outputs,input total,output total,estimated bytes,estimated fee");
+  }
+
+  /** Start the totals for the next funding line. */
+  public void addLine(FundingLine line)
+  {
+    lines.add(new LineTotals(lines.size() + 1, line.getAmount(), line.getAccounts()));
+  }
+
+  /**
+   * Record a transaction. A change output is counted if the inputs cover more
+   * than the outputs and the estimated fee, unless the transaction goes
+   * without change; then whatever the outputs don't take is its fee.
+   *
+   * @param large
+   *          whether it spends one large input on several whole actions,
+   *          rather than packing chunks of smaller inputs.
+   * @param changeless
+   *          whether the transaction has no change output.
+   */
+  public void addTransaction(long id, boolean large, List<Utxo> txInputs, Map<String, Long> txOutputs,
+      boolean changeless)
+  {
+    long inputTotal = 0;
+    for (Utxo u : txInputs)
+    {
+      inputTotal += u.getAmount();
+    }
+    long outputTotal = 0;
+    for (long amount : txOutputs.values())
+    {
+      outputTotal += amount;
+    }
+    int  size = PlannedTransaction.estimateSize(txInputs.size(), txOutputs.size());
+    long fee  = size * feePerKb / 1000;
+    if (changeless)
+    {
+      fee = inputTotal - outputTotal;
+    }
+    else if (inputTotal > outputTotal + fee)
+    {
+      size = PlannedTransaction.estimateSize(txInputs.size(), txOutputs.size() + 1);
+      fee = size * feePerKb / 1000;
+    }
+
+    if (large)
+    {
+      largeTransactions++;
+    }
+    else
+    {
+      smallTransactions++;
+    }
+    inputs += txInputs.size();
+    outputs += txOutputs.size();
+    maxInputs = Math.max(maxInputs, txInputs.size());
+    maxSize = Math.max(maxSize, size);
+    fees += fee;
+    pw.println(id + "," + (large ? "large" : "small") + "," + txInputs.size() + "," + txOutputs.size() + ","
+        + Amounts.format(inputTotal) + "," + Amounts.format(outputTotal) + "," + size + "," + Amounts.format(fee));
+  }
+
+  /** Record what an action would have received. */
+  public void funded(FundingAction act, long amount)
+  {
+    LineTotals totals = act.getLine() > 0 ? lines.get(act.getLine() - 1) : null;
+    if (null != totals && amount >= totals.amount)
+    {
+      totals.funded++;
+    }
+    sent += amount;
+  }
+
+  /** Print the run's totals and whether each funding line would be met. */
+  public void report()
+  {
+    long transactions = largeTransactions + smallTransactions;
+    Console.output(String.format("Plan: %d transactions (%d from large unspent, %d packed from smaller inputs).",
+        transactions, largeTransactions, smallTransactions));
+    if (transactions > 0)
+    {
+      Console.output(String.format("  %d inputs (%.1f per transaction, at most %d) and %d outputs, plus change.",
+          inputs, (double) inputs / transactions, maxInputs, outputs));
+      Console.output(String.format("  Largest transaction about %d bytes.", maxSize));
+    }
+    Console.output("  Total sent " + Amounts.format(sent) + " THT, estimated fees " + Amounts.format(fees) + " THT.");
+    boolean satisfied = true;
+    for (LineTotals line : lines)
+    {
+      boolean met = line.funded == line.accounts;
+      satisfied &= met;
+      Console.output(String.format("  Line %d: %d of %d accounts of %s THT funded%s", line.index, line.funded,
+          line.accounts, Amounts.format(line.amount), met ? "." : "  @|red (short)|@"));
+    }
+    Console.output(satisfied ? "Every funding line would be satisfied."
+        : "@|red Not every funding line would be satisfied.|@");
+  }
+
+  @Override
+  public void close()
+  {
+    pw.close();
+  }
+
+  private static class LineTotals
+  {
+    private final int  index;
+    private final long amount;
+    private final long accounts;
+    private long       funded;
+
+    LineTotals(int index, long amount, long accounts)
+    {
+      this.index = index;
+      this.amount = amount;
+      this.accounts = accounts;
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package live.thought.rationalize;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+
+/**
+ * Derives account keys from a seed along a BIP32 path, so a run's keys can be
+ * regenerated from the seed rather than stored. Account <i>index</i> of
+ * funding line <i>line</i> gets the key at path/line'/index'; hardened
+ * derivation keeps a leaked account key from exposing the others. Derived
+ * keys are compressed.
+ * <p>
+ * The seed file keeps the seed and path along with what it takes to name the
+ * accounts again: the run's name prefix, and the amount and number of
+ * accounts of each funding line.
+ */
+public class HdKeyChain
+{
+  public static final String                   DEFAULT_PATH     = "m/0'";
+  private static final int                     SEED_SIZE        = 32;
+  /** Accounts derived at once when exporting */
+  private static final int                     EXPORT_CHUNK     = 10000;
+
+  private static final String                  SEED_PROPERTY    = "seed";
+  private static final String                  PATH_PROPERTY    = "path";
+  private static final String                  TESTNET_PROPERTY = "testnet";
+  private static final String                  PREFIX_PROPERTY  = "prefix";
+  private static final String                  LINES_PROPERTY   = "lines";
+
+  private final byte[]                         seed;
+  private final String                         path;
+  private final boolean                        testnet;
+  private final DeterministicKey               root;
+  /** Parent keys of the funding lines' accounts, by line */
+  private final Map<Integer, DeterministicKey> lines            = new ConcurrentHashMap<Integer, DeterministicKey>();
+
+  /**
+   * @throws IllegalArgumentException
+   *           if the path is not a BIP32 path.
+   */
+  public HdKeyChain(byte[] seed, String path, boolean testnet)
+  {
+    this.seed = seed.clone();
+    this.path = path;
+    this.testnet = testnet;
+    DeterministicKey key = HDKeyDerivation.createMasterPrivateKey(seed);
+    for (ChildNumber n : parsePath(path))
+    {
+      key = HDKeyDerivation.deriveChildKey(key, n);
+    }
+    this.root = key;
+  }
+
+  /** @return a chain with a new random seed. */
+  public static HdKeyChain generate(String path, boolean testnet)
+  {
+    byte[] seed = new byte[SEED_SIZE];
+    new SecureRandom().nextBytes(seed);
+    return new HdKeyChain(seed, path, testnet);
+  }
+
+  /**
+   * @param path
+   *          a path such as m/0'/1, where ' or h marks a hardened step.
+   * @throws IllegalArgumentException
+   *           if the path is not a BIP32 path.
+   */
+  public static List<ChildNumber> parsePath(String path)
+  {
+    String[] steps = path.trim().split("/");
+    if (!"m".equalsIgnoreCase(steps[0]))
+    {
+      throw new IllegalArgumentException("Key path must start with m: " + path);
+    }
+    List<ChildNumber> numbers = new ArrayList<ChildNumber>(steps.length - 1);
+    for (int i = 1; i < steps.length; i++)
+    {
+      String  step     = steps[i];
+      boolean hardened = step.endsWith("'") || step.endsWith("h") || step.endsWith("H");
+      try
+      {
+        int index = Integer.parseInt(hardened ? step.substring(0, step.length() - 1) : step);
+        if (index < 0)
+        {
+          throw new NumberFormatException();
+        }
+        numbers.add(new ChildNumber(index, hardened));
+      }
+      catch (NumberFormatException e)
+      {
+        throw new IllegalArgumentException("Bad step " + step + " in key path " + path);
+      }
+    }
+    return numbers;
+  }
+
+  /** @return the seed in hex. */
+  public String getSeed()
+  {
+    return LocalTransactionBuilder.hex(seed);
+  }
+
+  public String getPath()
+  {
+    return path;
+  }
+
+  /** @return the key of an account. */
+  public PrivateKey derive(int line, int index)
+  {
+    DeterministicKey parent = lines.computeIfAbsent(line,
+        l -> HDKeyDerivation.deriveChildKey(root, new ChildNumber(l, true)));
+    return new PrivateKey(HDKeyDerivation.deriveChildKey(parent, new ChildNumber(index, true)), testnet);
+  }
+
+  /** @return the path of an account's key. */
+  public String path(int line, int index)
+  {
+    return path + "/" + line + "'/" + index + "'";
+  }
+
+  /**
+   * Give an action the key of its account, found from its name, which ends in
+   * -line-index.
+   *
+   * @throws IllegalArgumentException
+   *           if the name doesn't end in a line and index.
+   */
+  public void give(FundingAction act)
+  {
+    String name = act.getName();
+    int    last = name.lastIndexOf('-');
+    int    prev = name.lastIndexOf('-', last - 1);
+    int    line;
+    int    index;
+    try
+    {
+      line = Integer.parseInt(name.substring(prev + 1, last));
+      index = Integer.parseInt(name.substring(last + 1));
+    }
+    catch (RuntimeException e)
+    {
+      throw new IllegalArgumentException("No funding line and index in account name " + name);
+    }
+    PrivateKey key = derive(line, index);
+    act.setPrivateKey(key.toString());
+    act.setPublicKey(key.getAddress());
+    act.setKeyPath(path(line, index));
+  }
+
+  /**
+   * Write the seed file of a new run. An existing file is never replaced, since
+   * it may be the only copy of an earlier run's keys.
+   *
+   * @param prefix
+   *          the run's account name prefix, including its timestamp.
+   */
+  public void save(File file, String prefix, List<FundingLine> fundingLines) throws IOException
+  {
+    Properties props = new Properties();
+    props.setProperty(SEED_PROPERTY, getSeed());
+    props.setProperty(PATH_PROPERTY, path);
+    props.setProperty(TESTNET_PROPERTY, Boolean.toString(testnet));
+    props.setProperty(PREFIX_PROPERTY, prefix);
+    props.setProperty(LINES_PROPERTY, fundingLines.stream()
+        .map(l -> Amounts.format(l.getAmount()) + ":" + l.getAccounts()).collect(Collectors.joining(",")));
+    try (OutputStream out = Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE, StandardOpenOption.SYNC))
+    {
+      props.store(out, "Rationalize account key seed.  Keep it as safe as a wallet backup.");
+    }
+  }
+
+  /**
+   * Regenerate every account of the run whose seed file is given, writing
+   * lines of name,private key,address,amount like a results file.
+   *
+   * @return the number of accounts written.
+   * @throws IllegalArgumentException
+   *           if the seed file is incomplete.
+   */
+  public static long export(File seedFile, File out) throws IOException
+  {
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(seedFile))
+    {
+      props.load(in);
+    }
+    String seed   = props.getProperty(SEED_PROPERTY);
+    String prefix = props.getProperty(PREFIX_PROPERTY);
+    String lines  = props.getProperty(LINES_PROPERTY);
+    if (null == seed || null == prefix || null == lines)
+    {
+      throw new IllegalArgumentException("Incomplete seed file " + seedFile);
+    }
+    HdKeyChain chain = new HdKeyChain(LocalTransactionBuilder.bytes(seed),
+        props.getProperty(PATH_PROPERTY, DEFAULT_PATH), Boolean.parseBoolean(props.getProperty(TESTNET_PROPERTY)));
+
+    long written = 0;
+    try (BufferedWriter writer = new BufferedWriter(
+        new OutputStreamWriter(Files.newOutputStream(out.toPath()), StandardCharsets.UTF_8)))
+    {
+      String[] fundingLines = lines.isEmpty() ? new String[0] : lines.split(",");
+      for (int l = 1; l <= fundingLines.length; l++)
+      {
+        String[] f        = fundingLines[l - 1].split(":");
+        long     amount   = Amounts.parse(f[0]);
+        int      accounts = Integer.parseInt(f[1]);
+        int      line     = l;
+        for (int start = 1; start <= accounts; start += EXPORT_CHUNK)
+        {
+          // Derive a chunk across the cores, then write it in order.
+          List<FundingAction> chunk = IntStream.rangeClosed(start, Math.min(accounts, start + EXPORT_CHUNK - 1))
+              .parallel().mapToObj(i -> {
+                FundingAction act = new FundingAction(prefix + "-" + line + "-" + i, amount, line);
+                PrivateKey    key = chain.derive(line, i);
+                act.setPrivateKey(key.toString());
+                act.setPublicKey(key.getAddress());
+                return act;
+              }).collect(Collectors.toList());
+          for (FundingAction act : chunk)
+          {
+            writer.write(ResultsWriter.line(act));
+          }
+          written += chunk.size();
+        }
+      }
+    }
+    return written;
+  }
+}
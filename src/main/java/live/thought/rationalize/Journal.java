@@ -0,0 +1,189 @@
+package live.thought.rationalize;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of a funding run. Every funding line,
+ * generated key, reserved input, built transaction and broadcast txid is
+ * recorded before the run moves on, so an interrupted run can be picked up
+ * again with {@link JournalReplay}.
+ * <p>
+ * Each record is one line of tab-separated fields ending in a CRC32 of the
+ * rest of the line, so a record torn by a crash is detected on replay.
+ * Records are flushed to disk at least every {@link #SYNC_MILLIS}, and
+ * immediately by {@link #sync()} where losing them would be unsafe.
+ */
+public class Journal implements Closeable
+{
+  /** Start of a run: timestamp */
+  public static final String RUN         = "RUN";
+  /** Account keys are derived from a seed, and have no KEY records: seed, path */
+  public static final String SEED        = "SEED";
+  /**
+   * A funding line, whose actions are named prefix-line-index: name prefix,
+   * line, amount, accounts, and the index of the first if it isn't 1
+   */
+  public static final String LINE        = "LINE";
+  /** A funding action: name, amount */
+  public static final String ACTION      = "ACTION";
+  /** A generated account key: name, private key, address */
+  public static final String KEY         = "KEY";
+  /** The unspent cache was rebuilt; the following UTXO records replace it */
+  public static final String CACHE       = "CACHE";
+  /** An unspent output in the cache: txid, vout, amount, confirmations, address */
+  public static final String UTXO        = "UTXO";
+  /** Part of an action paid by a transaction: transaction, name, amount */
+  public static final String PLAN        = "PLAN";
+  /** An input reserved for a transaction: transaction, outpoint */
+  public static final String INPUT       = "INPUT";
+  /** A signed transaction about to be broadcast: transaction, hex */
+  public static final String BUILT       = "BUILT";
+  /** A transaction the daemon accepted: transaction, txid */
+  public static final String SENT        = "SENT";
+  /** A transaction that could not be sent: transaction, reason */
+  public static final String FAILED      = "FAILED";
+  /** An action written to the results file: name */
+  public static final String DONE        = "DONE";
+
+  public static final String SEPARATOR   = "\t";
+  /** Longest time a written record may wait to be forced to disk. */
+  public static final long   SYNC_MILLIS = 1000;
+
+  private final File         file;
+  private final FileChannel  channel;
+  private long               nextTransaction;
+  private long               lastSync    = System.currentTimeMillis();
+  private boolean            dirty       = false;
+
+  private Journal(File file, FileChannel channel, long nextTransaction)
+  {
+    this.file = file;
+    this.channel = channel;
+    this.nextTransaction = nextTransaction;
+  }
+
+  /** Start a new journal, replacing any existing file. */
+  public static Journal create(File file) throws IOException
+  {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    return new Journal(file, channel, 1);
+  }
+
+  /**
+   * Continue an existing journal after replaying it. Anything after the last
+   * valid record, such as a record torn by a crash, is cut off first.
+   */
+  public static Journal resume(File file, JournalReplay replay) throws IOException
+  {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    channel.truncate(replay.getValidLength());
+    channel.position(replay.getValidLength());
+    return new Journal(file, channel, replay.getNextTransaction());
+  }
+
+  /** A journal that records nothing, for dry runs. */
+  public static Journal disabled()
+  {
+    return new Journal(null, null, 1);
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  /** @return a new transaction number for PLAN, INPUT and later records. */
+  public synchronized long nextTransaction()
+  {
+    return nextTransaction++;
+  }
+
+  /**
+   * Append a record. Tabs and line breaks in fields are replaced with spaces.
+   *
+   * @throws UncheckedIOException
+   *           if the record could not be written.
+   */
+  public synchronized void write(String type, Object... fields)
+  {
+    if (null == channel)
+    {
+      return;
+    }
+    StringBuilder sb = new StringBuilder(type);
+    for (Object f : fields)
+    {
+      String field = String.valueOf(f);
+      sb.append(SEPARATOR);
+      for (int i = 0; i < field.length(); i++)
+      {
+        char c = field.charAt(i);
+        sb.append(c == '\t' || c == '\r' || c == '\n' ? ' ' : c);
+      }
+    }
+    String checksum = checksum(sb.toString());
+    sb.append(SEPARATOR).append(checksum).append('\n');
+    try
+    {
+      ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining())
+      {
+        channel.write(buffer);
+      }
+      dirty = true;
+      if (System.currentTimeMillis() - lastSync >= SYNC_MILLIS)
+      {
+        sync();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException("Unable to write journal " + file, e);
+    }
+  }
+
+  /** Force everything written so far to disk. */
+  public synchronized void sync()
+  {
+    if (null == channel || !dirty)
+    {
+      return;
+    }
+    try
+    {
+      channel.force(false);
+      dirty = false;
+      lastSync = System.currentTimeMillis();
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException("Unable to sync journal " + file, e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    sync();
+    if (null != channel)
+    {
+      channel.close();
+    }
+  }
+
+  static String checksum(String record)
+  {
+    CRC32 crc = new CRC32();
+    crc.update(record.getBytes(StandardCharsets.UTF_8));
+    return Long.toHexString(crc.getValue());
+  }
+}
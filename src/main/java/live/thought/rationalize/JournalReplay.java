@@ -0,0 +1,325 @@
+package live.thought.rationalize;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * The state of an interrupted run, rebuilt from its {@link Journal}: the
+ * actions and their keys, the unspent cache as last fetched, and what became
+ * of each transaction. Reading stops at the first damaged record.
+ */
+public class JournalReplay
+{
+  private long                             timestamp;
+  /** Seed and path account keys are derived from, or null if they're random */
+  private String                           seed;
+  private String                           keyPath;
+  private final Map<String, FundingAction> actions         = new LinkedHashMap<String, FundingAction>();
+  private final Set<String>                done            = new HashSet<String>();
+  private final List<Utxo>                 cache           = new ArrayList<Utxo>();
+  private final Map<Long, Transaction>     transactions    = new TreeMap<Long, Transaction>();
+  /** Amounts sent to each action by the transactions known to be sent */
+  private final Map<String, Long>          sent            = new HashMap<String, Long>();
+  private long                             nextTransaction = 1;
+  /** Length in bytes of the journal up to the last valid record. */
+  private long                             validLength     = 0;
+
+  public static JournalReplay read(File file) throws IOException
+  {
+    JournalReplay replay = new JournalReplay();
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file)))
+    {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int                   c;
+      while ((c = in.read()) != -1)
+      {
+        if (c != '\n')
+        {
+          line.write(c);
+          continue;
+        }
+        if (!replay.apply(line.toString(StandardCharsets.UTF_8.name())))
+        {
+          Console.output("@|yellow Damaged journal record at byte " + replay.validLength
+              + "; ignoring the rest of the journal.|@");
+          return replay;
+        }
+        replay.validLength += line.size() + 1;
+        line.reset();
+      }
+      if (line.size() > 0)
+      {
+        Console.output("Ignoring incomplete last journal record.");
+      }
+    }
+    return replay;
+  }
+
+  /** @return false if the record is damaged. */
+  private boolean apply(String line)
+  {
+    int end = line.lastIndexOf(Journal.SEPARATOR);
+    if (end < 0 || !Journal.checksum(line.substring(0, end)).equals(line.substring(end + 1)))
+    {
+      return false;
+    }
+    String[] f = line.substring(0, end).split(Journal.SEPARATOR, -1);
+    try
+    {
+      switch (f[0])
+      {
+        case Journal.RUN:
+          timestamp = Long.parseLong(f[1]);
+          break;
+        case Journal.SEED:
+          seed = f[1];
+          keyPath = f[2];
+          break;
+        case Journal.LINE:
+          addLine(f[1], Integer.parseInt(f[2]), Long.parseLong(f[3]), Integer.parseInt(f[4]),
+              f.length > 5 ? Integer.parseInt(f[5]) : 1);
+          break;
+        case Journal.ACTION:
+          actions.put(f[1], new FundingAction(f[1], Long.parseLong(f[2])));
+          break;
+        case Journal.KEY:
+          FundingAction act = actions.get(f[1]);
+          if (null != act)
+          {
+            act.setPrivateKey(f[2]);
+            act.setPublicKey(f[3]);
+          }
+          break;
+        case Journal.CACHE:
+          cache.clear();
+          break;
+        case Journal.UTXO:
+          cache.add(new Utxo(f[1], Integer.parseInt(f[2]), Long.parseLong(f[3]), Integer.parseInt(f[4]), f[5]));
+          break;
+        case Journal.PLAN:
+          Transaction tx     = transaction(f[1]);
+          long        amount = Long.parseLong(f[3]);
+          tx.amounts.merge(f[2], amount, Long::sum);
+          if (tx.isSent())
+          {
+            sent.merge(f[2], amount, Long::sum);
+          }
+          break;
+        case Journal.INPUT:
+          transaction(f[1]).inputs.add(f[2]);
+          break;
+        case Journal.BUILT:
+          transaction(f[1]).hex = f[2];
+          break;
+        case Journal.SENT:
+          transaction(f[1]).setSent(f[2]);
+          break;
+        case Journal.FAILED:
+          transaction(f[1]).failed = true;
+          break;
+        case Journal.DONE:
+          done.add(f[1]);
+          break;
+        default:
+          Console.debug("Skipping unknown journal record " + f[0], 1);
+      }
+    }
+    catch (RuntimeException e)
+    {
+      // Checksum matched but the fields don't make sense.
+      return false;
+    }
+    return true;
+  }
+
+  /** Add the actions of a funding line, named as {@link ActionIndex} names them. */
+  private void addLine(String prefix, int line, long amount, int accounts, int first)
+  {
+    for (int i = first; i < first + accounts; i++)
+    {
+      String name = prefix + "-" + line + "-" + i;
+      actions.put(name, new FundingAction(name, amount, line));
+    }
+  }
+
+  private Transaction transaction(String field)
+  {
+    long id = Long.parseLong(field);
+    nextTransaction = Math.max(nextTransaction, id + 1);
+    return transactions.computeIfAbsent(id, i -> new Transaction(i, sent));
+  }
+
+  public long getTimestamp()
+  {
+    return timestamp;
+  }
+
+  /** @return the seed in hex account keys are derived from, or null if they're journaled. */
+  public String getSeed()
+  {
+    return seed;
+  }
+
+  public String getKeyPath()
+  {
+    return keyPath;
+  }
+
+  /** @return the run's actions in their original order, with any keys generated. */
+  public Collection<FundingAction> getActions()
+  {
+    return Collections.unmodifiableCollection(actions.values());
+  }
+
+  /** @return whether the action was already written to the results file. */
+  public boolean isDone(String name)
+  {
+    return done.contains(name);
+  }
+
+  public Collection<Transaction> getTransactions()
+  {
+    return Collections.unmodifiableCollection(transactions.values());
+  }
+
+  /** @return the amount already sent to the named action. */
+  public long getSent(String name)
+  {
+    return sent.getOrDefault(name, 0L);
+  }
+
+  /**
+   * @return the last unspent cache fetched, less the inputs of every
+   *         transaction that was built, since those may have been spent.
+   */
+  public List<Utxo> getUnspent()
+  {
+    Set<String> spent = new HashSet<String>();
+    for (Transaction tx : transactions.values())
+    {
+      if (tx.isBuilt())
+      {
+        spent.addAll(tx.inputs);
+      }
+    }
+    List<Utxo> unspent = new ArrayList<Utxo>(cache.size());
+    for (Utxo u : cache)
+    {
+      if (!spent.contains(u.getOutpoint()))
+      {
+        unspent.add(u);
+      }
+    }
+    return unspent;
+  }
+
+  public long getNextTransaction()
+  {
+    return nextTransaction;
+  }
+
+  public long getValidLength()
+  {
+    return validLength;
+  }
+
+  /** What the journal knows about one transaction. */
+  public static class Transaction
+  {
+    private final long              id;
+    private final Map<String, Long> amounts = new LinkedHashMap<String, Long>();
+    private final List<String>      inputs  = new ArrayList<String>();
+    /** The replay's amounts sent by action, which this adds to once sent */
+    private final Map<String, Long> sent;
+    private String                  hex;
+    private String                  txid;
+    private boolean                 failed;
+
+    Transaction(long id, Map<String, Long> sent)
+    {
+      this.id = id;
+      this.sent = sent;
+    }
+
+    public long getId()
+    {
+      return id;
+    }
+
+    /** @return the signed transaction, or null if it was never built. */
+    public String getHex()
+    {
+      return hex;
+    }
+
+    /** @return the txid of the signed transaction, computed locally. */
+    public String getBuiltTxid()
+    {
+      byte[] raw = new byte[hex.length() / 2];
+      for (int i = 0; i < raw.length; i++)
+      {
+        raw[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+      }
+      // Transaction ids are shown byte-reversed.
+      byte[]        hash = Sha256Hash.hashTwice(raw);
+      StringBuilder sb   = new StringBuilder(hash.length * 2);
+      for (int i = hash.length - 1; i >= 0; i--)
+      {
+        sb.append(String.format("%02x", hash[i] & 0xff));
+      }
+      return sb.toString();
+    }
+
+    public boolean isBuilt()
+    {
+      return null != hex;
+    }
+
+    public boolean isSent()
+    {
+      return null != txid;
+    }
+
+    public boolean isFailed()
+    {
+      return failed;
+    }
+
+    /** @return whether the transaction was built but may or may not have been broadcast. */
+    public boolean isUnsettled()
+    {
+      return isBuilt() && !isSent() && !failed;
+    }
+
+    public void setSent(String txid)
+    {
+      if (!isSent())
+      {
+        amounts.forEach((name, amount) -> sent.merge(name, amount, Long::sum));
+      }
+      this.txid = txid;
+    }
+
+    public void setFailed()
+    {
+      this.failed = true;
+    }
+  }
+}
@@ -0,0 +1,361 @@
+package live.thought.rationalize;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON encoder and decoder for talking JSON-RPC to the daemon.
+ * Objects decode to maps, arrays to lists, integers to Long and other
+ * numbers to Double, matching what thought4j hands back. A {@link Pull}
+ * reads a large response a value at a time instead, without building maps
+ * for it.
+ */
+public final class Json
+{
+  private Json()
+  {
+  }
+
+  public static String stringify(Object value)
+  {
+    StringBuilder sb = new StringBuilder();
+    write(sb, value);
+    return sb.toString();
+  }
+
+  public static void write(StringBuilder sb, Object value)
+  {
+    if (null == value)
+    {
+      sb.append("null");
+    }
+    else if (value instanceof String)
+    {
+      writeString(sb, (String) value);
+    }
+    else if (value instanceof Number || value instanceof Boolean)
+    {
+      sb.append(value.toString());
+    }
+    else if (value instanceof Map)
+    {
+      sb.append('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet())
+      {
+        if (!first) sb.append(',');
+        first = false;
+        writeString(sb, e.getKey().toString());
+        sb.append(':');
+        write(sb, e.getValue());
+      }
+      sb.append('}');
+    }
+    else if (value instanceof Collection)
+    {
+      sb.append('[');
+      boolean first = true;
+      for (Object o : (Collection<?>) value)
+      {
+        if (!first) sb.append(',');
+        first = false;
+        write(sb, o);
+      }
+      sb.append(']');
+    }
+    else if (value.getClass().isArray())
+    {
+      sb.append('[');
+      int length = Array.getLength(value);
+      for (int i = 0; i < length; i++)
+      {
+        if (i > 0) sb.append(',');
+        write(sb, Array.get(value, i));
+      }
+      sb.append(']');
+    }
+    else
+    {
+      writeString(sb, value.toString());
+    }
+  }
+
+  private static void writeString(StringBuilder sb, String s)
+  {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      switch (c)
+      {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20)
+          {
+            sb.append(String.format("\\u%04x", (int) c));
+          }
+          else
+          {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+  }
+
+  public static Object parse(String json)
+  {
+    try
+    {
+      return parse(new StringReader(json));
+    }
+    catch (IOException e)
+    {
+      // Can't happen reading a string.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static Object parse(Reader in) throws IOException
+  {
+    PushbackReader reader = new PushbackReader(in, 1);
+    return readValue(reader);
+  }
+
+  private static Object readValue(PushbackReader in) throws IOException
+  {
+    int c = skipWhitespace(in);
+    switch (c)
+    {
+      case '{':
+        return readObject(in);
+      case '[':
+        return readArray(in);
+      case '"':
+        return readString(in);
+      case 't':
+        expect(in, "rue");
+        return Boolean.TRUE;
+      case 'f':
+        expect(in, "alse");
+        return Boolean.FALSE;
+      case 'n':
+        expect(in, "ull");
+        return null;
+      case -1:
+        throw new IOException("Unexpected end of JSON input");
+      default:
+        in.unread(c);
+        return readNumber(in);
+    }
+  }
+
+  private static Map<String, Object> readObject(PushbackReader in) throws IOException
+  {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    int                 c   = skipWhitespace(in);
+    if (c == '}') return map;
+    while (true)
+    {
+      if (c != '"') throw new IOException("Expected object key, found '" + (char) c + "'");
+      String key = readString(in);
+      if (skipWhitespace(in) != ':') throw new IOException("Expected ':' after object key");
+      map.put(key, readValue(in));
+      c = skipWhitespace(in);
+      if (c == '}') return map;
+      if (c != ',') throw new IOException("Expected ',' or '}' in object");
+      c = skipWhitespace(in);
+    }
+  }
+
+  private static List<Object> readArray(PushbackReader in) throws IOException
+  {
+    List<Object> list = new ArrayList<Object>();
+    int          c    = skipWhitespace(in);
+    if (c == ']') return list;
+    in.unread(c);
+    while (true)
+    {
+      list.add(readValue(in));
+      c = skipWhitespace(in);
+      if (c == ']') return list;
+      if (c != ',') throw new IOException("Expected ',' or ']' in array");
+    }
+  }
+
+  private static String readString(PushbackReader in) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    while (true)
+    {
+      int c = in.read();
+      if (c == -1) throw new IOException("Unterminated string");
+      if (c == '"') return sb.toString();
+      if (c == '\\')
+      {
+        c = in.read();
+        switch (c)
+        {
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'b':
+            sb.append('\b');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'u':
+            char[] hex = new char[4];
+            for (int i = 0; i < 4; i++)
+            {
+              hex[i] = (char) in.read();
+            }
+            sb.append((char) Integer.parseInt(new String(hex), 16));
+            break;
+          default:
+            sb.append((char) c);
+        }
+      }
+      else
+      {
+        sb.append((char) c);
+      }
+    }
+  }
+
+  private static Number readNumber(PushbackReader in) throws IOException
+  {
+    String  number   = readNumberText(in);
+    boolean integral = number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0;
+    return integral ? (Number) Long.valueOf(number) : (Number) Double.valueOf(number);
+  }
+
+  private static String readNumberText(PushbackReader in) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    int           c  = in.read();
+    while (c != -1 && "+-0123456789.eE".indexOf(c) >= 0)
+    {
+      sb.append((char) c);
+      c = in.read();
+    }
+    if (c != -1) in.unread(c);
+    if (sb.length() == 0) throw new IOException("Unexpected character in JSON input: '" + (char) c + "'");
+    return sb.toString();
+  }
+
+  private static void expect(PushbackReader in, String rest) throws IOException
+  {
+    for (int i = 0; i < rest.length(); i++)
+    {
+      if (in.read() != rest.charAt(i)) throw new IOException("Invalid JSON literal");
+    }
+  }
+
+  private static int skipWhitespace(PushbackReader in) throws IOException
+  {
+    int c = in.read();
+    while (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+    {
+      c = in.read();
+    }
+    return c;
+  }
+
+  /**
+   * Reads JSON a value at a time. Objects and arrays are walked with
+   * {@link #begin(char)} and {@link #next(char)}; anything not wanted is
+   * read whole with {@link #value()}.
+   */
+  public static final class Pull
+  {
+    private final PushbackReader in;
+
+    public Pull(Reader in)
+    {
+      this.in = new PushbackReader(in, 1);
+    }
+
+    /** @return the next character that isn't whitespace, without reading it, or -1 at the end. */
+    public int peek() throws IOException
+    {
+      int c = skipWhitespace(in);
+      if (c != -1) in.unread(c);
+      return c;
+    }
+
+    /** Read the opening { or [ of an object or array. */
+    public void begin(char open) throws IOException
+    {
+      int c = skipWhitespace(in);
+      if (c != open) throw new IOException("Expected '" + open + "' in JSON input");
+    }
+
+    /**
+     * Move to the next member of an object or element of an array.
+     *
+     * @param close
+     *          the } or ] that ends it.
+     * @return false once it has ended.
+     */
+    public boolean next(char close) throws IOException
+    {
+      int c = skipWhitespace(in);
+      if (c == close) return false;
+      if (c == -1) throw new IOException("Unexpected end of JSON input");
+      if (c != ',') in.unread(c);
+      return true;
+    }
+
+    /** @return the name of an object member, leaving its value to be read. */
+    public String key() throws IOException
+    {
+      if (skipWhitespace(in) != '"') throw new IOException("Expected object key");
+      String key = readString(in);
+      if (skipWhitespace(in) != ':') throw new IOException("Expected ':' after object key");
+      return key;
+    }
+
+    /** @return a whole value, decoded as {@link Json#parse(Reader)} would. */
+    public Object value() throws IOException
+    {
+      return readValue(in);
+    }
+
+    /** @return a number exactly as written, so amounts need not pass through a double. */
+    public String number() throws IOException
+    {
+      peek();
+      return readNumberText(in);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package live.thought.rationalize;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends many JSON-RPC calls of the same method to the daemon as array
+ * batches, so a bulk operation like importing thousands of keys costs one
+ * HTTP round trip per batch instead of one per call.
+ */
+public class JsonRpcBatch
+{
+  private static final int   BUFFER = 1 << 16;
+
+  private final RpcTransport transport;
+  private final int          batchSize;
+  private final Metrics      metrics;
+
+  public JsonRpcBatch(RpcTransport transport, int batchSize, Metrics metrics)
+  {
+    this.transport = transport;
+    this.batchSize = batchSize;
+    this.metrics = metrics;
+  }
+
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+  /**
+   * Make one call to the given method for each parameter list, batchSize
+   * calls per HTTP request.
+   *
+   * @return one result per parameter list, in the same order.
+   */
+  public List<Result> call(String method, List<Object[]> params) throws IOException
+  {
+    List<Result> results = new ArrayList<Result>(params.size());
+    for (int start = 0; start < params.size(); start += batchSize)
+    {
+      int            end   = Math.min(start + batchSize, params.size());
+      List<Object[]> slice = params.subList(start, end);
+      List<Result>   sent  = null;
+      long           began = System.nanoTime();
+      try
+      {
+        sent = send(method, slice);
+      }
+      finally
+      {
+        int errors = slice.size();
+        if (null != sent)
+        {
+          errors = 0;
+          for (Result r : sent)
+          {
+            if (r.isError()) errors++;
+          }
+        }
+        metrics.recordRequest(method, System.nanoTime() - began, slice.size(), errors);
+      }
+      results.addAll(sent);
+    }
+    return results;
+  }
+
+  private List<Result> send(String method, List<Object[]> params) throws IOException
+  {
+    List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>(params.size());
+    for (int i = 0; i < params.size(); i++)
+    {
+      Map<String, Object> request = new LinkedHashMap<String, Object>();
+      request.put("jsonrpc", "1.0");
+      request.put("id", Integer.valueOf(i));
+      request.put("method", method);
+      request.put("params", params.get(i));
+      requests.add(request);
+    }
+    Console.debug("Sending batch of " + params.size() + " " + method + " calls.", 1);
+
+    // The daemon answers a batch with 200 even if individual calls failed, but
+    // reports malformed batches with an error status and body.
+    Object response = transport.post(Json.stringify(requests).getBytes(StandardCharsets.UTF_8), (status, body) -> {
+      try
+      {
+        return Json.parse(new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8), BUFFER));
+      }
+      catch (IOException e)
+      {
+        throw status == 200 ? e : new IOException("Batch " + method + " failed with HTTP status " + status);
+      }
+    });
+    if (!(response instanceof List))
+    {
+      throw new IOException("Batch " + method + " failed: " + Json.stringify(response));
+    }
+
+    // Responses may come back in any order; put them back in request order.
+    Result[] results = new Result[params.size()];
+    for (Object o : (List<?>) response)
+    {
+      Map<?, ?> entry = o instanceof Map ? (Map<?, ?>) o : Collections.emptyMap();
+      Object    id    = entry.get("id");
+      long      call  = id instanceof Number ? ((Number) id).longValue() : -1;
+      if (call < 0 || call >= results.length || null != results[(int) call])
+      {
+        throw new IOException("Batch " + method + " response has an unexpected call: " + Json.stringify(o));
+      }
+      results[(int) call] = new Result(entry.get("result"), entry.get("error"));
+    }
+    List<Result> ordered = new ArrayList<Result>(results.length);
+    for (int i = 0; i < results.length; i++)
+    {
+      if (null == results[i])
+      {
+        throw new IOException("Batch " + method + " response missing call " + i);
+      }
+      ordered.add(results[i]);
+    }
+    return ordered;
+  }
+
+  /** The outcome of a single call within a batch. */
+  public static class Result
+  {
+    private final Object result;
+    private final Object error;
+
+    Result(Object result, Object error)
+    {
+      this.result = result;
+      this.error = error;
+    }
+
+    public boolean isError()
+    {
+      return null != error;
+    }
+
+    public Object getResult()
+    {
+      return result;
+    }
+
+    public String getError()
+    {
+      return errorMessage(error);
+    }
+  }
+
+  /** @return the message of a JSON-RPC error. */
+  static String errorMessage(Object error)
+  {
+    if (error instanceof Map)
+    {
+      Object message = ((Map<?, ?>) error).get("message");
+      if (null != message) return message.toString();
+    }
+    return Json.stringify(error);
+  }
+}
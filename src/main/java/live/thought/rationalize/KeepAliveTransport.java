@@ -0,0 +1,419 @@
+package live.thought.rationalize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Speaks HTTP/1.1 to the daemon over a pool of kept-alive connections, so a
+ * call costs one request on an open socket rather than a new connection. The
+ * request headers, authorization included, are put together once. Responses
+ * are gzip compressed if the daemon offers it, and are read straight from the
+ * socket, so they are parsed as they arrive.
+ * <p>
+ * At most the given number of connections are open at once; callers beyond
+ * that wait for one to come free. The most recently used connection is
+ * handed out first, so connections the daemon has timed out are seldom
+ * tried, and one left idle for a while is checked before use and put aside if
+ * the daemon has closed it. A request is never sent twice: once it is on its
+ * way the daemon may have carried it out, and a send or key import repeated
+ * after that would not come back as the first one did.
+ */
+public class KeepAliveTransport implements RpcTransport
+{
+  private static final int          BUFFER         = 1 << 16;
+  /** How long a connection can sit idle before it is checked for closing */
+  private static final long         VALIDATE_AFTER = 1000000000L;
+
+  private final String              host;
+  private final int                 port;
+  /** Every request header but the content length */
+  private final byte[]              headers;
+  private final Semaphore           permits;
+  /** Open connections not in use, most recently used first */
+  private final Deque<Connection>   idle           = new LinkedBlockingDeque<Connection>();
+  private volatile boolean          closed;
+
+  /**
+   * @param authorization
+   *          the Authorization header value, or null for none.
+   * @param connections
+   *          the most connections to have open at once.
+   */
+  public KeepAliveTransport(String host, int port, String authorization, int connections)
+  {
+    this.host = host;
+    this.port = port;
+    StringBuilder sb = new StringBuilder("POST / HTTP/1.1\r\nHost: ").append(host).append(':').append(port)
+        .append("\r\n");
+    if (null != authorization)
+    {
+      sb.append("Authorization: ").append(authorization).append("\r\n");
+    }
+    sb.append("Content-Type: application/json\r\nAccept-Encoding: gzip\r\nContent-Length: ");
+    this.headers = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    this.permits = new Semaphore(Math.max(1, connections));
+  }
+
+  /** @return the value of a basic Authorization header, or null without a user. */
+  static String basicAuthorization(String user, String password)
+  {
+    return null == user ? null
+        : "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public <T> T post(byte[] request, ResponseReader<T> reader) throws IOException
+  {
+    try
+    {
+      permits.acquire();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for a connection to " + host + ":" + port);
+    }
+    try
+    {
+      Connection conn;
+      // The daemon closes connections left idle too long; those are found before anything is written to them.
+      while (null != (conn = idle.pollFirst()) && conn.isStale())
+      {
+        Console.debug("Kept-alive connection to " + host + ":" + port + " was closed; trying another.", 2);
+        conn.close();
+      }
+      if (null == conn)
+      {
+        conn = new Connection(host, port);
+      }
+      return exchange(conn, request, reader);
+    }
+    finally
+    {
+      permits.release();
+    }
+  }
+
+  /** Send a request, read its response, and keep the connection if it can be used again. */
+  private <T> T exchange(Connection conn, byte[] request, ResponseReader<T> reader) throws IOException
+  {
+    boolean keep = false;
+    try
+    {
+      conn.out.write(headers);
+      conn.out.write(Integer.toString(request.length).getBytes(StandardCharsets.ISO_8859_1));
+      conn.out.write('\r');
+      conn.out.write('\n');
+      conn.out.write('\r');
+      conn.out.write('\n');
+      conn.out.write(request);
+      conn.out.flush();
+
+      String status = readLine(conn.in);
+      int space = status.indexOf(' ');
+      if (!status.startsWith("HTTP/") || space < 0 || status.length() < space + 4)
+      {
+        throw new IOException("Bad HTTP status line from " + host + ":" + port + ": " + status);
+      }
+      int     code      = Integer.parseInt(status.substring(space + 1, space + 4));
+      boolean keepAlive = status.startsWith("HTTP/1.1");
+      long    length    = -1;
+      boolean chunked   = false;
+      boolean gzip      = false;
+      String  header;
+      while (!(header = readLine(conn.in)).isEmpty())
+      {
+        int colon = header.indexOf(':');
+        if (colon < 0)
+        {
+          continue;
+        }
+        String name  = header.substring(0, colon).trim();
+        String value = header.substring(colon + 1).trim();
+        if ("Content-Length".equalsIgnoreCase(name))
+        {
+          length = Long.parseLong(value);
+        }
+        else if ("Transfer-Encoding".equalsIgnoreCase(name))
+        {
+          chunked = value.toLowerCase().contains("chunked");
+        }
+        else if ("Content-Encoding".equalsIgnoreCase(name))
+        {
+          gzip = value.toLowerCase().contains("gzip");
+        }
+        else if ("Connection".equalsIgnoreCase(name))
+        {
+          keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+        }
+      }
+
+      // Without a length the body runs to the end of the connection.
+      Body body = chunked ? new ChunkedBody(conn.in) : new Body(conn.in, length);
+      T    result;
+      if (gzip && length != 0)
+      {
+        try (InputStream in = new GZIPInputStream(body, BUFFER))
+        {
+          result = reader.read(code, in);
+        }
+      }
+      else
+      {
+        result = reader.read(code, body);
+      }
+      // Whatever the reader left is skipped, so the next response starts in the right place.
+      body.drain();
+      keep = keepAlive && (chunked || length >= 0);
+      return result;
+    }
+    finally
+    {
+      if (keep && !closed)
+      {
+        conn.idleSince = System.nanoTime();
+        idle.offerFirst(conn);
+      }
+      else
+      {
+        conn.close();
+      }
+    }
+  }
+
+  /** @return a header line without its line ending. */
+  private static String readLine(InputStream in) throws IOException
+  {
+    StringBuilder sb = new StringBuilder(64);
+    int           c;
+    while ((c = in.read()) != '\n')
+    {
+      if (c == -1)
+      {
+        throw new EOFException("Connection closed before the response was complete");
+      }
+      if (c != '\r')
+      {
+        sb.append((char) c);
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void close()
+  {
+    closed = true;
+    Connection conn;
+    while (null != (conn = idle.pollFirst()))
+    {
+      conn.close();
+    }
+  }
+
+  private static class Connection
+  {
+    private final Socket       socket;
+    private final InputStream  in;
+    private final OutputStream out;
+    /** When the connection was last put back, by {@link System#nanoTime()} */
+    private long               idleSince;
+
+    Connection(String host, int port) throws IOException
+    {
+      socket = new Socket();
+      try
+      {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        in = new BufferedInputStream(socket.getInputStream(), BUFFER);
+        out = new BufferedOutputStream(socket.getOutputStream(), BUFFER);
+      }
+      catch (IOException e)
+      {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * @return whether a connection left idle for a while has been closed by
+     *         the daemon, or otherwise can't be used.
+     */
+    boolean isStale()
+    {
+      if (System.nanoTime() - idleSince < VALIDATE_AFTER)
+      {
+        return false;
+      }
+      try
+      {
+        socket.setSoTimeout(1);
+        try
+        {
+          // Nothing is owed on an idle connection, so anything readable is the daemon closing it.
+          in.read();
+          return true;
+        }
+        catch (SocketTimeoutException e)
+        {
+          return false;
+        }
+        finally
+        {
+          socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        }
+      }
+      catch (IOException e)
+      {
+        return true;
+      }
+    }
+
+    void close()
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing more to do with it.
+      }
+    }
+  }
+
+  /**
+   * A response body of a known length, or to the end of the connection,
+   * read from the connection without closing it.
+   */
+  private static class Body extends InputStream
+  {
+    protected final InputStream in;
+    /** Bytes left, or negative to read to the end */
+    protected long              remaining;
+
+    Body(InputStream in, long length)
+    {
+      this.in = in;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (remaining == 0)
+      {
+        return -1;
+      }
+      int n = in.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+      if (n < 0)
+      {
+        if (remaining > 0)
+        {
+          throw new EOFException("Connection closed before the response was complete");
+        }
+        remaining = 0;
+        return -1;
+      }
+      if (remaining > 0)
+      {
+        remaining -= n;
+      }
+      return n;
+    }
+
+    /** Read to the end of the body. */
+    void drain() throws IOException
+    {
+      byte[] skip = new byte[4096];
+      while (read(skip, 0, skip.length) >= 0)
+      {
+        // Skipped.
+      }
+    }
+
+    @Override
+    public void close()
+    {
+      // The connection stays open for the next request.
+    }
+  }
+
+  /** A body sent in chunks, each preceded by its length in hex. */
+  private static class ChunkedBody extends Body
+  {
+    private boolean last;
+
+    ChunkedBody(InputStream in)
+    {
+      super(in, 0);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (remaining == 0 && !nextChunk())
+      {
+        return -1;
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n < 0)
+      {
+        throw new EOFException("Connection closed before the response was complete");
+      }
+      remaining -= n;
+      if (remaining == 0)
+      {
+        // The line ending after the chunk's data.
+        readLine(in);
+      }
+      return n;
+    }
+
+    /** @return false once the last chunk and its trailers are read. */
+    private boolean nextChunk() throws IOException
+    {
+      if (last)
+      {
+        return false;
+      }
+      String size = readLine(in);
+      int    ext  = size.indexOf(';');
+      remaining = Long.parseLong((ext < 0 ? size : size.substring(0, ext)).trim(), 16);
+      if (remaining == 0)
+      {
+        last = true;
+        // Trailers, then the blank line that ends them.
+        while (!readLine(in).isEmpty())
+        {
+          // Ignored.
+        }
+        return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package live.thought.rationalize;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Keeps account keys ready ahead of the sends. Generator threads, each with
+ * a random source of its own, make new keys until the look-ahead depth is
+ * reached. An importer thread gives keys to accounts, journals them, and
+ * imports them into the wallet in batches, so no send waits for a key to be
+ * made or imported.
+ * <p>
+ * Accounts funded in order are taken from {@link #take()} with their keys
+ * already imported, up to the look-ahead depth ahead of the send loop.
+ * Accounts picked out of order, like those funded from large inputs, get
+ * their keys from {@link #assign(List)} and are imported in the background;
+ * their transaction must not be broadcast until the import is done.
+ * <p>
+ * With an {@link HdKeyChain}, keys are derived from the accounts' names
+ * instead, a batch at a time across the cores, and are not journaled, since
+ * the seed gives them again.
+ */
+public class KeyPool
+{
+  private static final int                   GENERATORS = 2;
+  /** Marks the end of the accounts to take. */
+  private static final FundingAction         END        = new FundingAction("", 0);
+
+  /** Where keys are imported, or null for a dry run */
+  private final JsonRpcBatch                 batch;
+  private final Journal                      journal;
+  private final Metrics                      metrics;
+  /** Derives the keys, or null to make random ones */
+  private final HdKeyChain                   chain;
+  private final boolean                      testnet;
+  private final int                          batchSize;
+  private final int                          verifyInterval;
+  private final BlockingQueue<PrivateKey>    keys;
+  private final BlockingQueue<FundingAction> ready;
+  private final ExecutorService              generators;
+  /** Runs the imports one at a time, in the order they were asked for */
+  private final ExecutorService              importer;
+  /** Count of keys imported so far, for sampling address checks; only the importer uses it */
+  private long                               keysImported;
+  private volatile boolean                   failed;
+
+  /**
+   * @param batch
+   *          the wallet to import keys into, or null for a dry run, in which
+   *          account names stand in for addresses.
+   * @param chain
+   *          derives the keys, or null to make random ones.
+   * @param lookahead
+   *          how many keys to keep ready, and how many accounts to have
+   *          imported ahead of {@link #take()}.
+   */
+  public KeyPool(JsonRpcBatch batch, Journal journal, Metrics metrics, HdKeyChain chain, boolean testnet,
+      int lookahead, int verifyInterval)
+  {
+    this.batch = batch;
+    this.journal = journal;
+    this.metrics = metrics;
+    this.chain = chain;
+    this.testnet = testnet;
+    this.batchSize = null == batch ? lookahead : Math.min(batch.getBatchSize(), lookahead);
+    this.verifyInterval = verifyInterval;
+    this.keys = new ArrayBlockingQueue<PrivateKey>(lookahead);
+    this.ready = new ArrayBlockingQueue<FundingAction>(lookahead);
+    this.importer = Executors.newSingleThreadExecutor(r -> daemon(r, "rationalize-keys-import"));
+    if (null == batch || null != chain)
+    {
+      this.generators = null;
+    }
+    else
+    {
+      AtomicInteger count = new AtomicInteger();
+      this.generators = Executors.newFixedThreadPool(GENERATORS,
+          r -> daemon(r, "rationalize-keys-" + count.incrementAndGet()));
+      for (int i = 0; i < GENERATORS; i++)
+      {
+        generators.execute(this::generate);
+      }
+    }
+  }
+
+  private static Thread daemon(Runnable r, String name)
+  {
+    Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    return t;
+  }
+
+  /** Make keys until shut down, waiting whenever the pool is full. */
+  private void generate()
+  {
+    SecureRandom random = new SecureRandom();
+    try
+    {
+      while (true)
+      {
+        keys.put(new PrivateKey(testnet, random));
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // Shut down.
+    }
+  }
+
+  /**
+   * Give keys to those of the accounts without one and import them in the
+   * background. Accounts that already have keys are imported again.
+   *
+   * @return a future completing once the keys are in the wallet, or failing
+   *         if they could not be imported.
+   */
+  public CompletableFuture<Void> assign(List<FundingAction> actions)
+  {
+    try
+    {
+      giveKeys(actions);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      CompletableFuture<Void> interrupted = new CompletableFuture<Void>();
+      interrupted.completeExceptionally(e);
+      return interrupted;
+    }
+    if (null == batch)
+    {
+      return CompletableFuture.completedFuture(null);
+    }
+    List<FundingAction> imports = new ArrayList<FundingAction>(actions);
+    return CompletableFuture.runAsync(() -> {
+      try
+      {
+        importKeys(imports);
+      }
+      catch (IOException e)
+      {
+        failed = true;
+        throw new CompletionException(e);
+      }
+    }, importer);
+  }
+
+  /**
+   * Start keying and importing accounts from the source, in its order, for
+   * {@link #take()}. The importer works through the source until it is empty,
+   * so this comes after any {@link #assign(List)} the run needs.
+   *
+   * @param source
+   *          gives the next account, or null when there are no more. It is
+   *          called only from the importer thread.
+   */
+  public void feed(Supplier<FundingAction> source)
+  {
+    importer.execute(() -> {
+      try
+      {
+        List<FundingAction> next = new ArrayList<FundingAction>(batchSize);
+        FundingAction       act;
+        do
+        {
+          next.clear();
+          while (next.size() < batchSize && null != (act = source.get()))
+          {
+            next.add(act);
+          }
+          giveKeys(next);
+          if (null != batch && !next.isEmpty())
+          {
+            importKeys(next);
+          }
+          for (FundingAction a : next)
+          {
+            ready.put(a);
+          }
+        }
+        while (next.size() == batchSize);
+        ready.put(END);
+      }
+      catch (IOException e)
+      {
+        failed = true;
+        // Whatever was imported before is still taken first.
+        putEnd();
+      }
+      catch (RuntimeException e)
+      {
+        e.printStackTrace();
+        failed = true;
+        putEnd();
+      }
+      catch (InterruptedException e)
+      {
+        // Shut down.
+      }
+    });
+  }
+
+  private void putEnd()
+  {
+    try
+    {
+      ready.put(END);
+    }
+    catch (InterruptedException e)
+    {
+      // Shut down.
+    }
+  }
+
+  /**
+   * @return the next account from the source given to {@link #feed}, with
+   *         its key in the wallet, or null once there are no more or an
+   *         import failed.
+   */
+  public FundingAction take()
+  {
+    try
+    {
+      FundingAction act = ready.take();
+      return END == act ? null : act;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /** @return whether any import failed. */
+  public boolean isFailed()
+  {
+    return failed;
+  }
+
+  /** Stop making and importing keys. */
+  public void shutdown()
+  {
+    if (null != generators)
+    {
+      generators.shutdownNow();
+    }
+    importer.shutdownNow();
+  }
+
+  /** Give each account without a key one, journaling random keys. */
+  private void giveKeys(List<FundingAction> actions) throws InterruptedException
+  {
+    if (null != batch && null != chain)
+    {
+      actions.parallelStream().filter(a -> null == a.getPublicKey()).forEach(chain::give);
+      return;
+    }
+    for (FundingAction act : actions)
+    {
+      if (null != act.getPublicKey())
+      {
+        continue;
+      }
+      if (null == batch)
+      {
+        // A dry run only needs a distinct address for each account.
+        act.setPublicKey(act.getName());
+        continue;
+      }
+      PrivateKey accountKey = keys.take();
+      act.setPrivateKey(accountKey.toString());
+      act.setPublicKey(accountKey.getAddress());
+      journal.write(Journal.KEY, act.getName(), act.getPrivateKey(), act.getPublicKey());
+    }
+  }
+
+  /**
+   * Import the accounts' keys into the wallet for safety, once they are in the
+   * journal, and check a sample of them against the addresses the wallet
+   * derives.
+   */
+  private void importKeys(List<FundingAction> actions) throws IOException
+  {
+    long                start   = System.nanoTime();
+    List<Object[]>      imports = new ArrayList<Object[]>(actions.size());
+    List<Object[]>      lookups = new ArrayList<Object[]>();
+    List<FundingAction> sampled = new ArrayList<FundingAction>();
+    for (FundingAction act : actions)
+    {
+      imports.add(new Object[] { act.getPrivateKey(), act.getName(), Boolean.FALSE });
+      if (verifyInterval > 0 && keysImported++ % verifyInterval == 0)
+      {
+        lookups.add(new Object[] { act.getName() });
+        sampled.add(act);
+      }
+    }
+    journal.sync();
+    List<JsonRpcBatch.Result> imported;
+    List<JsonRpcBatch.Result> addresses;
+    try
+    {
+      Console.debug("Importing " + actions.size() + " keys.", 1);
+      imported = batch.call("importprivkey", imports);
+      addresses = batch.call("getaddressesbyaccount", lookups);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      Console.output("@|red Error importing keys. |@");
+      throw e;
+    }
+    finally
+    {
+      metrics.addPhase(Metrics.KEY_IMPORT, System.nanoTime() - start);
+    }
+    for (int i = 0; i < imported.size(); i++)
+    {
+      if (imported.get(i).isError())
+      {
+        throw importFailure("Unable to import key for account " + actions.get(i).getName() + ": "
+            + imported.get(i).getError());
+      }
+    }
+    // Make sure the wallet agrees with the addresses we derived
+    for (int i = 0; i < addresses.size(); i++)
+    {
+      JsonRpcBatch.Result result = addresses.get(i);
+      FundingAction       act    = sampled.get(i);
+      if (result.isError() || !((List<?>) result.getResult()).contains(act.getPublicKey()))
+      {
+        throw importFailure(
+            "Wallet address for account " + act.getName() + " does not match derived address " + act.getPublicKey());
+      }
+    }
+  }
+
+  private static IOException importFailure(String message)
+  {
+    Console.output("@|red " + message + "|@");
+    return new IOException(message);
+  }
+}
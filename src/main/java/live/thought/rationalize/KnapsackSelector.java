@@ -0,0 +1,136 @@
+package live.thought.rationalize;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Randomized approximation of the smallest set of outputs whose total
+ * reaches the target, compared against the single smallest output larger
+ * than the target. This keeps change small without an exact match.
+ */
+public class KnapsackSelector implements CoinSelector
+{
+  /** Largest outputs below the target considered, to bound each pass. */
+  private static final int    MAX_CANDIDATES = 2000;
+  private static final int    ITERATIONS     = 1000;
+
+  private final long          budgetMillis;
+  private final CoinSelector  fallback;
+  private final Random        random         = new Random();
+
+  public KnapsackSelector(long budgetMillis, CoinSelector fallback)
+  {
+    this.budgetMillis = budgetMillis;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public List<Utxo> select(UnspentIndex cache, long amount, long allowance)
+  {
+    long       target       = amount + allowance;
+    Utxo       lowestLarger = cache.smallestAbove(target);
+    List<Utxo> candidates   = new ArrayList<Utxo>();
+    long       smallerTotal = 0;
+    for (Iterator<Utxo> i = cache.descendingFrom(target, true); i.hasNext() && candidates.size() < MAX_CANDIDATES;)
+    {
+      Utxo u = i.next();
+      if (u.getAmount() == target)
+      {
+        // Exact match on a single output.
+        cache.remove(u);
+        List<Utxo> selected = new ArrayList<Utxo>();
+        selected.add(u);
+        return selected;
+      }
+      candidates.add(u);
+      smallerTotal += u.getAmount();
+    }
+
+    List<Utxo> selected = new ArrayList<Utxo>();
+    if (smallerTotal < target)
+    {
+      if (null == lowestLarger)
+      {
+        return fallback.select(cache, amount, allowance);
+      }
+      selected.add(lowestLarger);
+    }
+    else
+    {
+      boolean[] best      = approximateBestSubset(candidates, target, smallerTotal);
+      long      bestTotal = 0;
+      for (int i = 0; i < best.length; i++)
+      {
+        if (best[i]) bestTotal += candidates.get(i).getAmount();
+      }
+      if (null != lowestLarger && lowestLarger.getAmount() <= bestTotal)
+      {
+        selected.add(lowestLarger);
+      }
+      else
+      {
+        for (int i = 0; i < best.length; i++)
+        {
+          if (best[i]) selected.add(candidates.get(i));
+        }
+      }
+    }
+    for (Utxo u : selected)
+    {
+      cache.remove(u);
+    }
+    Console.debug("Knapsack selected " + selected.size() + " inputs for " + Amounts.format(target) + ".", 1);
+    return selected;
+  }
+
+  private boolean[] approximateBestSubset(List<Utxo> candidates, long target, long total)
+  {
+    int       n         = candidates.size();
+    boolean[] best      = new boolean[n];
+    long      bestTotal = total;
+    long      deadline  = System.nanoTime() + budgetMillis * 1000000L;
+    // Start from everything, which is known to reach the target.
+    for (int i = 0; i < n; i++)
+    {
+      best[i] = true;
+    }
+
+    for (int rep = 0; rep < ITERATIONS && bestTotal != target; rep++)
+    {
+      if (System.nanoTime() > deadline)
+      {
+        Console.debug("Knapsack ran out of time after " + rep + " iterations.", 1);
+        break;
+      }
+      boolean[] included = new boolean[n];
+      long      current  = 0;
+      boolean   reached  = false;
+      // The first pass includes outputs at random, the second fills in the rest.
+      for (int pass = 0; pass < 2 && !reached; pass++)
+      {
+        for (int i = 0; i < n; i++)
+        {
+          if (pass == 0 ? random.nextBoolean() : !included[i])
+          {
+            current += candidates.get(i).getAmount();
+            included[i] = true;
+            if (current >= target)
+            {
+              reached = true;
+              if (current < bestTotal)
+              {
+                bestTotal = current;
+                best = included.clone();
+              }
+              current -= candidates.get(i).getAmount();
+              included[i] = false;
+            }
+          }
+        }
+      }
+    }
+    return best;
+  }
+}
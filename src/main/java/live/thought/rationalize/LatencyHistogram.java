@@ -0,0 +1,115 @@
+package live.thought.rationalize;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in microseconds in log-linear buckets, in the manner of
+ * HdrHistogram: exact below 128 us, and within about 1.5% above that, up to
+ * hours. Recording is lock-free and safe from any thread.
+ */
+public class LatencyHistogram
+{
+  /** Buckets per power of two once values outgrow the exact range. */
+  private static final int      SUB_BUCKETS = 64;
+  private static final int      BUCKETS     = SUB_BUCKETS * (Long.SIZE - 6);
+
+  private final AtomicLongArray counts      = new AtomicLongArray(BUCKETS);
+  private final LongAdder       count       = new LongAdder();
+  private final LongAdder       sum         = new LongAdder();
+  private final AtomicLong      max         = new AtomicLong();
+
+  public void record(long micros)
+  {
+    long value = Math.max(0, micros);
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  public long getCount()
+  {
+    return count.sum();
+  }
+
+  /** @return the total of all recorded values, in microseconds. */
+  public long getSum()
+  {
+    return sum.sum();
+  }
+
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  public long getMean()
+  {
+    long n = getCount();
+    return n == 0 ? 0 : getSum() / n;
+  }
+
+  /**
+   * @param fraction
+   *          between 0 and 1, such as 0.99 for the 99th percentile.
+   * @return the highest value that could be in the bucket the percentile
+   *         falls in, or 0 if nothing was recorded.
+   */
+  public long getPercentile(double fraction)
+  {
+    long n = getCount();
+    if (n == 0)
+    {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += counts.get(i);
+      if (seen >= rank)
+      {
+        return Math.min(highest(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * @return how many recorded values were at most the given value, counting
+   *         only buckets that lie wholly at or below it, so the count may
+   *         fall short by a bucket but never overstates.
+   */
+  public long getCountAtOrBelow(long micros)
+  {
+    long total = 0;
+    for (int i = 0; i < counts.length() && highest(i) <= micros; i++)
+    {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  private static int index(long value)
+  {
+    if (value < 2 * SUB_BUCKETS)
+    {
+      return (int) value;
+    }
+    // Keep the top seven bits of the value: the bucket's power of two and its slot within it.
+    int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - 7;
+    return SUB_BUCKETS * (shift + 1) + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  private static long highest(int index)
+  {
+    if (index < 2 * SUB_BUCKETS)
+    {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    return ((long) (index % SUB_BUCKETS + SUB_BUCKETS + 1) << shift) - 1;
+  }
+}
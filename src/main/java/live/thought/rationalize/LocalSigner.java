@@ -0,0 +1,140 @@
+package live.thought.rationalize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.core.Base58;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+import live.thought.thought4j.ThoughtRPCClient;
+
+/**
+ * Signs locally built transactions in place of signrawtransaction, with the
+ * source addresses' keys loaded once at startup. Each input gets a SIGHASH_ALL
+ * signature for its P2PKH output; the inputs of a transaction are signed in
+ * parallel on the common fork-join pool, so signing keeps up with as many
+ * cores as there are.
+ */
+public class LocalSigner
+{
+  private static final int         SIGHASH_ALL = 1;
+
+  private final int                addressVersion;
+  /** Signing keys by address */
+  private final Map<String, ECKey> keys;
+
+  private LocalSigner(int addressVersion, Map<String, ECKey> keys)
+  {
+    this.addressVersion = addressVersion;
+    this.keys = keys;
+  }
+
+  /**
+   * Load the keys of the source addresses, from the key file if there is one,
+   * otherwise from the wallet with dumpprivkey.
+   *
+   * @param keyFile
+   *          a file of WIF private keys, one per line, or null.
+   * @throws IOException
+   *           if the key file can't be read, or there is no key for one of
+   *           the addresses.
+   */
+  public static LocalSigner load(ThoughtRPCClient client, String[] addresses, File keyFile, boolean testnet)
+      throws IOException
+  {
+    int                addressVersion = PrivateKey.addressVersion(testnet);
+    Map<String, ECKey> byAddress      = new HashMap<String, ECKey>();
+    if (null != keyFile)
+    {
+      for (String line : Files.readAllLines(keyFile.toPath(), StandardCharsets.UTF_8))
+      {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#"))
+        {
+          ECKey key = fromWif(line, keyFile.getPath());
+          byAddress.put(Base58.encodeChecked(addressVersion, key.getPubKeyHash()), key);
+        }
+      }
+    }
+    Map<String, ECKey> keys = new HashMap<String, ECKey>();
+    for (String address : addresses)
+    {
+      ECKey key = null != keyFile ? byAddress.get(address) : fromWif(client.dumpPrivKey(address), address);
+      if (null == key || !address.equals(Base58.encodeChecked(addressVersion, key.getPubKeyHash())))
+      {
+        throw new IOException("No private key for source address " + address);
+      }
+      keys.put(address, key);
+    }
+    return new LocalSigner(addressVersion, keys);
+  }
+
+  /** @return the key of a WIF private key, compressed if the WIF says so. */
+  private static ECKey fromWif(String wif, String source) throws IOException
+  {
+    byte[] decoded;
+    try
+    {
+      decoded = Base58.decodeChecked(wif);
+    }
+    catch (AddressFormatException e)
+    {
+      throw new IOException("Bad private key from " + source);
+    }
+    boolean compressed = decoded.length == 34 && decoded[33] == 1;
+    if (decoded.length != 33 && !compressed)
+    {
+      throw new IOException("Bad private key from " + source);
+    }
+    return ECKey.fromPrivate(Arrays.copyOfRange(decoded, 1, 33), compressed);
+  }
+
+  /**
+   * @return the signed transaction.
+   * @throws IllegalStateException
+   *           if an input isn't from one of the source addresses.
+   */
+  public String sign(LocalTransactionBuilder.Built tx)
+  {
+    List<Utxo> inputs     = tx.getInputs();
+    byte[][]   scriptSigs = new byte[inputs.size()][];
+    IntStream.range(0, inputs.size()).parallel().forEach(i -> scriptSigs[i] = scriptSig(tx, i));
+    return LocalTransactionBuilder.hex(tx.serialize(scriptSigs));
+  }
+
+  /** @return &lt;signature&gt; &lt;public key&gt; for the input. */
+  private byte[] scriptSig(LocalTransactionBuilder.Built tx, int input)
+  {
+    String address = tx.getInputs().get(input).getAddress();
+    ECKey  key     = keys.get(address);
+    if (null == key)
+    {
+      throw new IllegalStateException("No private key for input address " + address);
+    }
+    // The input being signed carries the script it spends; the others are empty.
+    byte[][] scripts = new byte[tx.getInputs().size()][];
+    scripts[input] = LocalTransactionBuilder.script(address, addressVersion);
+    byte[] unsigned = tx.serialize(scripts);
+    byte[] preimage = Arrays.copyOf(unsigned, unsigned.length + 4);
+    preimage[unsigned.length] = SIGHASH_ALL;
+
+    byte[] der       = key.sign(Sha256Hash.twiceOf(preimage)).encodeToDER();
+    byte[] publicKey = key.getPubKey();
+    byte[] scriptSig = new byte[1 + der.length + 1 + 1 + publicKey.length];
+    scriptSig[0] = (byte) (der.length + 1);
+    System.arraycopy(der, 0, scriptSig, 1, der.length);
+    scriptSig[1 + der.length] = SIGHASH_ALL;
+    scriptSig[2 + der.length] = (byte) publicKey.length;
+    System.arraycopy(publicKey, 0, scriptSig, 3 + der.length, publicKey.length);
+    return scriptSig;
+  }
+}
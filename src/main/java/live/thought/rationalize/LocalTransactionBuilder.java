@@ -0,0 +1,266 @@
+package live.thought.rationalize;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.core.Base58;
+
+/**
+ * Builds unsigned transactions without asking the daemon, in place of
+ * createrawtransaction and fundrawtransaction. The inputs are exactly the
+ * ones already reserved for the transaction; the fee is the fee rate applied
+ * to the largest size the transaction can have once signed, and whatever is
+ * left over goes back to the change address. Only pay-to-public-key-hash
+ * addresses are supported.
+ */
+public class LocalTransactionBuilder
+{
+  public static final int  VERSION        = 1;
+  /** Largest P2PKH signature script: a DER signature and an uncompressed public key, each pushed. */
+  public static final int  MAX_SCRIPT_SIG = 1 + 73 + 1 + 65;
+  /** Largest signed size of a P2PKH input: outpoint, script length, script and sequence. */
+  public static final int  MAX_INPUT_SIZE = 36 + 1 + MAX_SCRIPT_SIG + 4;
+  /** Serialized size of a P2PKH output: amount, script length and script. */
+  public static final int  OUTPUT_SIZE    = 8 + 1 + 25;
+  /** Version, input and output counts of up to 252 each, and lock time. */
+  public static final int  OVERHEAD       = 4 + 1 + 1 + 4;
+  /** Change smaller than this is left to the fee rather than paid to an output not worth spending. */
+  public static final long DUST           = 546;
+
+  private final int        addressVersion;
+  private final byte[]     changeScript;
+  private final long       feePerKb;
+
+  /**
+   * @param feePerKb
+   *          fee rate in units of 1e-8 THT per 1000 bytes.
+   * @throws IllegalArgumentException
+   *           if the change address is not a P2PKH address of the network.
+   */
+  public LocalTransactionBuilder(String changeAddress, boolean testnet, long feePerKb)
+  {
+    this.addressVersion = PrivateKey.addressVersion(testnet);
+    this.changeScript = script(changeAddress, addressVersion);
+    this.feePerKb = feePerKb;
+  }
+
+  /**
+   * Serialize a transaction spending the inputs to the outputs, with change.
+   *
+   * @param outputs
+   *          amounts by destination address.
+   * @param changeless
+   *          whether to leave whatever the outputs don't take to the fee
+   *          rather than pay it back as change.
+   * @return the transaction, or null if the inputs can't cover the outputs
+   *         and the fee.
+   */
+  public Built build(List<Utxo> inputs, Map<String, Long> outputs, boolean changeless)
+  {
+    long inputTotal = 0;
+    for (Utxo u : inputs)
+    {
+      inputTotal += u.getAmount();
+    }
+    long outputTotal = 0;
+    for (long amount : outputs.values())
+    {
+      outputTotal += amount;
+    }
+
+    long change = changeless ? 0 : inputTotal - outputTotal - fee(inputs.size(), outputs.size() + 1, feePerKb);
+    if (change < DUST)
+    {
+      // Not worth an output of its own, so it goes to the fee.
+      change = 0;
+      if (inputTotal - outputTotal < fee(inputs.size(), outputs.size(), feePerKb))
+      {
+        return null;
+      }
+    }
+    List<byte[]> scripts = new ArrayList<byte[]>(outputs.size() + 1);
+    List<Long>   amounts = new ArrayList<Long>(outputs.size() + 1);
+    for (Map.Entry<String, Long> e : outputs.entrySet())
+    {
+      scripts.add(script(e.getKey(), addressVersion));
+      amounts.add(e.getValue());
+    }
+    if (change > 0)
+    {
+      scripts.add(changeScript);
+      amounts.add(change);
+    }
+    return new Built(inputs, scripts, amounts, inputTotal - outputTotal - change);
+  }
+
+  /** @return the fee for a transaction at its largest signed size. */
+  public static long fee(int inputCount, int outputCount, long feePerKb)
+  {
+    return fee(4 + varIntSize(inputCount) + inputCount * MAX_INPUT_SIZE + varIntSize(outputCount)
+        + outputCount * OUTPUT_SIZE + 4, feePerKb);
+  }
+
+  /** @return the fee for the given number of bytes. */
+  public static long fee(long size, long feePerKb)
+  {
+    // Round up, so the fee never falls short of the rate.
+    return (size * feePerKb + 999) / 1000;
+  }
+
+  /**
+   * @return OP_DUP OP_HASH160 &lt;public key hash&gt; OP_EQUALVERIFY OP_CHECKSIG
+   * @throws IllegalArgumentException
+   *           if the address is not a P2PKH address with the given version.
+   */
+  static byte[] script(String address, int addressVersion)
+  {
+    byte[] decoded;
+    try
+    {
+      decoded = Base58.decodeChecked(address);
+    }
+    catch (AddressFormatException e)
+    {
+      throw new IllegalArgumentException("Not an address: " + address);
+    }
+    if (decoded.length != 21 || (decoded[0] & 0xff) != addressVersion)
+    {
+      throw new IllegalArgumentException("Not a pay-to-public-key-hash address: " + address);
+    }
+    byte[] script = new byte[25];
+    script[0] = (byte) 0x76;
+    script[1] = (byte) 0xa9;
+    script[2] = 20;
+    System.arraycopy(decoded, 1, script, 3, 20);
+    script[23] = (byte) 0x88;
+    script[24] = (byte) 0xac;
+    return script;
+  }
+
+  static void writeInt(ByteArrayOutputStream tx, int value)
+  {
+    tx.write(value);
+    tx.write(value >>> 8);
+    tx.write(value >>> 16);
+    tx.write(value >>> 24);
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream tx, int value)
+  {
+    if (value < 0xfd)
+    {
+      tx.write(value);
+    }
+    else if (value <= 0xffff)
+    {
+      tx.write(0xfd);
+      tx.write(value);
+      tx.write(value >>> 8);
+    }
+    else
+    {
+      tx.write(0xfe);
+      writeInt(tx, value);
+    }
+  }
+
+  private static int varIntSize(int value)
+  {
+    return value < 0xfd ? 1 : value <= 0xffff ? 3 : 5;
+  }
+
+  static String hex(byte[] bytes)
+  {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+      chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+    }
+    return new String(chars);
+  }
+
+  static byte[] bytes(String hex)
+  {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      bytes[i] = (byte) (Character.digit(hex.charAt(2 * i), 16) << 4 | Character.digit(hex.charAt(2 * i + 1), 16));
+    }
+    return bytes;
+  }
+
+  /** A transaction ready to be signed, and the fee it leaves. */
+  public static class Built
+  {
+    private final List<Utxo>   inputs;
+    private final List<byte[]> scripts;
+    private final List<Long>   amounts;
+    private final long         fee;
+
+    Built(List<Utxo> inputs, List<byte[]> scripts, List<Long> amounts, long fee)
+    {
+      this.inputs = inputs;
+      this.scripts = scripts;
+      this.amounts = amounts;
+      this.fee = fee;
+    }
+
+    public List<Utxo> getInputs()
+    {
+      return inputs;
+    }
+
+    /** @return the unsigned transaction, for the wallet to sign. */
+    public String getHex()
+    {
+      return hex(serialize(new byte[inputs.size()][]));
+    }
+
+    /**
+     * @param scriptSigs
+     *          each input's signature script, or null to leave it empty.
+     */
+    public byte[] serialize(byte[][] scriptSigs)
+    {
+      ByteArrayOutputStream tx = new ByteArrayOutputStream(10 + inputs.size() * 41 + scripts.size() * OUTPUT_SIZE);
+      writeInt(tx, VERSION);
+      writeVarInt(tx, inputs.size());
+      for (int i = 0; i < inputs.size(); i++)
+      {
+        // Transaction ids are shown byte-reversed.
+        byte[] txid = bytes(inputs.get(i).getTxid());
+        for (int j = txid.length - 1; j >= 0; j--)
+        {
+          tx.write(txid[j]);
+        }
+        writeInt(tx, inputs.get(i).getVout());
+        byte[] scriptSig = null == scriptSigs[i] ? new byte[0] : scriptSigs[i];
+        writeVarInt(tx, scriptSig.length);
+        tx.write(scriptSig, 0, scriptSig.length);
+        writeInt(tx, 0xffffffff);
+      }
+      writeVarInt(tx, scripts.size());
+      for (int i = 0; i < scripts.size(); i++)
+      {
+        long   amount = amounts.get(i);
+        byte[] script = scripts.get(i);
+        writeInt(tx, (int) amount);
+        writeInt(tx, (int) (amount >>> 32));
+        writeVarInt(tx, script.length);
+        tx.write(script, 0, script.length);
+      }
+      writeInt(tx, 0); // lock time
+      return tx.toByteArray();
+    }
+
+    /** @return the fee in units of 1e-8 THT. */
+    public long getFee()
+    {
+      return fee;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package live.thought.rationalize;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import live.thought.thought4j.ThoughtRPCClient;
+import live.thought.thought4j.ThoughtRPCException;
+
+/**
+ * A client that makes its calls through an {@link RpcTransport} and times
+ * every one of them. All of the client's typed methods go through
+ * {@link #query(String, Object...)}, so that covers them all.
+ * {@link #listUtxos(int, int, String...)} lists unspent outputs straight
+ * from the response as it arrives, without decoding each one into a map
+ * first.
+ */
+public class MeteredRPCClient extends ThoughtRPCClient
+{
+  private static final int   BUFFER = 1 << 16;
+
+  private final RpcTransport transport;
+  private final Metrics      metrics;
+
+  public MeteredRPCClient(URL url, RpcTransport transport, Metrics metrics)
+  {
+    super(url);
+    this.transport = transport;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public Object query(String method, Object... o)
+  {
+    return call(method, o, Json.Pull::value);
+  }
+
+  /**
+   * @return the spendable outputs of the addresses with between minconf and
+   *         maxconf confirmations.
+   * @throws ThoughtRPCException
+   *           if the call fails.
+   */
+  public List<Utxo> listUtxos(int minconf, int maxconf, String... addresses)
+  {
+    return call("listunspent", new Object[] { minconf, maxconf, addresses }, MeteredRPCClient::readUtxos);
+  }
+
+  private <T> T call(String method, Object[] params, ValueReader<T> reader)
+  {
+    long    start  = System.nanoTime();
+    boolean failed = true;
+    try
+    {
+      Map<String, Object> request = new LinkedHashMap<String, Object>();
+      request.put("jsonrpc", "1.0");
+      request.put("id", "1");
+      request.put("method", method);
+      request.put("params", params);
+      Response<T> response;
+      try
+      {
+        response = transport.post(Json.stringify(request).getBytes(StandardCharsets.UTF_8),
+            (status, body) -> read(status, body, reader));
+      }
+      catch (IOException e)
+      {
+        // As thought4j does, a daemon that can't be reached is told apart by the cause.
+        throw new ThoughtRPCException("Unable to call " + method + ": " + e.getMessage(), e);
+      }
+      if (null != response.error)
+      {
+        throw new ThoughtRPCException(JsonRpcBatch.errorMessage(response.error));
+      }
+      failed = false;
+      return response.result;
+    }
+    finally
+    {
+      metrics.recordRequest(method, System.nanoTime() - start, 1, failed ? 1 : 0);
+    }
+  }
+
+  private static <T> Response<T> read(int status, InputStream body, ValueReader<T> reader) throws IOException
+  {
+    Json.Pull json = new Json.Pull(new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8), BUFFER));
+    try
+    {
+      json.begin('{');
+    }
+    catch (IOException e)
+    {
+      // Errors like a wrong password come back without a JSON-RPC answer.
+      throw status == 200 ? e : new IOException("HTTP status " + status);
+    }
+    Response<T> response = new Response<T>();
+    while (json.next('}'))
+    {
+      switch (json.key())
+      {
+        case "result":
+          response.result = reader.read(json);
+          break;
+        case "error":
+          response.error = json.value();
+          break;
+        default:
+          json.value();
+      }
+    }
+    return response;
+  }
+
+  /** @return the spendable outputs of a listunspent result, or null for none. */
+  private static List<Utxo> readUtxos(Json.Pull json) throws IOException
+  {
+    if (json.peek() == 'n')
+    {
+      json.value();
+      return null;
+    }
+    List<Utxo> utxos = new ArrayList<Utxo>();
+    json.begin('[');
+    while (json.next(']'))
+    {
+      String  txid          = null;
+      String  address       = null;
+      int     vout          = 0;
+      long    amount        = 0;
+      int     confirmations = 0;
+      boolean spendable     = false;
+      boolean solvable      = true;
+      json.begin('{');
+      while (json.next('}'))
+      {
+        switch (json.key())
+        {
+          case "txid":
+            txid = (String) json.value();
+            break;
+          case "vout":
+            vout = Integer.parseInt(json.number());
+            break;
+          case "address":
+            address = (String) json.value();
+            break;
+          case "amount":
+            // Exactly as the daemon wrote it, rather than through a double.
+            amount = Amounts.parse(json.number());
+            break;
+          case "confirmations":
+            confirmations = Integer.parseInt(json.number());
+            break;
+          case "spendable":
+            spendable = Boolean.TRUE.equals(json.value());
+            break;
+          case "solvable":
+            solvable = !Boolean.FALSE.equals(json.value());
+            break;
+          default:
+            json.value();
+        }
+      }
+      if (spendable && solvable)
+      {
+        utxos.add(new Utxo(txid, vout, amount, confirmations, address));
+      }
+    }
+    return utxos;
+  }
+
+  /** Reads the result of a call. */
+  private interface ValueReader<T>
+  {
+    T read(Json.Pull json) throws IOException;
+  }
+
+  private static class Response<T>
+  {
+    private T      result;
+    private Object error;
+  }
+}
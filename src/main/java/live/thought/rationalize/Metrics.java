@@ -0,0 +1,222 @@
+package live.thought.rationalize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings for a run: latency, call and error counts for each RPC method,
+ * time spent in each phase, and progress through the actions. Written out at
+ * the end of the run as JSON and in Prometheus text format.
+ * <p>
+ * Phases can overlap; key imports and cache refills made while sending are
+ * counted both in their own phase and in the sending phase.
+ */
+public class Metrics
+{
+  public static final String             CACHE_FILL    = "cache_fill";
+  public static final String             KEY_IMPORT    = "key_import";
+  public static final String             LARGE_UNSPENT = "large_unspent";
+  public static final String             SMALL_SENDS   = "small_sends";
+  /** Waiting for the last transactions and writing their results. */
+  public static final String             FINISH        = "finish";
+
+  /** Upper bounds of the Prometheus histogram buckets, in seconds. */
+  private static final double[]          BUCKETS       = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+      1, 2.5, 5, 10, 30, 60 };
+
+  private final long                     started       = System.currentTimeMillis();
+  private final Map<String, MethodStats> methods       = new ConcurrentHashMap<String, MethodStats>();
+  private final Map<String, LongAdder>   phases        = new ConcurrentHashMap<String, LongAdder>();
+  private final LongAdder                actionsDone   = new LongAdder();
+  private volatile long                  actionsTotal;
+  private ScheduledExecutorService       progress;
+
+  /**
+   * Record one HTTP request to the daemon.
+   *
+   * @param calls
+   *          number of calls in the request, more than one for a batch.
+   * @param errors
+   *          number of those calls that failed.
+   */
+  public void recordRequest(String method, long nanos, int calls, int errors)
+  {
+    MethodStats stats = methods.computeIfAbsent(method, m -> new MethodStats());
+    stats.requests.increment();
+    stats.calls.add(calls);
+    stats.errors.add(errors);
+    stats.latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  /** Add time spent in a phase. */
+  public void addPhase(String phase, long nanos)
+  {
+    phases.computeIfAbsent(phase, p -> new LongAdder()).add(nanos);
+  }
+
+  /** Count an action whose result has been written. */
+  public void actionDone()
+  {
+    actionsDone.increment();
+  }
+
+  /**
+   * Print a progress line every so many seconds until {@link #stopProgress()}.
+   *
+   * @param total
+   *          number of actions to be written from now on.
+   */
+  public synchronized void startProgress(long total, int intervalSeconds)
+  {
+    actionsTotal = total;
+    if (intervalSeconds <= 0 || null != progress)
+    {
+      return;
+    }
+    long startDone   = actionsDone.sum();
+    long startMillis = System.currentTimeMillis();
+    progress = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "rationalize-progress");
+      t.setDaemon(true);
+      return t;
+    });
+    progress.scheduleAtFixedRate(() -> {
+      long   done    = actionsDone.sum() - startDone;
+      double seconds = (System.currentTimeMillis() - startMillis) / 1000.0;
+      double rate    = seconds > 0 ? done / seconds : 0;
+      String eta     = rate > 0 ? duration((long) ((actionsTotal - done) / rate)) : "unknown";
+      Console.output(String.format("Progress: %d of %d actions, %.1f actions/s, ETA %s", done, actionsTotal, rate, eta));
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void stopProgress()
+  {
+    if (null != progress)
+    {
+      progress.shutdownNow();
+      progress = null;
+    }
+  }
+
+  public void writeJson(File file) throws IOException
+  {
+    Map<String, Object> run = new LinkedHashMap<String, Object>();
+    run.put("elapsed_ms", System.currentTimeMillis() - started);
+    run.put("actions_total", actionsTotal);
+    run.put("actions_done", actionsDone.sum());
+
+    Map<String, Object> rpc = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, MethodStats> e : new TreeMap<String, MethodStats>(methods).entrySet())
+    {
+      MethodStats         s = e.getValue();
+      Map<String, Object> m = new LinkedHashMap<String, Object>();
+      m.put("requests", s.requests.sum());
+      m.put("calls", s.calls.sum());
+      m.put("errors", s.errors.sum());
+      m.put("total_us", s.latency.getSum());
+      m.put("mean_us", s.latency.getMean());
+      m.put("p50_us", s.latency.getPercentile(0.5));
+      m.put("p90_us", s.latency.getPercentile(0.9));
+      m.put("p99_us", s.latency.getPercentile(0.99));
+      m.put("p999_us", s.latency.getPercentile(0.999));
+      m.put("max_us", s.latency.getMax());
+      rpc.put(e.getKey(), m);
+    }
+
+    Map<String, Object> phaseMillis = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(phases).entrySet())
+    {
+      phaseMillis.put(e.getKey(), TimeUnit.NANOSECONDS.toMillis(e.getValue().sum()));
+    }
+
+    Map<String, Object> all = new LinkedHashMap<String, Object>();
+    all.put("run", run);
+    all.put("rpc", rpc);
+    all.put("phases_ms", phaseMillis);
+    try (PrintWriter pw = new PrintWriter(file, StandardCharsets.UTF_8.name()))
+    {
+      pw.println(Json.stringify(all));
+    }
+  }
+
+  public void writePrometheus(File file) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    Map<String, MethodStats> sorted = new TreeMap<String, MethodStats>(methods);
+    header(sb, "rationalize_rpc_requests_total", "counter", "HTTP requests made to the daemon.");
+    sorted.forEach((m, s) -> sample(sb, "rationalize_rpc_requests_total", "method", m, s.requests.sum()));
+    header(sb, "rationalize_rpc_calls_total", "counter", "RPC calls made, counting each call in a batch.");
+    sorted.forEach((m, s) -> sample(sb, "rationalize_rpc_calls_total", "method", m, s.calls.sum()));
+    header(sb, "rationalize_rpc_errors_total", "counter", "RPC calls that failed.");
+    sorted.forEach((m, s) -> sample(sb, "rationalize_rpc_errors_total", "method", m, s.errors.sum()));
+
+    header(sb, "rationalize_rpc_latency_seconds", "histogram", "Time taken by each HTTP request to the daemon.");
+    for (Map.Entry<String, MethodStats> e : sorted.entrySet())
+    {
+      LatencyHistogram h     = e.getValue().latency;
+      String           label = "method=\"" + e.getKey() + "\"";
+      for (double le : BUCKETS)
+      {
+        sb.append("rationalize_rpc_latency_seconds_bucket{").append(label).append(",le=\"")
+            .append(BigDecimal.valueOf(le).stripTrailingZeros().toPlainString()).append("\"} ")
+            .append(h.getCountAtOrBelow(Math.round(le * 1000000))).append('\n');
+      }
+      sb.append("rationalize_rpc_latency_seconds_bucket{").append(label).append(",le=\"+Inf\"} ").append(h.getCount())
+          .append('\n');
+      sb.append("rationalize_rpc_latency_seconds_sum{").append(label).append("} ").append(h.getSum() / 1e6)
+          .append('\n');
+      sb.append("rationalize_rpc_latency_seconds_count{").append(label).append("} ").append(h.getCount())
+          .append('\n');
+    }
+
+    header(sb, "rationalize_phase_seconds", "gauge", "Time spent in each phase of the run.");
+    new TreeMap<String, LongAdder>(phases)
+        .forEach((p, t) -> sample(sb, "rationalize_phase_seconds", "phase", p, t.sum() / 1e9));
+    header(sb, "rationalize_actions", "gauge", "Actions to be written when sending started.");
+    sb.append("rationalize_actions ").append(actionsTotal).append('\n');
+    header(sb, "rationalize_actions_done_total", "counter", "Actions written to the results file.");
+    sb.append("rationalize_actions_done_total ").append(actionsDone.sum()).append('\n');
+    header(sb, "rationalize_run_seconds", "gauge", "Time since the run started.");
+    sb.append("rationalize_run_seconds ").append((System.currentTimeMillis() - started) / 1000.0).append('\n');
+
+    try (PrintWriter pw = new PrintWriter(file, StandardCharsets.UTF_8.name()))
+    {
+      pw.print(sb);
+    }
+  }
+
+  private static void header(StringBuilder sb, String name, String type, String help)
+  {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder sb, String name, String label, String value, Object sample)
+  {
+    sb.append(name).append('{').append(label).append("=\"").append(value).append("\"} ").append(sample).append('\n');
+  }
+
+  private static String duration(long seconds)
+  {
+    return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+  }
+
+  private static class MethodStats
+  {
+    private final LongAdder        requests = new LongAdder();
+    private final LongAdder        calls    = new LongAdder();
+    private final LongAdder        errors   = new LongAdder();
+    private final LatencyHistogram latency  = new LatencyHistogram();
+  }
+}
@@ -0,0 +1,178 @@
+package live.thought.rationalize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs one funding file across several wallet daemons at once. Every
+ * funding line is split between the nodes, each taking a contiguous range of
+ * its accounts, so the accounts are named just as a single daemon would name
+ * them. Each node is funded by a {@link Rationalize} of its own, on a thread
+ * of its own, from its own source addresses and with its own journal; the
+ * results of all of them go to the one results file.
+ * <p>
+ * With derived keys, one seed covers the whole run, since the keys follow
+ * the account names.
+ */
+public class NodeFanout
+{
+  private NodeFanout()
+  {
+  }
+
+  public static void run(Config config)
+  {
+    List<Config>  nodes      = config.getNodes();
+    long          timestamp  = System.currentTimeMillis();
+    boolean       resuming   = null != config.getResumeFileName();
+    boolean       planning   = null != config.getPlanFileName();
+    File          outputFile = new File(config.getOutputFileName());
+    ResultsWriter results    = null;
+    Set<String>   written    = Collections.emptySet();
+    HdKeyChain    keyChain   = null;
+    Console.output(String.format("Spreading the run over %d nodes.", nodes.size()));
+    try
+    {
+      if (resuming)
+      {
+        written = Rationalize.writtenAccounts(outputFile);
+        results = ResultsWriter.resume(outputFile, config.getOutputFormat(), config.getCommitInterval(),
+            config.getCommitRecords());
+      }
+      else if (!planning)
+      {
+        if (Config.HD_KEYS.equals(config.getKeyDerivation()))
+        {
+          keyChain = saveSeed(config, timestamp);
+        }
+        results = ResultsWriter.create(outputFile, config.getOutputFormat(), config.getCommitInterval(),
+            config.getCommitRecords());
+      }
+    }
+    catch (FileAlreadyExistsException e)
+    {
+      Console.output("@|red Seed file " + e.getFile() + " already exists; move it somewhere safe first. |@");
+      return;
+    }
+    catch (IOException e)
+    {
+      Console.output("@|red Unable to start the run: " + e.getMessage() + " |@");
+      return;
+    }
+
+    List<Thread> threads = new ArrayList<Thread>(nodes.size());
+    for (int i = 0; i < nodes.size(); i++)
+    {
+      Rationalize node   = new Rationalize(nodes.get(i), new Share(timestamp, results, written, keyChain, i,
+          nodes.size()));
+      Thread      thread = new Thread(node::run, "rationalize-node-" + (i + 1));
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads)
+    {
+      try
+      {
+        thread.join();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    if (null != results)
+    {
+      try
+      {
+        results.close();
+      }
+      catch (IOException e)
+      {
+        Console.output("@|red " + e.getMessage() + ". Check output file for successful sends. |@");
+      }
+    }
+    Console.output("Every node has finished.");
+  }
+
+  /** Derive the whole run's keys from one seed, saved with every funding line. */
+  private static HdKeyChain saveSeed(Config config, long timestamp) throws IOException
+  {
+    List<FundingLine> fundingLines = new ArrayList<FundingLine>();
+    try (FundingFileReader reader = new FundingFileReader(new File(config.getFundingFileName())))
+    {
+      FundingLine line;
+      while (null != (line = reader.next()))
+      {
+        fundingLines.add(line);
+      }
+    }
+    File       seedFile = new File(config.getSeedFileName());
+    HdKeyChain keyChain = HdKeyChain.generate(config.getKeyPath(), config.isTestnet());
+    keyChain.save(seedFile, config.getPrefix() + "-" + Long.toString(timestamp), fundingLines);
+    Console.output("Saved account key seed to " + seedFile + ".  Keep it as safe as a wallet backup.");
+    return keyChain;
+  }
+
+  /** What a node shares with the others, and which part of the plan is its own. */
+  public static class Share
+  {
+    private final long          timestamp;
+    private final ResultsWriter results;
+    private final Set<String>   written;
+    private final HdKeyChain    keyChain;
+    private final int           node;
+    private final int           nodes;
+
+    Share(long timestamp, ResultsWriter results, Set<String> written, HdKeyChain keyChain, int node, int nodes)
+    {
+      this.timestamp = timestamp;
+      this.results = results;
+      this.written = written;
+      this.keyChain = keyChain;
+      this.node = node;
+      this.nodes = nodes;
+    }
+
+    /** @return the timestamp every node names its accounts with. */
+    public long getTimestamp()
+    {
+      return timestamp;
+    }
+
+    /** @return the results file every node writes to, or null for a plan. */
+    public ResultsWriter getResults()
+    {
+      return results;
+    }
+
+    /** @return the names of the accounts already in the results file of a resumed run. */
+    public Set<String> getWritten()
+    {
+      return written;
+    }
+
+    /** @return the chain every node derives keys from, or null for random keys or a resumed run. */
+    public HdKeyChain getKeyChain()
+    {
+      return keyChain;
+    }
+
+    /** @return how many of a funding line's accounts are this node's. */
+    public int count(int accounts)
+    {
+      return accounts / nodes + (node < accounts % nodes ? 1 : 0);
+    }
+
+    /** @return the index of this node's first account of a funding line. */
+    public int first(int accounts)
+    {
+      return 1 + node * (accounts / nodes) + Math.min(node, accounts % nodes);
+    }
+  }
+}
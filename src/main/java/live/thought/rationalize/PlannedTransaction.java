@@ -0,0 +1,116 @@
+package live.thought.rationalize;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A transaction being packed with inputs and outputs before it is sent.
+ * Outputs to the same address are merged into one.
+ */
+public class PlannedTransaction
+{
+  /** Approximate serialized sizes of a P2PKH transaction's parts, in bytes. */
+  public static final int                 BASE_SIZE   = 10;
+  public static final int                 INPUT_SIZE  = 148;
+  public static final int                 OUTPUT_SIZE = 34;
+
+  /** The journal's number for this transaction. */
+  private final long                      id;
+  private final List<Utxo>                inputs      = new ArrayList<Utxo>();
+  private final Map<String, Long>         outputs     = new LinkedHashMap<String, Long>();
+  private long                            inputTotal  = 0;
+  private long                            outputTotal = 0;
+  /** Completes with the transaction id once the transaction is sent. */
+  private final CompletableFuture<String> txid        = new CompletableFuture<String>();
+
+  public PlannedTransaction(long id)
+  {
+    this.id = id;
+  }
+
+  public long getId()
+  {
+    return id;
+  }
+
+  public void addInputs(List<Utxo> utxos)
+  {
+    for (Utxo u : utxos)
+    {
+      inputs.add(u);
+      inputTotal += u.getAmount();
+    }
+  }
+
+  public void addOutput(String address, long amount)
+  {
+    outputs.merge(address, amount, Long::sum);
+    outputTotal += amount;
+  }
+
+  /**
+   * @return whether adding the given number of inputs and an output to the
+   *         address keeps the transaction within the output count and size
+   *         limits.
+   */
+  public boolean fits(int moreInputs, String address, int maxOutputs, int maxSize)
+  {
+    int outputCount = outputs.size() + (outputs.containsKey(address) ? 0 : 1);
+    // Allow for a change output.
+    return outputCount <= maxOutputs && estimateSize(inputs.size() + moreInputs, outputCount + 1) <= maxSize;
+  }
+
+  public static int estimateSize(int inputCount, int outputCount)
+  {
+    return BASE_SIZE + inputCount * INPUT_SIZE + outputCount * OUTPUT_SIZE;
+  }
+
+  public boolean isEmpty()
+  {
+    return outputs.isEmpty();
+  }
+
+  public List<Utxo> getInputs()
+  {
+    return Collections.unmodifiableList(inputs);
+  }
+
+  /** @return amounts by destination address, in the order first added. */
+  public Map<String, Long> getOutputs()
+  {
+    return Collections.unmodifiableMap(outputs);
+  }
+
+  public long getInputTotal()
+  {
+    return inputTotal;
+  }
+
+  public long getOutputTotal()
+  {
+    return outputTotal;
+  }
+
+  /**
+   * @param feeRate
+   *          fee rate in units of 1e-8 THT per 1000 bytes.
+   * @return whether the inputs cover the outputs and the fee without change,
+   *         with so little left over that a change output would cost more
+   *         than it returns, so the rest is left to the fee.
+   */
+  public boolean isChangeless(long feeRate, long changeCost)
+  {
+    long fee    = LocalTransactionBuilder.fee(inputs.size(), outputs.size(), feeRate);
+    long excess = inputTotal - outputTotal;
+    return excess >= fee && excess - fee <= changeCost;
+  }
+
+  public CompletableFuture<String> getTxid()
+  {
+    return txid;
+  }
+}
@@ -1,8 +1,10 @@
 package live.thought.rationalize;
 
 import java.security.SecureRandom;
+import java.util.Arrays;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Base58;
+import org.bitcoinj.core.ECKey;
 
 public class PrivateKey
 {
@@ -10,14 +12,61 @@ public class PrivateKey
   private static final int KEY_SIZE = 32;
   private static final int KEY_VER = 123;
   private static final int TEST_KEY_VER = 235;
+  private static final int ADDRESS_VER = 7;
+  private static final int TEST_ADDRESS_VER = 109;
   private String key;
+  private byte[] publicKey;
+  private String address;
    
   public PrivateKey(boolean testnet)
+  {
+    this(testnet, secureRandom);
+  }
+
+  /** A new key from the given random source, for threads that make many keys without sharing one. */
+  public PrivateKey(boolean testnet, SecureRandom random)
   {
     byte[] data = new byte[KEY_SIZE];
-    secureRandom.nextBytes(data);
+    random.nextBytes(data);
     Sha256Hash hash = Sha256Hash.of(data);
     key = Base58.encodeChecked(testnet?TEST_KEY_VER:KEY_VER, hash.getBytes());
+    // The WIF above carries no compression flag, so the wallet will use the uncompressed public key.
+    ECKey ecKey = ECKey.fromPrivate(hash.getBytes(), false);
+    publicKey = ecKey.getPubKey();
+    address = Base58.encodeChecked(testnet?TEST_ADDRESS_VER:ADDRESS_VER, ecKey.getPubKeyHash());
+  }
+  
+  /** The key of an existing EC key, such as a derived one. */
+  public PrivateKey(ECKey ecKey, boolean testnet)
+  {
+    byte[] data = ecKey.getPrivKeyBytes();
+    if (ecKey.isCompressed())
+    {
+      // A trailing 1 tells the wallet to use the compressed public key.
+      data = Arrays.copyOf(data, KEY_SIZE + 1);
+      data[KEY_SIZE] = 1;
+    }
+    key = Base58.encodeChecked(testnet?TEST_KEY_VER:KEY_VER, data);
+    publicKey = ecKey.getPubKey();
+    address = Base58.encodeChecked(testnet?TEST_ADDRESS_VER:ADDRESS_VER, ecKey.getPubKeyHash());
+  }
+  
+  /** The version byte of the network's P2PKH addresses. */
+  public static int addressVersion(boolean testnet)
+  {
+    return testnet?TEST_ADDRESS_VER:ADDRESS_VER;
+  }
+  
+  /** The serialized public key, compressed or not as the WIF says. */
+  public byte[] getPublicKey()
+  {
+    return publicKey.clone();
+  }
+  
+  /** The P2PKH address the wallet will assign to this key. */
+  public String getAddress()
+  {
+    return address;
   }
   
   @Override
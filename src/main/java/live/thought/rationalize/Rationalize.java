@@ -1,41 +1,89 @@
 package live.thought.rationalize;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import live.thought.thought4j.ThoughtRPCClient;
 import live.thought.thought4j.ThoughtRPCException;
-import live.thought.thought4j.ThoughtClientInterface.BasicTxInput;
-import live.thought.thought4j.ThoughtClientInterface.BasicTxOutput;
-import live.thought.thought4j.ThoughtClientInterface.FundRawTransactionOptions;
-import live.thought.thought4j.ThoughtClientInterface.FundedRawTransaction;
-import live.thought.thought4j.ThoughtClientInterface.TxInput;
-import live.thought.thought4j.ThoughtClientInterface.TxOutput;
-import live.thought.thought4j.ThoughtClientInterface.Unspent;
 
 public class Rationalize
 {
   /** RELEASE VERSION */
-  public static final String  VERSION         = "v0.1";
-  public static final int     CHUNK_SIZE      = 10000;
-  public static final int     CONF_CHUNK_SIZE = 5000;
+  public static final String   VERSION         = "v0.1";
+  public static final int      CHUNK_SIZE      = 10000;
+  /** Size of the first confirmation window fetched, in blocks */
+  public static final int      CONF_CHUNK_SIZE = 5000;
+  /** Fudge factor for transaction fees, per transaction, in units of 1e-8 THT. */
+  public static final long     FEE_ALLOWANCE   = Amounts.COIN / 100;
+  /** CHUNK_SIZE in units of 1e-8 THT */
+  private static final long    CHUNK_UNITS     = CHUNK_SIZE * Amounts.COIN;
 
+  /** Carries the calls of both the client and the batches */
+  private RpcTransport         transport;
   /** Connection for Thought daemon */
-  private ThoughtRPCClient    client;
-  private Config              config;
-  private List<Unspent>       unspentCache;
-  private List<FundingAction> actionList      = new ArrayList<FundingAction>();
+  private ThoughtRPCClient     client;
+  /** Batched calls for bulk wallet operations */
+  private JsonRpcBatch         batch;
+  private Config               config;
+  private UnspentIndex         unspentCache;
+  /** Where the unspent cache's last fetch left off */
+  private UnspentCursor        unspentCursor;
+  private CoinSelector         selector;
+  /** How little a transaction may have left over to go without change */
+  private long                 changeCost;
+  private ActionIndex          actionList      = new ActionIndex();
+  private TransactionPipeline  pipeline;
+  /** Write-ahead record of the run, for resuming it */
+  private Journal              journal;
+  /** Balance still to be sent, including fee allowances */
+  private long                 totalNeeded;
+  /** Partly funded actions picked up from a journal, funded before the rest */
+  private Deque<FundingAction> resumedActions  = new ArrayDeque<FundingAction>();
+  /** Amount already sent to each partly funded action, by name */
+  private Map<String, Long>    resumedSent     = new HashMap<String, Long>();
+  /** What a dry run would send, or null for a real run */
+  private FundingPlan          plan;
+  /** Timings of RPC calls and phases */
+  private Metrics              metrics         = new Metrics();
+  /** Makes and imports account keys ahead of the sends */
+  private KeyPool              keyPool;
+  /** Sends awaiting completion, in the order their results are written. */
+  private Deque<PendingResult> pendingResults  = new ArrayDeque<PendingResult>();
+  /** What this node shares with the others of a run over several daemons, or null */
+  private NodeFanout.Share     share;
 
   public Rationalize(Config config)
+  {
+    this(config, null);
+  }
+
+  /**
+   * @param share
+   *          what this node shares with the other nodes of the run, or null
+   *          if it has the run to itself.
+   */
+  public Rationalize(Config config, NodeFanout.Share share)
   {
     this.config = config;
+    this.share = share;
+    this.changeCost = CoinSelector.changeCost(config.getFeeRate());
+    this.selector = CoinSelector.forStrategy(config.getFundingStrategy(), config.getSelectionTime(),
+        config.getFeeRate());
 
     URL url = null;
     try
@@ -43,7 +91,10 @@ public class Rationalize
       StringBuilder sb = new StringBuilder("http://").append(config.getUser()).append(":").append(config.getPassword())
           .append("@").append(config.getHost()).append(":").append(config.getPort()).append("/");
       url = new URL(sb.toString());
-      client = new ThoughtRPCClient(url);
+      // A connection for each transaction in flight, each unspent fetch worker, the key importer and this thread.
+      transport = RpcTransport.forConfig(config, config.getConcurrency() + config.getFetchWorkers() + 2);
+      client = new MeteredRPCClient(url, transport, metrics);
+      batch = new JsonRpcBatch(transport, config.getBatchSize(), metrics);
     }
     catch (MalformedURLException e)
     {
@@ -54,97 +105,226 @@ public class Rationalize
   public void run()
   {
     Console.output(String.format("@|bg_blue,fg_white rationalize %s: A coin management utility for Thought Network.|@", VERSION));
-    long timestamp = System.currentTimeMillis();
+    long timestamp = null != share ? share.getTimestamp() : System.currentTimeMillis();
+    if (null != config.getExportFileName())
+    {
+      exportKeys();
+      return;
+    }
     Console.output(String.format("Beginning Rationalization (timestamp %s).", Long.toString(timestamp)));
     boolean           moreElectricity = true;
     File              inputFile       = new File(config.getFundingFileName());
     File              outputFile      = new File(config.getOutputFileName());
-    PrintWriter       pw              = null;
+    ResultsWriter     results         = null;
     List<FundingLine> fundingLines    = null;
     String[]          sourceAddresses = config.getSourceAddresses();
-    double            totalNeeded     = 0.0;
+    boolean           resuming        = null != config.getResumeFileName();
+    boolean           planning        = null != config.getPlanFileName();
 
-    if (inputFile.canRead())
+    if (resuming)
     {
-      try
+      moreElectricity = resume(new File(config.getResumeFileName()), outputFile);
+      if (moreElectricity && null != share)
+      {
+        results = share.getResults();
+      }
+      else if (moreElectricity)
+      {
+        try
+        {
+          results = ResultsWriter.resume(outputFile, config.getOutputFormat(), config.getCommitInterval(),
+              config.getCommitRecords());
+        }
+        catch (IOException e)
+        {
+          Console.output("Unable to open output file.");
+          moreElectricity = false;
+        }
+      }
+    }
+    else if (inputFile.canRead())
+    {
+      // Only the lines are kept; their actions are created as they're funded.
+      fundingLines = new ArrayList<FundingLine>();
+      try (FundingFileReader reader = new FundingFileReader(inputFile))
       {
-        fundingLines = parseInputFile(inputFile);
+        FundingLine line;
+        while (null != (line = reader.next()))
+        {
+          fundingLines.add(line);
+        }
         if (fundingLines.isEmpty())
         {
           Console.output("No funding lines found in input file.");
           moreElectricity = false;
         }
       }
-      catch (Exception e)
+      catch (IOException e)
       {
-        e.printStackTrace();
-        // Better error message
+        Console.output("@|red Unable to read input file: " + e.getMessage() + "|@");
         moreElectricity = false;
       }
     }
 
-    double total = 0.0;
-    if (moreElectricity)
+    if (moreElectricity && planning)
+    {
+      try
+      {
+        plan = new FundingPlan(new File(config.getPlanFileName()), config.getFeeRate());
+        journal = Journal.disabled();
+      }
+      catch (IOException e)
+      {
+        Console.output("Unable to create plan file.");
+        moreElectricity = false;
+      }
+    }
+    else if (moreElectricity && !resuming)
     {
-      int lineIndex = 1;
-      // Create a list of funding actions to take
-      for (FundingLine line : fundingLines)
+      HdKeyChain keyChain = null != share ? share.getKeyChain() : null;
+      if (Config.HD_KEYS.equals(config.getKeyDerivation()) && null == keyChain)
       {
-        int numAccounts = line.getAccounts();
-        for (int i = 1; i <= numAccounts; i++)
+        // The seed is saved before any key is derived from it.
+        File seedFile = new File(config.getSeedFileName());
+        try
         {
-          String        name = String.format("%s-%s-%d-%d", config.getPrefix(), Long.toString(timestamp), lineIndex, i);
-          FundingAction act  = new FundingAction(name, line.getAmount());
-          actionList.add(act);
-          total += line.getAmount();
+          keyChain = HdKeyChain.generate(config.getKeyPath(), config.isTestnet());
+          keyChain.save(seedFile, config.getPrefix() + "-" + Long.toString(timestamp), fundingLines);
+          Console.output("Saved account key seed to " + seedFile + ".  Keep it as safe as a wallet backup.");
+        }
+        catch (FileAlreadyExistsException e)
+        {
+          Console.output("@|red Seed file " + seedFile + " already exists; move it somewhere safe first. |@");
+          moreElectricity = false;
+        }
+        catch (IOException e)
+        {
+          Console.output("Unable to save seed file.");
+          moreElectricity = false;
         }
-        lineIndex++;
       }
-      // Validate that the source addresses have enough coin.
-      double              source   = 0.0;
-      Map<String, Double> balances = client.listAddressBalances(0.01);
-      for (String s : sourceAddresses)
+      if (moreElectricity)
       {
-        Double val = balances.get(s);
-        if (null != val)
-          source += val.doubleValue();
+        try
+        {
+          journal = Journal.create(new File(config.getJournalFileName()));
+          journal.write(Journal.RUN, timestamp);
+          if (null != keyChain)
+          {
+            journal.write(Journal.SEED, keyChain.getSeed(), keyChain.getPath());
+          }
+        }
+        catch (IOException e)
+        {
+          Console.output("Unable to create journal file.");
+          moreElectricity = false;
+        }
       }
-      if (total + (actionList.size() * 0.01) > source) // Fudge factor for transaction fees
+      if (moreElectricity)
       {
-        Console.output("Funding total specified greater than source account balance.");
-        Console.output("Total: " + Double.toString(total) + ", Balance: " + Double.toString(source));
-        moreElectricity = false;
+        startKeyPool(keyChain);
+      }
+    }
+    if (moreElectricity && null == keyPool)
+    {
+      startKeyPool(null);
+    }
+
+    long total = 0;
+    if (moreElectricity && !resuming)
+    {
+      int    lineIndex = 1;
+      String prefix    = config.getPrefix() + "-" + Long.toString(timestamp);
+      // Queue the funding lines; each account's action is named when it is taken.
+      for (FundingLine fundingLine : fundingLines)
+      {
+        FundingLine line  = fundingLine;
+        int         first = 1;
+        if (null != share)
+        {
+          // Only this node's part of the line.
+          line = new FundingLine();
+          line.setAmount(fundingLine.getAmount());
+          line.setAccounts(share.count(fundingLine.getAccounts()));
+          first = share.first(fundingLine.getAccounts());
+        }
+        actionList.addLine(prefix, lineIndex, line, first);
+        if (planning)
+        {
+          plan.addLine(line);
+        }
+        journal.write(Journal.LINE, prefix, lineIndex, line.getAmount(), line.getAccounts(), first);
+        total += line.getAmount() * line.getAccounts();
+        lineIndex++;
+      }
+      journal.sync();
+      if (planning)
+      {
+        // Whether the inputs cover everything is part of the plan.
+        totalNeeded = total + (actionList.size() * FEE_ALLOWANCE);
       }
       else
       {
-        Console.output("Sufficient funds verified.");
-        try
-        {       
-          outputFile.createNewFile();
-          pw = new PrintWriter(outputFile);
+        // Validate that the source addresses have enough coin.
+        long                source   = 0;
+        Map<String, Double> balances = client.listAddressBalances(0.01);
+        for (String s : sourceAddresses)
+        {
+          Double val = balances.get(s);
+          if (null != val)
+            source += Amounts.toUnits(val.doubleValue());
         }
-        catch (Exception e)
+        if (total + (actionList.size() * FEE_ALLOWANCE) > source) // Fudge factor for transaction fees
         {
-          Console.output("Unable to create output file.");
+          Console.output("Funding total specified greater than source account balance.");
+          Console.output("Total: " + Amounts.format(total) + ", Balance: " + Amounts.format(source));
           moreElectricity = false;
         }
+        else
+        {
+          Console.output("Sufficient funds verified.");
+          totalNeeded = total + (actionList.size() * FEE_ALLOWANCE); // Fudge for transaction fees
+          try
+          {       
+            results = null != share ? share.getResults()
+                : ResultsWriter.create(outputFile, config.getOutputFormat(), config.getCommitInterval(),
+                    config.getCommitRecords());
+          }
+          catch (Exception e)
+          {
+            Console.output("Unable to create output file.");
+            moreElectricity = false;
+          }
+        }
       }
     }
 
-    if (moreElectricity)
+    if (moreElectricity && planning && null != config.getUnspentFileName())
     {
-      totalNeeded = total + (actionList.size() * 0.01); // Fudge for transaction fees
-      double totalCached = fillUnspentCache(totalNeeded, sourceAddresses);
+      // A plan from a saved unspent file doesn't ask the wallet at all.
+      loadUnspent(sourceAddresses, new File(config.getUnspentFileName()), true);
+    }
+    else if (moreElectricity && !resuming && (planning || null != config.getSnapshotFileName()))
+    {
+      loadUnspent(sourceAddresses,
+          null == config.getSnapshotFileName() ? null : new File(config.getSnapshotFileName()), false);
+    }
+
+    // A resumed run carries on with the cache it had, unless that is too small.
+    if (moreElectricity && (null == unspentCache || unspentCache.getTotal() < totalNeeded))
+    {
+      long totalCached = fillUnspentCache(totalNeeded, sourceAddresses);
       if (null == unspentCache || unspentCache.isEmpty() || totalCached < totalNeeded)
       {
         Console.output("Unable to retrieve sufficient unspent inputs.");
-        moreElectricity = false;
+        // A plan carries on to show how far the inputs would go.
+        moreElectricity = planning && null != unspentCache && !unspentCache.isEmpty();
       }
       else
       {
         if (Console.getLevel() > 0)
         {
-          for (Unspent u : unspentCache)
+          for (Utxo u : unspentCache)
           {
             Console.debug(u, 1);
           }
@@ -152,20 +332,39 @@ public class Rationalize
       }
     }
 
+    if (moreElectricity)
+    {
+      if (!planning)
+      {
+        pipeline = newPipeline(sourceAddresses[0]);
+        moreElectricity = null != pipeline;
+      }
+    }
+    if (moreElectricity)
+    {
+      metrics.startProgress(actionList.size() + resumedActions.size() + pendingResults.size(),
+          config.getProgressInterval());
+    }
+
     // Handle the case of large unspent, where multiple outputs make more sense.
     if (moreElectricity)
     {
+      long phaseStart = System.nanoTime();
       Console.output("Searching for large unspent.");
       boolean searchFinished = false;
       while (!searchFinished)
       {
         List<FundingAction> searchResults = new ArrayList<FundingAction>();
-        Unspent             large         = biggestUnspent();
-        double              target        = large.amount();
+        Utxo                large         = biggestUnspent();
+        if (null == large)
+        {
+          break;
+        }
+        long target = large.getAmount();
 
-        while (target > 1.0) // Fudge for transaction fees
+        while (target > Amounts.COIN) // Fudge for transaction fees
         {
-          FundingAction fa = biggestUpTo(target, searchResults);
+          FundingAction fa = biggestUpTo(target);
           if (null == fa)
           {
             break;
@@ -182,374 +381,831 @@ public class Rationalize
         }
         else
         {
+          // The keys are imported in the background; the transaction is broadcast once they're in.
+          CompletableFuture<Void>   imported = keyPool.assign(searchResults);
+          CompletableFuture<String> txid     = sendLarge(large, searchResults, imported);
           for (FundingAction act : searchResults)
           {
-            PrivateKey accountKey = new PrivateKey(config.isTestnet());
-            client.importPrivKey(accountKey.toString(), act.getName(), false);
-            act.setPrivateKey(accountKey.toString());
-            // Get a public key
-            List<String> accountAddrs = client.getAddressesByAccount(act.getName());
-            act.setPublicKey(accountAddrs.get(0));
-          }
-          try
-          {
-            sendLarge(large, searchResults);
+            PendingResult result = new PendingResult(act);
+            result.add(txid, act.getAmount());
+            pendingResults.add(result);
+            totalNeeded -= act.getAmount();
           }
-          catch (ThoughtRPCException e)
+          if (!commitResults(results, false))
           {
             Console.output("@|red Error sending large transaction. |@");
-            e.printStackTrace();
             moreElectricity = false;
             break;
           }
-          for (FundingAction act : searchResults)
-          {
-            pw.append(act.toString());
-            pw.flush();
-            Console.output("Sent " + Double.toString(act.getAmount()) + " to account " + act.getName() + "("
-                + act.getPublicKey() + ")");
-            totalNeeded -= act.getAmount();
-          }
-          actionList.removeAll(searchResults);
           if (actionList.isEmpty())
           {
             searchFinished = true;
           }
         }
       }
+      if (moreElectricity && !commitResults(results, true))
+      {
+        Console.output("@|red Error sending large transaction. |@");
+        moreElectricity = false;
+      }
       Console.output("Finished large unspent.");
+      metrics.addPhase(Metrics.LARGE_UNSPENT, System.nanoTime() - phaseStart);
     }
 
     // Fund the rest with smaller inputs
     if (moreElectricity)
     {
-      for (FundingAction act : actionList)
+      long                 phaseStart = System.nanoTime();
+      // Pack chunks for many actions into each transaction.
+      PlannedTransaction   packing    = new PlannedTransaction(journal.nextTransaction());
+      FundingAction        act;
+      // Accounts come from the key pool with their keys already imported into the wallet.
+      keyPool.feed(this::nextSmallAction);
+      while (null != (act = keyPool.take()))
       {
-        // Create a new private key and import it into the wallet for safety
-        PrivateKey accountKey = new PrivateKey(config.isTestnet());
-        client.importPrivKey(accountKey.toString(), act.getName(), false);
-        act.setPrivateKey(accountKey.toString());
-        // Get a public key
-        List<String> accountAddrs = client.getAddressesByAccount(act.getName());
-        act.setPublicKey(accountAddrs.get(0));
         // Send the coin in chunks to avoid overly large transaction.
-        double remaining = act.getAmount();
-        double sent      = 0.0;
-        int    chunks    = ((int) act.getAmount()) / CHUNK_SIZE + 1;
+        PendingResult result    = new PendingResult(act);
+        long          remaining = act.getAmount();
+        Long          sent      = resumedSent.remove(act.getName());
+        if (null != sent)
+        {
+          result.addSent(sent);
+          remaining -= sent;
+        }
+        long chunks = remaining / CHUNK_UNITS + 1;
         for (int j = 0; j < chunks; j++)
         {
-          double chunk = remaining < CHUNK_SIZE ? remaining : CHUNK_SIZE;
-          if (chunk == 0.0) break;
-          try
+          long chunk = remaining < CHUNK_UNITS ? remaining : CHUNK_UNITS;
+          if (chunk == 0) break;
+          // The first chunk in a transaction also covers its fee.
+          List<Utxo> inputs = reserveInputs(chunk, feeAllowance(packing));
+          if (null != inputs && !packing.isEmpty()
+              && !packing.fits(inputs.size(), act.getPublicKey(), config.getMaxOutputs(), config.getMaxTxSize()))
           {
-            double actual = sendChunk(act.getPublicKey(), chunk);
-            while (actual == 0)
+            // This transaction is full.  Send it and start the next one with this chunk.
+            for (Utxo u : inputs)
             {
-              // We ran out of unspent.
-              Console.output("Refilling unspent cache.");
-              double totalCached = fillUnspentCache(totalNeeded, sourceAddresses);
-              if (totalCached < totalNeeded)
-              {
-                Console.output("@|red Unspent cache prematurely depleted.  Check output file for successful sends. |@");
-                moreElectricity = false;
-                break;
-              }
-              else
-              {
-                //Try again.
-                actual = sendChunk(act.getPublicKey(), chunk);
-              }
+              unspentCache.add(u);
             }
-            remaining = remaining - chunk;
-            sent += chunk;
-            totalNeeded -= chunk;
-            Thread.sleep(200); // Don't send too fast - give the daemon a break in between.
+            send(packing);
+            packing = new PlannedTransaction(journal.nextTransaction());
+            inputs = reserveInputs(chunk, FEE_ALLOWANCE);
           }
-          catch (InterruptedException i)
+          while (null == inputs)
           {
-            // Don't care.
+            // We ran out of unspent.  Send what's packed and fetch more; the cursor
+            // won't hand out inputs of transactions still in flight again.
+            send(packing);
+            packing = new PlannedTransaction(journal.nextTransaction());
+            if (!commitResults(results, false))
+            {
+              moreElectricity = false;
+              break;
+            }
+            Console.output("Refilling unspent cache.");
+            long totalCached = fillUnspentCache(totalNeeded, sourceAddresses);
+            if (totalCached < totalNeeded)
+            {
+              Console.output(planning ? "@|red Unspent inputs would run out here. |@"
+                  : "@|red Unspent cache prematurely depleted.  Check output file for successful sends. |@");
+              moreElectricity = false;
+              break;
+            }
+            else
+            {
+              //Try again.
+              inputs = reserveInputs(chunk, FEE_ALLOWANCE);
+            }
           }
-          catch (ThoughtRPCException e)
+          if (!moreElectricity)
           {
-            e.printStackTrace();
-            Console.output("@|red Error sending chunk. Check output file for successful sends. |@");         
-            moreElectricity = false;
             break;
           }
+          pack(packing, inputs, act, chunk);
+          result.add(packing.getTxid(), chunk);
+          remaining = remaining - chunk;
+          totalNeeded -= chunk;
         }
-        if (sent > 0)
+        // Queue the result only once all its chunks are, so a refill can't commit it half done.
+        pendingResults.add(result);
+        if (!commitResults(results, false))
         {
-          // Write to the output file.
-          if (sent != act.getAmount()) act.setAmount(sent);
-          pw.append(act.toString());
-          pw.flush();
-          Console.output(
-              "Sent " + Double.toString(sent) + " to account " + act.getName() + "(" + act.getPublicKey() + ")");
+          moreElectricity = false;
         }
         if (!moreElectricity)
         {
           break;
         }
       }
+      if (keyPool.isFailed())
+      {
+        moreElectricity = false;
+      }
+      // Whatever is packed already has its inputs and keys, so send it either way.
+      send(packing);
+      metrics.addPhase(Metrics.SMALL_SENDS, System.nanoTime() - phaseStart);
+    }
+    long finishStart = System.nanoTime();
+    if (!commitResults(results, true))
+    {
+      Console.output("@|red Error sending chunk. Check output file for successful sends. |@");
+    }
+    if (null != pipeline)
+    {
+      pipeline.shutdown();
+      Console.debug("Total fees paid: " + Amounts.format(pipeline.getFees()), 1);
+    }
+    metrics.addPhase(Metrics.FINISH, System.nanoTime() - finishStart);
+    if (null != keyPool)
+    {
+      keyPool.shutdown();
+    }
+    metrics.stopProgress();
+    if (null != unspentCursor)
+    {
+      unspentCursor.shutdown();
+    }
+    transport.close();
+    if (null != results)
+    {
+      try
+      {
+        // The nodes of a run share their results file, which the fanout closes;
+        // each waits only for its own results, before its journal is closed.
+        if (null != share)
+        {
+          results.sync();
+        }
+        else
+        {
+          results.close();
+        }
+      }
+      catch (IOException e)
+      {
+        Console.output("@|red " + e.getMessage() + ". Check output file for successful sends. |@");
+      }
+    }
+    if (null != journal)
+    {
+      try
+      {
+        journal.close();
+      }
+      catch (IOException e)
+      {
+        Console.output("Unable to close journal file.");
+      }
     }
-    if (null != pw)
+    if (null != plan)
     {
-      pw.close();
+      plan.report();
+      plan.close();
     }
+    writeMetrics();
     Console.output("Rationalization complete.");
   }
 
-  private List<FundingLine> parseInputFile(File inputFile)
+  /** @return the next action to fund from smaller inputs, partly funded ones first, or null when done. */
+  private FundingAction nextSmallAction()
   {
-    List<FundingLine> lines = new ArrayList<FundingLine>();
-    try (Scanner scanner = new Scanner(inputFile);)
+    return resumedActions.isEmpty() ? actionList.takeFirst() : resumedActions.poll();
+  }
+
+  /**
+   * Fetch more unspent into the cache, picking up where the last fetch left
+   * off.
+   *
+   * @return the balance of the cache.
+   */
+  private long fillUnspentCache(long balanceNeeded, String[] addresses)
+  {
+    long start = System.nanoTime();
+    boolean newestFirst = Config.NEWEST_FIRST.equals(config.getFundingStrategy());
+    if (null == unspentCache)
     {
-      while (scanner.hasNextLine())
+      unspentCache = new UnspentIndex(newestFirst);
+      journal.write(Journal.CACHE);
+    }
+    if (null == unspentCursor)
+    {
+      unspentCursor = new UnspentCursor(client, addresses, newestFirst, CONF_CHUNK_SIZE,
+          config.getWindowTarget(), config.getFetchWorkers());
+    }
+    Console.output("Fetching unspent inputs " + (newestFirst ? "newest" : "oldest") + " first.");
+    for (Utxo utxo : unspentCursor.fill(unspentCache, balanceNeeded))
+    {
+      journal.write(Journal.UTXO, utxo.getTxid(), utxo.getVout(), utxo.getAmount(), utxo.getConfirmations(),
+          utxo.getAddress());
+    }
+    journal.sync();
+    metrics.addPhase(Metrics.CACHE_FILL, System.nanoTime() - start);
+    return unspentCache.getTotal();
+  }
+
+  /**
+   * Load the unspent snapshot and bring it up to date, fetching only what
+   * changed in the blocks since it was taken, or fetch every unspent input if
+   * there is no snapshot to use. The snapshot is saved, and the cache is then
+   * filled from it just as it would be from the wallet.
+   *
+   * @param file
+   *          the snapshot file, or null to fetch everything without saving.
+   * @param offline
+   *          whether to use the snapshot as it is, without asking the wallet.
+   */
+  private void loadUnspent(String[] addresses, File file, boolean offline)
+  {
+    long            start       = System.nanoTime();
+    boolean         newestFirst = Config.NEWEST_FIRST.equals(config.getFundingStrategy());
+    UnspentSnapshot snapshot    = null;
+    boolean         changed     = !offline;
+    if (null != file && file.exists())
+    {
+      try
       {
-        String line = scanner.nextLine().trim();
-        // Ignore blank lines and comments
-        if (line.length() > 0 && !line.startsWith("#"))
+        Console.output("Reading unspent snapshot " + file + ".");
+        snapshot = UnspentSnapshot.read(file);
+        if (!snapshot.isFor(addresses))
         {
-          String[] values = line.split(",");
-          if (values.length == 2)
-          {
-            FundingLine f = new FundingLine();
-            f.setAmount(Double.parseDouble(values[0].trim()));
-            f.setAccounts(Integer.parseInt(values[1].trim()));
-            lines.add(f);
-          }
+          Console.output("The unspent snapshot is of other addresses.");
+          snapshot = null;
+        }
+        else if (!offline && !snapshot.refresh(client, batch))
+        {
+          snapshot = null;
         }
       }
+      catch (IOException e)
+      {
+        Console.output("@|red Unable to use unspent snapshot: " + e.getMessage() + "|@");
+        snapshot = null;
+      }
+    }
+    if (null == snapshot)
+    {
+      Console.output("Fetching all unspent inputs.");
+      int           height = client.getBlockCount();
+      String        hash   = (String) client.query("getblockhash", height - UnspentCursor.MIN_CONFIRMATIONS + 1);
+      UnspentCursor cursor = new UnspentCursor(client, addresses, newestFirst, CONF_CHUNK_SIZE,
+          config.getWindowTarget(), config.getFetchWorkers());
+      List<Utxo>    all    = cursor.fill(new UnspentIndex(newestFirst), Long.MAX_VALUE);
+      cursor.shutdown();
+      snapshot = new UnspentSnapshot(height, hash, addresses, all);
+      changed = true;
+    }
+    if (null != file && changed)
+    {
+      try
+      {
+        snapshot.write(file);
+      }
+      catch (IOException e)
+      {
+        Console.output("@|red Unable to save unspent snapshot: " + e.getMessage() + "|@");
+      }
+    }
+    long total = 0;
+    for (Utxo u : snapshot.getUnspent())
+    {
+      total += u.getAmount();
+    }
+    Console.output("Found " + snapshot.getUnspent().size() + " unspent inputs totalling " + Amounts.format(total)
+        + " THT.");
+    unspentCursor = new UnspentCursor(new SnapshotUnspentClient(snapshot, client, offline), addresses, newestFirst,
+        CONF_CHUNK_SIZE, config.getWindowTarget(), config.getFetchWorkers());
+    metrics.addPhase(Metrics.CACHE_FILL, System.nanoTime() - start);
+  }
+
+  /** Regenerate the account keys of the run whose seed file is given. */
+  private void exportKeys()
+  {
+    File seedFile = new File(config.getSeedFileName());
+    try
+    {
+      long accounts = HdKeyChain.export(seedFile, new File(config.getExportFileName()));
+      Console.output(String.format("Wrote the keys of %d accounts to %s.", accounts, config.getExportFileName()));
     }
-    catch (FileNotFoundException e)
+    catch (IOException | IllegalArgumentException e)
     {
-      // Should already be handled, just return empty list.
+      Console.output("@|red Unable to export keys from " + seedFile + ": " + e.getMessage() + " |@");
     }
+  }
 
-    return lines;
+  /**
+   * Start making account keys, once the journal that records them is open.
+   *
+   * @param keyChain
+   *          derives the keys, or null to make random ones.
+   */
+  private void startKeyPool(HdKeyChain keyChain)
+  {
+    keyPool = new KeyPool(null != plan ? null : batch, journal, metrics, keyChain, config.isTestnet(),
+        config.getKeyLookahead(), config.getVerifyInterval());
   }
 
-  private double fillUnspentCache(double balanceNeeded, String[] addresses)
+  /** Write the run's timings to the metrics files. */
+  private void writeMetrics()
   {
-    double totalCached = 0.0;
-    if (config.getFundingStrategy().equals(Config.NEWEST_FIRST))
+    try
     {
-      totalCached = getUnspentNewestFirst(balanceNeeded, addresses); 
+      metrics.writeJson(new File(config.getMetricsFileName()));
+      metrics.writePrometheus(new File(config.getPrometheusFileName()));
     }
-    else
+    catch (IOException e)
+    {
+      Console.output("Unable to write metrics files.");
+    }
+  }
+
+  /**
+   * Take enough unspent out of the cache to cover the amount and the fee
+   * allowance. The inputs are removed immediately so no other transaction in
+   * flight can claim them.
+   *
+   * @return the reserved inputs, or null if the cache can't cover the amount.
+   */
+  private List<Utxo> reserveInputs(long amount, long allowance)
+  {
+    List<Utxo> reserved = selector.select(unspentCache, amount, allowance);
+    if (null == reserved)
     {
-      totalCached = getUnspentOldestFirst(balanceNeeded, addresses);
+      Console.output("Not enough unspent left in cache.");
     }
-    return totalCached;
+    return reserved;
   }
-  
-  private double getUnspentOldestFirst(double balanceNeeded, String[] addresses)
+
+  /**
+   * @return the fee allowance the next chunk's inputs must bring: whatever
+   *         the transaction's inputs don't already spare beyond its outputs.
+   */
+  private static long feeAllowance(PlannedTransaction tx)
   {
-    Console.output("Fetching unspent inputs oldest first.");
-    unspentCache = new ArrayList<Unspent>();
-    Console.debug("Getting block count.", 1);
-    int maxConfirmations = client.getBlockCount();
-    Console.debug("Found " + maxConfirmations + " blocks.", 1);
+    return Math.max(0, FEE_ALLOWANCE - (tx.getInputTotal() - tx.getOutputTotal()));
+  }
 
-    double balance = 0.0;
-    Console.output("Building unspent cache.");
-    int minconf = maxConfirmations - CONF_CHUNK_SIZE;
+  /** Add an action's chunk and the inputs paying for it to a transaction, journaling both. */
+  private void pack(PlannedTransaction tx, List<Utxo> inputs, FundingAction act, long amount)
+  {
+    for (Utxo u : inputs)
+    {
+      journal.write(Journal.INPUT, tx.getId(), u.getOutpoint());
+    }
+    journal.write(Journal.PLAN, tx.getId(), act.getName(), amount);
+    tx.addInputs(inputs);
+    tx.addOutput(act.getPublicKey(), amount);
+  }
 
-    while (balance < balanceNeeded)
+  /**
+   * Queue a packed transaction with the pipeline. Its txid future completes
+   * when the pipeline has sent it.
+   */
+  private void send(PlannedTransaction tx)
+  {
+    if (tx.isEmpty())
+    {
+      return;
+    }
+    boolean changeless = tx.isChangeless(config.getFeeRate(), changeCost);
+    if (null != plan)
+    {
+      plan.addTransaction(tx.getId(), false, tx.getInputs(), tx.getOutputs(), changeless);
+      tx.getTxid().complete("planned-" + tx.getId());
+      return;
+    }
+    Console.debug("Building raw transaction.", 1);
+    List<Utxo> inputs = tx.getInputs();
+    for (Utxo u : inputs)
     {
-      Console.debug("  Fetching unspent at minconf of " + minconf, 1);
-      List<Unspent> unspent = client.listUnspent(minconf, maxConfirmations, addresses);
-      Console.debug("  Transaction count: " + unspent.size(), 1);
+      Console.debug("  Adding " + Amounts.format(u.getAmount()) + " THT to inputs.", 1);
+    }
+    Map<String, Long> outputs = tx.getOutputs();
+    Console.debug("Packed " + inputs.size() + " inputs and " + outputs.size() + " outputs, about "
+        + PlannedTransaction.estimateSize(inputs.size(), outputs.size() + (changeless ? 0 : 1)) + " bytes.", 1);
 
-      for (Unspent u : unspent)
+    pipeline.submit(tx.getId(), inputs, outputs, changeless).whenComplete((txid, e) -> {
+      if (null == e)
       {
-        if (u.solvable() && u.spendable())
-        {
-          balance += u.amount();
-          unspentCache.add(u);
-        }
+        tx.getTxid().complete(txid);
+      }
+      else
+      {
+        tx.getTxid().completeExceptionally(e);
+      }
+    });
+  }
+
+  /**
+   * @return the pipeline to send with, or null if the local transaction
+   *         builder can't pay change to the change address, or the source
+   *         addresses' keys can't be loaded for local signing.
+   */
+  private TransactionPipeline newPipeline(String changeAddress)
+  {
+    LocalTransactionBuilder builder = null;
+    LocalSigner             signer  = null;
+    if (Config.LOCAL_BUILDER.equals(config.getTransactionBuilder()))
+    {
+      try
+      {
+        builder = new LocalTransactionBuilder(changeAddress, config.isTestnet(), config.getFeeRate());
+      }
+      catch (IllegalArgumentException e)
+      {
+        Console.output("@|red Transactions can't be built locally: " + e.getMessage() + " |@");
+        return null;
       }
-      maxConfirmations = minconf - 1;
-      if (maxConfirmations <= 6)
-        break;
-      minconf -= CONF_CHUNK_SIZE;
-      if (minconf < 6)
-        minconf = 6;
     }
-    Console.debug("Final transaction count: " + unspentCache.size(), 1);
-    Console.debug("Spendable balance: " + balance, 1);
-    return balance;
+    if (Config.LOCAL_SIGNING.equals(config.getSigning()))
+    {
+      try
+      {
+        File keyFile = null == config.getKeyFileName() ? null : new File(config.getKeyFileName());
+        signer = LocalSigner.load(client, config.getSourceAddresses(), keyFile, config.isTestnet());
+        Console.output("Loaded source address keys for local signing.");
+      }
+      catch (IOException | ThoughtRPCException e)
+      {
+        Console.output("@|red Transactions can't be signed locally: " + e.getMessage() + " |@");
+        return null;
+      }
+    }
+    return new TransactionPipeline(client, changeAddress, builder, signer, journal, config.getConcurrency());
   }
 
-  private double getUnspentNewestFirst(double balanceNeeded, String[] addresses)
+  private CompletableFuture<String> sendLarge(Utxo large, List<FundingAction> destination,
+      CompletableFuture<Void> imported)
   {
-    Console.output("Fetching unspent inputs newest first.");
-    unspentCache = new ArrayList<Unspent>();
-    Console.debug("Getting block count.", 1);
-    int maxblocks = client.getBlockCount();
-    Console.debug("Found " + maxblocks + " blocks.", 1);
+    Console.debug("Building raw transaction.", 1);
+    Map<String, Long> outputs = new LinkedHashMap<String, Long>();
 
-    double balance = 0.0;
-    Console.output("Building unspent cache.");
-    int minconf = 6;
-    int maxconf = minconf + CONF_CHUNK_SIZE;
+    long id = journal.nextTransaction();
+    journal.write(Journal.INPUT, id, large.getOutpoint());
+    for (FundingAction act : destination)
+    {
+      journal.write(Journal.PLAN, id, act.getName(), act.getAmount());
+      outputs.merge(act.getPublicKey(), act.getAmount(), Long::sum);
+    }
 
-    while (balance < balanceNeeded)
+    unspentCache.remove(large);
+
+    if (null != plan)
     {
-      Console.debug("  Fetching unspent at maxconf of " + maxconf, 1);
-      List<Unspent> unspent = client.listUnspent(minconf, maxconf, addresses);
-      Console.debug("  Transaction count: " + unspent.size(), 1);
+      plan.addTransaction(id, true, Collections.singletonList(large), outputs, false);
+      return CompletableFuture.completedFuture("planned-" + id);
+    }
+    return pipeline.submit(id, Collections.singletonList(large), outputs, false, imported);
+  }
 
-      for (Unspent u : unspent)
+  /**
+   * Write out the results of finished sends, in the order they were queued.
+   *
+   * @param wait
+   *          whether to block until every queued send has finished.
+   * @return false if any of the committed sends failed.
+   */
+  private boolean commitResults(ResultsWriter results, boolean wait)
+  {
+    boolean success = true;
+    while (!pendingResults.isEmpty() && (wait || pendingResults.peek().isDone()))
+    {
+      PendingResult result = pendingResults.poll();
+      long          sent   = result.await();
+      if (sent < result.getRequested())
       {
-        if (u.solvable() && u.spendable())
+        success = false;
+      }
+      if (sent > 0 && null != plan)
+      {
+        plan.funded(result.getAction(), sent);
+        metrics.actionDone();
+      }
+      else if (sent > 0)
+      {
+        // Queue for the output file; the action is only done once its line is on disk.
+        FundingAction act = result.getAction();
+        if (sent != act.getAmount()) act.setAmount(sent);
+        boolean complete = sent == result.getRequested();
+        try
         {
-          balance += u.amount();
-          unspentCache.add(u);
+          results.write(act, () -> {
+            metrics.actionDone();
+            if (complete)
+            {
+              journal.write(Journal.DONE, act.getName());
+            }
+            Console.output(
+                "Sent " + Amounts.format(sent) + " to account " + act.getName() + "(" + act.getPublicKey() + ")");
+          });
+        }
+        catch (IOException e)
+        {
+          Console.output("@|red " + e.getMessage() + " |@");
+          return false;
         }
       }
-      minconf = maxconf + 1;
-      maxconf = maxconf + CONF_CHUNK_SIZE;
-      if (maxconf > maxblocks)
-        break;
-      else if (maxconf + CONF_CHUNK_SIZE > maxblocks)
-        maxconf = maxblocks;
     }
-    Console.debug("Final transaction count: " + unspentCache.size(), 1);
-    Console.debug("Spendable balance: " + balance, 1);
-    return balance;
+    return success;
   }
 
-  private double sendChunk(String destinationAddr, double amount)
+  /**
+   * Pick up an interrupted run from its journal. Transactions that were
+   * signed but never recorded as sent are settled first. Actions that were
+   * fully sent have their results queued, partly sent actions are funded
+   * first, and the rest go back in the action list. The unspent cache is
+   * rebuilt from the journal rather than fetched again.
+   *
+   * @return false if the run can't be resumed.
+   */
+  private boolean resume(File journalFile, File outputFile)
   {
-    double actual = amount;
-
-    Console.debug("Building raw transaction.", 1);
-    List<TxInput> inputs       = new ArrayList<TxInput>();
-
-    List<Unspent> spentCache   = new ArrayList<Unspent>();
-    double        inputBalance = 0.0;
-    for (Unspent u : unspentCache)
+    JournalReplay replay;
+    try
     {
-      TxInput input = new BasicTxInput(u.txid(), u.vout());
-      inputs.add(input);
-      spentCache.add(u);
-      inputBalance += u.amount();
-      Console.debug("  Adding " + u.amount() + " THT to inputs.", 1);
-      if (inputBalance > amount)
+      replay = JournalReplay.read(journalFile);
+      if (replay.getActions().isEmpty())
       {
-        break;
+        Console.output("No funding actions found in journal.");
+        return false;
       }
+      journal = Journal.resume(journalFile, replay);
     }
-    if (inputBalance < amount)
+    catch (IOException e)
     {
-      Console.output("Not enough unspent left in cache.");
-      actual = 0.0;
+      Console.output("@|red Unable to read journal " + journalFile + ". |@");
+      return false;
     }
-    else
+    Console.output(String.format("Resuming run %s.", Long.toString(replay.getTimestamp())));
+
+    for (JournalReplay.Transaction tx : replay.getTransactions())
     {
-      List<TxOutput> outputs = new ArrayList<TxOutput>();
-      TxOutput       output  = new BasicTxOutput(destinationAddr, amount);
-      outputs.add(output);
+      if (tx.isUnsettled() && !settle(tx))
+      {
+        return false;
+      }
+    }
 
-      Console.debug("Creating raw transaction.", 1);
-      String transactionHex = client.createRawTransaction(inputs, outputs);
+    Set<String> written;
+    try
+    {
+      written = null != share ? share.getWritten() : writtenAccounts(outputFile);
+    }
+    catch (IOException e)
+    {
+      Console.output("@|red Unable to read output file " + outputFile + ". |@");
+      return false;
+    }
+    List<FundingAction> keyed = new ArrayList<FundingAction>();
+    for (FundingAction act : replay.getActions())
+    {
+      if (replay.isDone(act.getName()))
+      {
+        continue;
+      }
+      long sent = replay.getSent(act.getName());
+      if (sent >= act.getAmount())
+      {
+        if (written.contains(act.getName()))
+        {
+          journal.write(Journal.DONE, act.getName());
+        }
+        else
+        {
+          PendingResult result = new PendingResult(act);
+          result.addSent(sent);
+          pendingResults.add(result);
+        }
+        continue;
+      }
+      if (null != act.getPrivateKey())
+      {
+        keyed.add(act);
+      }
+      if (sent > 0)
+      {
+        resumedActions.add(act);
+        resumedSent.put(act.getName(), sent);
+      }
+      else
+      {
+        actionList.add(act);
+      }
+      totalNeeded += act.getAmount() - sent + FEE_ALLOWANCE;
+    }
+    Console.output(String.format("%d accounts left to fund.", resumedActions.size() + actionList.size()));
 
-      actual += send(transactionHex);
+    // The run may have stopped between journaling keys and importing them.
+    startKeyPool(null == replay.getSeed() ? null
+        : new HdKeyChain(LocalTransactionBuilder.bytes(replay.getSeed()), replay.getKeyPath(), config.isTestnet()));
+    if (!keyed.isEmpty())
+    {
+      try
+      {
+        keyPool.assign(keyed).join();
+      }
+      catch (CompletionException e)
+      {
+        return false;
+      }
+    }
 
-      unspentCache.removeAll(spentCache);
+    boolean newestFirst = Config.NEWEST_FIRST.equals(config.getFundingStrategy());
+    unspentCache = new UnspentIndex(newestFirst);
+    unspentCursor = new UnspentCursor(client, config.getSourceAddresses(), newestFirst, CONF_CHUNK_SIZE,
+        config.getWindowTarget(), config.getFetchWorkers());
+    for (Utxo u : replay.getUnspent())
+    {
+      unspentCache.add(u);
+      unspentCursor.exclude(u);
     }
-    return actual;
+    Console.debug("Recovered " + unspentCache.size() + " unspent from journal.", 1);
+    return true;
   }
 
-  private double sendLarge(Unspent large, List<FundingAction> destination)
+  /**
+   * Find out whether a transaction that was signed before the run stopped
+   * reached the daemon, broadcasting it again if it didn't.
+   *
+   * @return false if the daemon couldn't be asked.
+   */
+  private boolean settle(JournalReplay.Transaction tx)
   {
-    double actual = 0.0;
-
-    Console.debug("Building raw transaction.", 1);
-    List<TxInput> inputs = new ArrayList<TxInput>();
-    inputs.add(large);
-
-    List<TxOutput> outputs = new ArrayList<TxOutput>();
-
-    for (FundingAction act : destination)
+    String txid = tx.getBuiltTxid();
+    try
     {
-      TxOutput output = new BasicTxOutput(act.getPublicKey(), act.getAmount());
-      outputs.add(output);
+      if (!isKnown(txid))
+      {
+        try
+        {
+          txid = client.sendRawTransaction(tx.getHex());
+          Console.output("Resent transaction " + txid);
+        }
+        catch (ThoughtRPCException e)
+        {
+          if (e.getCause() instanceof IOException)
+          {
+            throw e;
+          }
+          // The original send may have landed while we were checking.
+          if (!isKnown(txid))
+          {
+            Console.output("@|yellow Transaction " + txid + " was rejected: " + e.getMessage() + "|@");
+            journal.write(Journal.FAILED, tx.getId(), e.getMessage());
+            tx.setFailed();
+            return true;
+          }
+        }
+      }
     }
+    catch (ThoughtRPCException e)
+    {
+      Console.output("@|red Unable to settle transaction " + txid + ": " + e.getMessage() + "|@");
+      return false;
+    }
+    Console.debug("Transaction " + txid + " was sent.", 1);
+    journal.write(Journal.SENT, tx.getId(), txid);
+    tx.setSent(txid);
+    return true;
+  }
 
-    Console.debug("Creating raw transaction.", 1);
-    String transactionHex = client.createRawTransaction(inputs, outputs);
-
-    actual += send(transactionHex);
+  /**
+   * @return whether the wallet knows the transaction.
+   * @throws ThoughtRPCException
+   *           if the daemon couldn't be reached.
+   */
+  private boolean isKnown(String txid)
+  {
+    try
+    {
+      client.query("gettransaction", txid);
+      return true;
+    }
+    catch (ThoughtRPCException e)
+    {
+      if (e.getCause() instanceof IOException)
+      {
+        throw e;
+      }
+      return false;
+    }
+  }
 
-    unspentCache.remove(large);
+  /** @return the names of the accounts already in the results file. */
+  static Set<String> writtenAccounts(File outputFile) throws IOException
+  {
+    Set<String> names = new HashSet<String>();
+    if (!outputFile.exists())
+    {
+      // Nothing written yet.
+      return names;
+    }
+    ResultsWriter.readLines(outputFile, line -> {
+      int end = line.indexOf(',');
+      if (end > 0)
+      {
+        names.add(line.substring(0, end));
+      }
+    });
+    return names;
+  }
 
-    return actual;
+  private Utxo biggestUnspent()
+  {
+    Utxo biggest = unspentCache.largest();
+    if (null != biggest)
+    {
+      Console.debug("Biggest unspent: " + Amounts.format(biggest.getAmount()), 1);
+    }
+    return biggest;
   }
 
-  private double send(String rawTransaction)
+  /**
+   * Take the largest pending action below the given amount out of the action
+   * list.
+   */
+  private FundingAction biggestUpTo(long max)
   {
-    double fee = 0.0;
-    Console.debug("Funding raw transaction.", 1);
+    return actionList.takeLargestBelow(max);
+  }
 
-    FundRawTransactionOptions opts = new FundRawTransactionOptions();
-    opts.setChangeAddress(config.getSourceAddresses()[0]);
+  /** The transactions carrying coin to a single funding action. */
+  private static class PendingResult
+  {
+    private final FundingAction                   action;
+    private final List<CompletableFuture<String>> transactions = new ArrayList<CompletableFuture<String>>();
+    private final List<Long>                      amounts      = new ArrayList<Long>();
+    private long                                  requested    = 0;
+    private long                                  sentBefore   = 0;
 
-    FundedRawTransaction funded = client.fundRawTransaction(rawTransaction, opts);
-    fee += funded.fee();
+    PendingResult(FundingAction action)
+    {
+      this.action = action;
+    }
 
-    Console.debug("Signing raw transaction.", 1);
-    String signedHex = client.signRawTransaction(funded.hex());
+    void add(CompletableFuture<String> txid, long amount)
+    {
+      transactions.add(txid);
+      amounts.add(amount);
+      requested += amount;
+    }
 
-    Console.debug("Sending raw transaction.", 1);
-    String txid = client.sendRawTransaction(signedHex);
+    /** Count an amount sent before the run was resumed. */
+    void addSent(long amount)
+    {
+      requested += amount;
+      sentBefore += amount;
+    }
 
-    Console.debug("Sent transaction " + txid, 1);
+    FundingAction getAction()
+    {
+      return action;
+    }
 
-    return fee;
-  }
+    long getRequested()
+    {
+      return requested;
+    }
 
-  private Unspent biggestUnspent()
-  {
-    Unspent biggest = unspentCache.get(0);
-    for (Unspent u : unspentCache)
+    boolean isDone()
     {
-      if (u.amount() > biggest.amount())
+      for (CompletableFuture<String> tx : transactions)
       {
-        biggest = u;
+        if (!tx.isDone()) return false;
       }
+      return true;
     }
-    Console.debug("Biggest unspent: " + Double.toString(biggest.amount()), 1);
-    return biggest;
-  }
 
-  private FundingAction biggestUpTo(double max, List<FundingAction> exclude)
-  {
-    FundingAction retval = null;
-    for (FundingAction act : actionList)
+    /** @return the amount actually sent once every transaction has finished. */
+    long await()
     {
-      if (!exclude.contains(act))
+      long sent = sentBefore;
+      for (int i = 0; i < transactions.size(); i++)
       {
-        if (act.getAmount() < max && retval == null)
+        try
         {
-          retval = act;
+          transactions.get(i).join();
+          sent += amounts.get(i);
         }
-        else if (act.getAmount() < max && act.getAmount() > retval.getAmount())
+        catch (CompletionException e)
         {
-          retval = act;
+          e.getCause().printStackTrace();
         }
       }
+      return sent;
     }
-
-    return retval;
   }
 
   public static void main(String[] args)
   {
-    Config      config = new Config(args);
-    Rationalize app    = new Rationalize(config);
-    app.run();
+    Config config = new Config(args);
+    if (!config.getNodes().isEmpty() && null == config.getExportFileName())
+    {
+      NodeFanout.run(config);
+    }
+    else
+    {
+      new Rationalize(config).run();
+    }
     Console.end();
   }
 }
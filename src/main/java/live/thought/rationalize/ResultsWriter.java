@@ -0,0 +1,396 @@
+package live.thought.rationalize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the results file on a thread of its own. Results are written in
+ * groups: a group is forced to disk once it has {@code commitRecords}
+ * results or its first result has waited {@code commitMillis}, whichever
+ * comes first, and only then are the group's callbacks run. A result counts
+ * as finished, and is recorded as done in the journal, only from its
+ * callback, so nothing is recorded as done that a crash could lose.
+ * <p>
+ * Each result is a line of the form name,private key,address,amount, with
+ * the key's path in place of a private key derived from a seed. In the
+ * {@link #GZIP} format the lines are gzip compressed; each group ends in a
+ * sync flush, so everything committed can be read back even if the run is
+ * killed before the file is finished.
+ */
+public class ResultsWriter implements Closeable
+{
+  public static final String          CSV    = "csv";
+  public static final String          GZIP   = "gzip";
+
+  private static final int            BUFFER = 1 << 16;
+  /** Marks the end of the queue. */
+  private static final Result         END    = new Result(null, null);
+
+  private final File                  file;
+  private final FileOutputStream      fileStream;
+  private final OutputStream          out;
+  private final long                  commitMillis;
+  private final int                   commitRecords;
+  private final BlockingQueue<Result> queue;
+  private final Thread                thread;
+  private volatile IOException        failure;
+
+  private ResultsWriter(File file, boolean gzip, long commitMillis, int commitRecords) throws IOException
+  {
+    this.file = file;
+    this.fileStream = new FileOutputStream(file, true);
+    this.out = gzip ? new GZIPOutputStream(fileStream, BUFFER, true) : new BufferedOutputStream(fileStream, BUFFER);
+    this.commitMillis = commitMillis;
+    this.commitRecords = Math.max(1, commitRecords);
+    this.queue = new LinkedBlockingQueue<Result>(4 * this.commitRecords);
+    this.thread = new Thread(this::writeResults, "results-writer");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /** Start a new results file in the given format, replacing any existing file. */
+  public static ResultsWriter create(File file, String format, long commitMillis, int commitRecords)
+      throws IOException
+  {
+    Files.deleteIfExists(file.toPath());
+    return new ResultsWriter(file, GZIP.equals(format), commitMillis, commitRecords);
+  }
+
+  /**
+   * Continue the results file of an interrupted run, in the format it was
+   * started in. A result cut short by a crash is removed first.
+   */
+  public static ResultsWriter resume(File file, String format, long commitMillis, int commitRecords)
+      throws IOException
+  {
+    boolean gzip = GZIP.equals(format);
+    if (file.length() > 0)
+    {
+      gzip = isGzip(file);
+      if (gzip)
+      {
+        repairGzip(file);
+      }
+      else
+      {
+        truncateToLastLine(file);
+      }
+    }
+    return new ResultsWriter(file, gzip, commitMillis, commitRecords);
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  /**
+   * Queue a result to be written, waiting if too many are queued already.
+   *
+   * @param committed
+   *          run on the writer's thread once the result is on disk.
+   * @throws IOException
+   *           if an earlier group could not be written.
+   */
+  public void write(FundingAction act, Runnable committed) throws IOException
+  {
+    checkFailure();
+    try
+    {
+      queue.put(new Result(line(act), committed));
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted writing results to " + file);
+    }
+  }
+
+  /**
+   * Wait until everything queued so far is on disk and its callbacks have run,
+   * leaving the file open for more.
+   *
+   * @throws IOException
+   *           if any group could not be written.
+   */
+  public void sync() throws IOException
+  {
+    CountDownLatch committed = new CountDownLatch(1);
+    try
+    {
+      // Groups are committed in order, so once this is, so is everything before it.
+      queue.put(new Result("", committed::countDown));
+      // After a failure the callbacks never run.
+      while (!committed.await(100, TimeUnit.MILLISECONDS))
+      {
+        checkFailure();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted writing results to " + file);
+    }
+    checkFailure();
+  }
+
+  /**
+   * Commit everything queued and close the file.
+   *
+   * @throws IOException
+   *           if any group could not be written.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      queue.put(END);
+      thread.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    try
+    {
+      out.close();
+    }
+    catch (IOException e)
+    {
+      if (null == failure)
+      {
+        failure = e;
+      }
+    }
+    checkFailure();
+  }
+
+  private void checkFailure() throws IOException
+  {
+    if (null != failure)
+    {
+      throw new IOException("Unable to write results to " + file, failure);
+    }
+  }
+
+  /** @return the result line of an action, as its toString gives it. */
+  static String line(FundingAction act)
+  {
+    // A derived key is given by its path; the seed file regenerates it.
+    String key = null != act.getKeyPath() ? act.getKeyPath() : act.getPrivateKey();
+    return new StringBuilder(160).append(act.getName()).append(',').append(key).append(',')
+        .append(act.getPublicKey()).append(',').append(Amounts.format(act.getAmount())).append('\n').toString();
+  }
+
+  private void writeResults()
+  {
+    List<Result> group = new ArrayList<Result>(commitRecords);
+    boolean      done  = false;
+    while (!done)
+    {
+      try
+      {
+        Result first = queue.take();
+        if (END == first)
+        {
+          break;
+        }
+        group.add(first);
+        // Whatever is already queued joins the group, then more until it's due.
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitMillis);
+        while (group.size() < commitRecords)
+        {
+          Result next = queue.poll(Math.max(0, due - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (null == next)
+          {
+            break;
+          }
+          if (END == next)
+          {
+            done = true;
+            break;
+          }
+          group.add(next);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        done = true;
+      }
+      commit(group);
+      group.clear();
+    }
+    commit(group);
+  }
+
+  /** Write a group, force it to disk, and run its callbacks. */
+  private void commit(List<Result> group)
+  {
+    // After a failure nothing more is written, but the queue is still drained.
+    if (group.isEmpty() || null != failure)
+    {
+      return;
+    }
+    try
+    {
+      for (Result r : group)
+      {
+        out.write(r.line.getBytes(StandardCharsets.UTF_8));
+      }
+      out.flush();
+      fileStream.getChannel().force(false);
+    }
+    catch (IOException e)
+    {
+      failure = e;
+      return;
+    }
+    try
+    {
+      for (Result r : group)
+      {
+        r.committed.run();
+      }
+    }
+    catch (RuntimeException e)
+    {
+      failure = new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Read the complete lines of a results file in either format. A line cut
+   * short by a crash, or the end of a gzip file that was never finished, is
+   * ignored.
+   */
+  public static void readLines(File file, LineConsumer consumer) throws IOException
+  {
+    boolean gzip = isGzip(file);
+    try (InputStream raw = new BufferedInputStream(new FileInputStream(file), BUFFER))
+    {
+      // Bytes, not a Reader, so nothing already inflated is lost at an unfinished end.
+      InputStream           in    = gzip ? new GZIPInputStream(raw, BUFFER) : raw;
+      byte[]                bytes = new byte[BUFFER];
+      ByteArrayOutputStream line  = new ByteArrayOutputStream(256);
+      int                   n;
+      try
+      {
+        while ((n = in.read(bytes)) > 0)
+        {
+          int start = 0;
+          for (int i = 0; i < n; i++)
+          {
+            if (bytes[i] == '\n')
+            {
+              line.write(bytes, start, i - start);
+              consumer.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+              line.reset();
+              start = i + 1;
+            }
+          }
+          line.write(bytes, start, n - start);
+        }
+      }
+      catch (EOFException e)
+      {
+        // The last gzip member was never finished.
+      }
+    }
+  }
+
+  private static boolean isGzip(File file) throws IOException
+  {
+    try (InputStream in = new FileInputStream(file))
+    {
+      return in.read() == 0x1f && in.read() == 0x8b;
+    }
+  }
+
+  /** Cut off anything after the last complete line. */
+  private static void truncateToLastLine(File file) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+    {
+      ByteBuffer buffer = ByteBuffer.allocate(4096);
+      long       end    = channel.size();
+      while (end > 0)
+      {
+        long start = Math.max(0, end - buffer.capacity());
+        buffer.clear().limit((int) (end - start));
+        while (buffer.hasRemaining())
+        {
+          channel.read(buffer, start + buffer.position());
+        }
+        for (int i = buffer.limit() - 1; i >= 0; i--)
+        {
+          if (buffer.get(i) == '\n')
+          {
+            channel.truncate(start + i + 1);
+            return;
+          }
+        }
+        end = start;
+      }
+      channel.truncate(0);
+    }
+  }
+
+  /**
+   * Rewrite a gzip results file whose last member may never have been
+   * finished, so more members can be appended to it.
+   */
+  private static void repairGzip(File file) throws IOException
+  {
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(temp);
+        GZIPOutputStream gz = new GZIPOutputStream(fos, BUFFER))
+    {
+      readLines(file, line -> gz.write((line + "\n").getBytes(StandardCharsets.UTF_8)));
+      gz.finish();
+      fos.getChannel().force(false);
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Takes the lines read by {@link ResultsWriter#readLines}. */
+  public interface LineConsumer
+  {
+    void accept(String line) throws IOException;
+  }
+
+  private static class Result
+  {
+    private final String   line;
+    private final Runnable committed;
+
+    Result(String line, Runnable committed)
+    {
+      this.line = line;
+      this.committed = committed;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package live.thought.rationalize;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Carries JSON-RPC requests to the daemon and hands back the responses. The
+ * response body is read while the connection is held, so large responses can
+ * be parsed as they arrive instead of being buffered first.
+ */
+public interface RpcTransport extends Closeable
+{
+  /** How long to wait for a connection to the daemon */
+  int CONNECT_TIMEOUT_MILLIS = 30000;
+  /** How long to wait on a response that has stopped arriving; listunspent on a large wallet can take a while */
+  int READ_TIMEOUT_MILLIS    = 300000;
+
+  /**
+   * Post a request and read its response.
+   *
+   * @param request
+   *          the JSON request body.
+   * @param reader
+   *          reads the response; its body is already decompressed.
+   * @return what the reader returns.
+   * @throws IOException
+   *           if the daemon can't be reached, stops answering, or the reader
+   *           fails. The request may or may not have been carried out.
+   */
+  <T> T post(byte[] request, ResponseReader<T> reader) throws IOException;
+
+  /** Close any connections kept open. */
+  @Override
+  void close();
+
+  /** Reads the response to a request. */
+  interface ResponseReader<T>
+  {
+    /**
+     * @param status
+     *          the HTTP status.
+     * @param body
+     *          the response body, which may be empty on an error status. It
+     *          need not be read to the end.
+     */
+    T read(int status, InputStream body) throws IOException;
+  }
+
+  /** @return a new transport of the kind the config names. */
+  static RpcTransport forConfig(Config config, int connections)
+  {
+    String authorization = KeepAliveTransport.basicAuthorization(config.getUser(), config.getPassword());
+    return Config.URL_TRANSPORT.equals(config.getRpcTransport())
+        ? new UrlConnectionTransport(config.getHost(), config.getPort(), authorization)
+        : new KeepAliveTransport(config.getHost(), config.getPort(), authorization, connections);
+  }
+}
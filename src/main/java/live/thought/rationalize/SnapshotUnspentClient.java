@@ -0,0 +1,96 @@
+package live.thought.rationalize;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import live.thought.thought4j.ThoughtRPCClient;
+
+/**
+ * Answers block count and unspent queries from an {@link UnspentSnapshot}
+ * instead of the wallet, so an {@link UnspentCursor} walks the saved outputs
+ * exactly as it would walk the wallet's. Blocks newer than the snapshot are
+ * asked of the wallet, unless it is offline. Every other call fails, so
+ * nothing can reach the wallet through it.
+ */
+public class SnapshotUnspentClient extends ThoughtRPCClient
+{
+  private final ThoughtRPCClient                  wallet;
+  private final boolean                           offline;
+  private final int                               height;
+  /** Newest block the snapshot is complete up to */
+  private final int                               covered;
+  private final NavigableMap<Integer, List<Utxo>> byHeight = new TreeMap<Integer, List<Utxo>>();
+  /** Block count given to the cursor, which its confirmations are counted from. */
+  private volatile int                            tip;
+
+  /**
+   * @param offline
+   *          whether to answer from the snapshot alone, as if the chain were
+   *          still at its block count.
+   */
+  public SnapshotUnspentClient(UnspentSnapshot snapshot, ThoughtRPCClient wallet, boolean offline)
+  {
+    super(wallet.rpcURL);
+    this.wallet = wallet;
+    this.offline = offline;
+    this.height = snapshot.getHeight();
+    this.covered = height - UnspentCursor.MIN_CONFIRMATIONS + 1;
+    this.tip = height;
+    for (Utxo u : snapshot.getUnspent())
+    {
+      byHeight.computeIfAbsent(height - u.getConfirmations() + 1, h -> new ArrayList<Utxo>()).add(u);
+    }
+  }
+
+  @Override
+  public Object query(String method, Object... o)
+  {
+    switch (method)
+    {
+      case "getblockcount":
+        tip = offline ? height : wallet.getBlockCount();
+        return tip;
+      case "listunspent":
+        return listUnspent(((Number) o[0]).intValue(), ((Number) o[1]).intValue(), o[2]);
+      default:
+        throw new IllegalStateException("Unspent inputs can't call " + method + ".");
+    }
+  }
+
+  private List<Object> listUnspent(int minconf, int maxconf, Object addresses)
+  {
+    int          current = tip;
+    int          low     = current - maxconf + 1;
+    int          high    = current - minconf + 1;
+    List<Object> result  = new ArrayList<Object>();
+    if (low <= covered)
+    {
+      for (List<Utxo> block : byHeight.subMap(low, true, Math.min(high, covered), true).values())
+      {
+        for (Utxo u : block)
+        {
+          Map<String, Object> m = new LinkedHashMap<String, Object>();
+          m.put("txid", u.getTxid());
+          m.put("vout", u.getVout());
+          m.put("address", u.getAddress());
+          m.put("amount", Amounts.toCoins(u.getAmount()));
+          m.put("confirmations", u.getConfirmations() + current - height);
+          m.put("spendable", Boolean.TRUE);
+          m.put("solvable", Boolean.TRUE);
+          result.add(m);
+        }
+      }
+    }
+    if (high > covered && !offline)
+    {
+      // Blocks since the snapshot come from the wallet.
+      int sinceMaxconf = current - Math.max(low, covered + 1) + 1;
+      result.addAll((List<?>) wallet.query("listunspent", minconf, sinceMaxconf, addresses));
+    }
+    return result;
+  }
+}
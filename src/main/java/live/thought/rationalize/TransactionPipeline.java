@@ -0,0 +1,265 @@
+package live.thought.rationalize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import live.thought.thought4j.ThoughtRPCClient;
+import live.thought.thought4j.ThoughtClientInterface.BasicTxOutput;
+import live.thought.thought4j.ThoughtClientInterface.FundRawTransactionOptions;
+import live.thought.thought4j.ThoughtClientInterface.FundedRawTransaction;
+import live.thought.thought4j.ThoughtClientInterface.TxInput;
+import live.thought.thought4j.ThoughtClientInterface.TxOutput;
+
+/**
+ * Submits transactions to the daemon through separate build, fund, sign and
+ * send stages, keeping up to a fixed number of transactions in flight at once.
+ * Callers are responsible for handing each submission its own inputs.
+ * Signed transactions are journaled before they are broadcast.
+ * <p>
+ * With a {@link LocalTransactionBuilder}, transactions are built and funded
+ * in the build stage without calling the daemon, falling back to the daemon
+ * only when the reserved inputs can't cover the fee. With a
+ * {@link LocalSigner} as well, they are signed without it too, so the daemon
+ * only sees the broadcast.
+ */
+public class TransactionPipeline
+{
+  private final ThoughtRPCClient        client;
+  private final String                  changeAddress;
+  /** Builds transactions in place of the daemon, or null to use the daemon */
+  private final LocalTransactionBuilder builder;
+  /** Signs locally built transactions, or null to have the daemon sign them */
+  private final LocalSigner             signer;
+  private final Journal                 journal;
+  private final Semaphore               inFlight;
+  private final ExecutorService         buildStage;
+  private final ExecutorService         fundStage;
+  private final ExecutorService         signStage;
+  private final ExecutorService         sendStage;
+  private final LongAdder               fees = new LongAdder();
+
+  /**
+   * @param builder
+   *          builds transactions locally, or null to have the daemon build
+   *          and fund them.
+   * @param signer
+   *          signs the locally built transactions, or null to have the
+   *          daemon sign them.
+   */
+  public TransactionPipeline(ThoughtRPCClient client, String changeAddress, LocalTransactionBuilder builder,
+      LocalSigner signer, Journal journal, int concurrency)
+  {
+    this.client = client;
+    this.changeAddress = changeAddress;
+    this.builder = builder;
+    this.signer = signer;
+    this.journal = journal;
+    this.inFlight = new Semaphore(concurrency);
+    this.buildStage = Executors.newFixedThreadPool(concurrency, new StageThreadFactory("build"));
+    this.fundStage = Executors.newFixedThreadPool(concurrency, new StageThreadFactory("fund"));
+    this.signStage = Executors.newFixedThreadPool(concurrency, new StageThreadFactory("sign"));
+    this.sendStage = Executors.newFixedThreadPool(concurrency, new StageThreadFactory("send"));
+  }
+
+  /**
+   * Queue a transaction for submission, blocking while the pipeline is full.
+   *
+   * @param id
+   *          the journal's number for the transaction.
+   * @param outputs
+   *          amounts by destination address.
+   * @param changeless
+   *          whether to leave whatever the outputs don't take to the fee
+   *          rather than have it paid back as change.
+   * @return a future completing with the broadcast transaction id.
+   */
+  public CompletableFuture<String> submit(long id, List<Utxo> inputs, Map<String, Long> outputs,
+      boolean changeless)
+  {
+    return submit(id, inputs, outputs, changeless, CompletableFuture.completedFuture(null));
+  }
+
+  /**
+   * Queue a transaction that must not be broadcast before something else is
+   * done, such as importing the keys of its outputs. It is built and signed
+   * meanwhile.
+   *
+   * @param ready
+   *          completes when the transaction may be broadcast; if it fails,
+   *          so does the transaction.
+   */
+  public CompletableFuture<String> submit(long id, List<Utxo> inputs, Map<String, Long> outputs,
+      boolean changeless, CompletableFuture<?> ready)
+  {
+    inFlight.acquireUninterruptibly();
+    CompletableFuture<String> signed;
+    if (null == builder)
+    {
+      CompletableFuture<String> built = CompletableFuture.supplyAsync(() -> build(inputs, outputs), buildStage);
+      // Funding would add change, and the inputs already cover the fee.
+      signed = (changeless ? built.thenApply(t -> unfunded(t, inputs, outputs))
+          : built.thenApplyAsync(this::fund, fundStage)).thenApplyAsync(this::sign, signStage);
+    }
+    else
+    {
+      signed = CompletableFuture.supplyAsync(() -> buildLocally(inputs, outputs, changeless), buildStage)
+          .thenApplyAsync(built -> null != built ? signLocally(built) : sign(fund(build(inputs, outputs))),
+              signStage);
+    }
+    CompletableFuture<String> txid = signed.thenCombine(ready, (t, r) -> t).thenApplyAsync(t -> send(id, t),
+        sendStage);
+    txid.whenComplete((t, e) -> {
+      try
+      {
+        if (null == e)
+        {
+          journal.write(Journal.SENT, id, t);
+        }
+        else
+        {
+          journal.write(Journal.FAILED, id, null != e.getCause() ? e.getCause().getMessage() : e.getMessage());
+        }
+      }
+      finally
+      {
+        inFlight.release();
+      }
+    });
+    return txid;
+  }
+
+  /** @return total fees paid, in units of 1e-8 THT. */
+  public long getFees()
+  {
+    return fees.sum();
+  }
+
+  public void shutdown()
+  {
+    buildStage.shutdown();
+    fundStage.shutdown();
+    signStage.shutdown();
+    sendStage.shutdown();
+    try
+    {
+      sendStage.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String build(List<Utxo> inputs, Map<String, Long> outputs)
+  {
+    Console.debug("Creating raw transaction.", 1);
+    List<TxInput> txInputs = new ArrayList<TxInput>(inputs.size());
+    for (Utxo u : inputs)
+    {
+      txInputs.add(u.toInput());
+    }
+    List<TxOutput> txOutputs = new ArrayList<TxOutput>(outputs.size());
+    for (Map.Entry<String, Long> e : outputs.entrySet())
+    {
+      txOutputs.add(new BasicTxOutput(e.getKey(), Amounts.toCoins(e.getValue())));
+    }
+    return client.createRawTransaction(txInputs, txOutputs);
+  }
+
+  /** @return the transaction built locally, or null if its inputs don't cover the fee. */
+  private LocalTransactionBuilder.Built buildLocally(List<Utxo> inputs, Map<String, Long> outputs,
+      boolean changeless)
+  {
+    LocalTransactionBuilder.Built built = builder.build(inputs, outputs, changeless);
+    if (null == built)
+    {
+      Console.debug("Inputs don't cover the fee; having the daemon fund the transaction.", 1);
+      return null;
+    }
+    fees.add(built.getFee());
+    return built;
+  }
+
+  private String signLocally(LocalTransactionBuilder.Built built)
+  {
+    if (null == signer)
+    {
+      return sign(built.getHex());
+    }
+    Console.debug("Signing raw transaction locally.", 1);
+    return signer.sign(built);
+  }
+
+  /** @return the transaction as built, whatever its outputs don't take left to the fee. */
+  private String unfunded(String rawTransaction, List<Utxo> inputs, Map<String, Long> outputs)
+  {
+    Console.debug("Leaving the change to the fee.", 1);
+    long fee = 0;
+    for (Utxo u : inputs)
+    {
+      fee += u.getAmount();
+    }
+    for (long amount : outputs.values())
+    {
+      fee -= amount;
+    }
+    fees.add(fee);
+    return rawTransaction;
+  }
+
+  private String fund(String rawTransaction)
+  {
+    Console.debug("Funding raw transaction.", 1);
+    FundRawTransactionOptions opts = new FundRawTransactionOptions();
+    opts.setChangeAddress(changeAddress);
+
+    FundedRawTransaction funded = client.fundRawTransaction(rawTransaction, opts);
+    fees.add(Amounts.toUnits(funded.fee()));
+    return funded.hex();
+  }
+
+  private String sign(String fundedTransaction)
+  {
+    Console.debug("Signing raw transaction.", 1);
+    return client.signRawTransaction(fundedTransaction);
+  }
+
+  private String send(long id, String signedTransaction)
+  {
+    // If we crash after this, a resumed run can tell whether it went out.
+    journal.write(Journal.BUILT, id, signedTransaction);
+    journal.sync();
+    Console.debug("Sending raw transaction.", 1);
+    String txid = client.sendRawTransaction(signedTransaction);
+    Console.debug("Sent transaction " + txid, 1);
+    return txid;
+  }
+
+  private static class StageThreadFactory implements ThreadFactory
+  {
+    private final String        stage;
+    private final AtomicInteger count = new AtomicInteger();
+
+    StageThreadFactory(String stage)
+    {
+      this.stage = stage;
+    }
+
+    @Override
+    public Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(r, "rationalize-" + stage + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
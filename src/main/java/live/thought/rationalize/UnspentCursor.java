@@ -0,0 +1,264 @@
+package live.thought.rationalize;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import live.thought.thought4j.ThoughtRPCClient;
+import live.thought.thought4j.ThoughtClientInterface.Unspent;
+
+/**
+ * Walks the source addresses' unspent outputs one block window at a time,
+ * oldest or newest first, and remembers where it stopped. A refill picks up
+ * with the next window instead of starting over, and an output is never
+ * handed out twice, so inputs already reserved or spent by transactions that
+ * are still unconfirmed don't come back.
+ * <p>
+ * Windows are tracked by block height rather than confirmations, so they
+ * stay put as new blocks arrive during a run. Each window is sized from the
+ * density of outputs seen in the windows before it, aiming for a target
+ * number of outputs per call, and shrunk if calls are slow.
+ * <p>
+ * Several windows are fetched at once, but their outputs are added to the
+ * cache strictly in walk order. Windows still in flight when the cache has
+ * enough are kept for the next fill.
+ */
+public class UnspentCursor
+{
+  /** Outputs need this many confirmations to be used. */
+  public static final int        MIN_CONFIRMATIONS = 6;
+  /** Bounds on a window, in blocks. */
+  public static final int        MIN_WINDOW        = 10;
+  public static final int        MAX_WINDOW        = 1000000;
+  /** Most a window may grow from one call to the next. */
+  private static final int       MAX_GROWTH        = 4;
+  /** A call slower than this shrinks the next window. */
+  private static final long      SLOW_CALL_MILLIS  = 2000;
+  /** Weight of the latest window in the running density. */
+  private static final double    SMOOTHING         = 0.5;
+
+  private final ThoughtRPCClient client;
+  private final String[]         addresses;
+  private final boolean          newestFirst;
+  /** Outputs to aim for in each call */
+  private final int              target;
+  private final int              workers;
+  private final ExecutorService  pool;
+  /** Windows being fetched, in walk order */
+  private final Deque<Window>    inFlight          = new ArrayDeque<Window>();
+  /** Size of the next window, in blocks */
+  private int                    windowSize;
+  /** Running average of outputs per block, or negative before the first window */
+  private double                 density           = -1;
+  /** Next height to fetch from, walking up when oldest first and down when newest first. */
+  private int                    next              = -1;
+  /** Highest height fetched so far, when newest first. */
+  private int                    top               = -1;
+  /** Every outpoint handed out so far. */
+  private final Set<String>      seen              = new HashSet<String>();
+
+  /**
+   * @param windowSize
+   *          size of the first window, in blocks.
+   * @param target
+   *          number of outputs to aim for in each call.
+   * @param workers
+   *          number of windows to fetch at once.
+   */
+  public UnspentCursor(ThoughtRPCClient client, String[] addresses, boolean newestFirst, int windowSize, int target,
+      int workers)
+  {
+    this.client = client;
+    this.addresses = addresses;
+    this.newestFirst = newestFirst;
+    this.windowSize = windowSize;
+    this.target = target;
+    this.workers = workers;
+    AtomicInteger count = new AtomicInteger();
+    this.pool = Executors.newFixedThreadPool(workers, r -> {
+      Thread t = new Thread(r, "rationalize-unspent-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /** Make sure an output already held elsewhere, such as a resumed cache, isn't fetched again. */
+  public void exclude(Utxo utxo)
+  {
+    seen.add(utxo.getOutpoint());
+  }
+
+  /**
+   * Fetch windows from where the last call stopped and add their outputs to
+   * the cache, until it holds the balance or there are no more windows.
+   *
+   * @return the outputs added.
+   */
+  public List<Utxo> fill(UnspentIndex cache, long balanceNeeded)
+  {
+    List<Utxo> added = new ArrayList<Utxo>();
+    Console.debug("Getting block count.", 1);
+    int tip = client.getBlockCount();
+    Console.debug("Found " + tip + " blocks.", 1);
+    // The newest height with enough confirmations.
+    int matured = tip - MIN_CONFIRMATIONS + 1;
+
+    if (newestFirst)
+    {
+      if (top < 0)
+      {
+        top = matured;
+        next = matured;
+      }
+      else if (matured > top)
+      {
+        // Blocks that matured since the last fill are the newest of all.
+        inFlight.addFirst(submit(top + 1, matured, tip));
+        top = matured;
+      }
+    }
+    else if (next < 0)
+    {
+      next = 1;
+    }
+
+    while (cache.getTotal() < balanceNeeded)
+    {
+      while (inFlight.size() < workers && (newestFirst ? next >= 1 : next <= matured))
+      {
+        if (newestFirst)
+        {
+          int low = Math.max(1, next - windowSize + 1);
+          inFlight.addLast(submit(low, next, tip));
+          next = low - 1;
+        }
+        else
+        {
+          int high = Math.min(matured, next + windowSize - 1);
+          inFlight.addLast(submit(next, high, tip));
+          next = high + 1;
+        }
+      }
+      if (inFlight.isEmpty())
+      {
+        break;
+      }
+      take(inFlight.removeFirst(), cache, added);
+    }
+    Console.debug("Final transaction count: " + cache.size(), 1);
+    Console.debug("Spendable balance: " + Amounts.format(cache.getTotal()), 1);
+    return added;
+  }
+
+  /** Stop the fetch workers, abandoning any windows still in flight. */
+  public void shutdown()
+  {
+    pool.shutdownNow();
+  }
+
+  /** Start fetching the outputs confirmed in blocks low to high, inclusive. */
+  private Window submit(int low, int high, int tip)
+  {
+    Window window  = new Window(low, high);
+    int    minconf = tip - high + 1;
+    int    maxconf = tip - low + 1;
+    Console.debug("  Fetching unspent at confirmations " + minconf + " to " + maxconf, 1);
+    window.unspent = CompletableFuture.supplyAsync(() -> {
+      long       start   = System.currentTimeMillis();
+      List<Utxo> unspent = listUnspent(client, minconf, maxconf, addresses);
+      window.elapsed = System.currentTimeMillis() - start;
+      return unspent;
+    }, pool);
+    return window;
+  }
+
+  /** Wait for a window and add its new outputs to the cache. */
+  private void take(Window window, UnspentIndex cache, List<Utxo> added)
+  {
+    List<Utxo> unspent;
+    try
+    {
+      unspent = window.unspent.join();
+    }
+    catch (CompletionException e)
+    {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+    int blocks = window.high - window.low + 1;
+    resize(blocks, unspent.size(), window.elapsed);
+    Console.debug(String.format("  Blocks %d to %d: %d unspent in %d ms, %.3f per block; next window %d blocks",
+        window.low, window.high, unspent.size(), window.elapsed, density, windowSize), 1);
+
+    for (Utxo utxo : unspent)
+    {
+      if (seen.add(utxo.getOutpoint()))
+      {
+        cache.add(utxo);
+        added.add(utxo);
+      }
+    }
+  }
+
+  /**
+   * @return the spendable outputs of the addresses with between minconf and
+   *         maxconf confirmations, read as they arrive when the client can.
+   */
+  static List<Utxo> listUnspent(ThoughtRPCClient client, int minconf, int maxconf, String... addresses)
+  {
+    if (client instanceof MeteredRPCClient)
+    {
+      return ((MeteredRPCClient) client).listUtxos(minconf, maxconf, addresses);
+    }
+    List<Utxo> utxos = new ArrayList<Utxo>();
+    for (Unspent u : client.listUnspent(minconf, maxconf, addresses))
+    {
+      if (u.solvable() && u.spendable())
+      {
+        utxos.add(new Utxo(u));
+      }
+    }
+    return utxos;
+  }
+
+  /** Size the next window from what the last one returned. */
+  private void resize(int blocks, int count, long elapsed)
+  {
+    double observed = (double) count / blocks;
+    density = density < 0 ? observed : SMOOTHING * observed + (1 - SMOOTHING) * density;
+
+    long size = (long) windowSize * MAX_GROWTH;
+    if (density > 0)
+    {
+      size = Math.min(size, (long) (target / density));
+    }
+    if (elapsed > SLOW_CALL_MILLIS)
+    {
+      size = Math.min(size, blocks * SLOW_CALL_MILLIS / elapsed);
+    }
+    windowSize = (int) Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, size));
+  }
+
+  /** A range of blocks being fetched. */
+  private static class Window
+  {
+    private final int                     low;
+    private final int                     high;
+    private CompletableFuture<List<Utxo>> unspent;
+    /** Time the call took, set by the worker before the future completes. */
+    private volatile long                 elapsed;
+
+    Window(int low, int high)
+    {
+      this.low = low;
+      this.high = high;
+    }
+  }
+}
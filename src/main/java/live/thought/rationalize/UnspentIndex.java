@@ -0,0 +1,163 @@
+package live.thought.rationalize;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The unspent cache. Outputs are keyed by outpoint and kept ordered both by
+ * amount and by age, so that finding or taking the largest output, taking
+ * outputs in funding strategy order, and removing a spent output are all
+ * O(log n) per output rather than scans of the whole cache.
+ */
+public class UnspentIndex implements Iterable<Utxo>
+{
+  private static final Comparator<Utxo> BY_OUTPOINT = Comparator.comparing(Utxo::getTxid)
+      .thenComparingInt(Utxo::getVout);
+  private static final Comparator<Utxo> BY_AMOUNT   = Comparator.comparingLong(Utxo::getAmount)
+      .thenComparing(BY_OUTPOINT);
+
+  private final Map<String, Utxo> byOutpoint = new HashMap<String, Utxo>();
+  private final TreeSet<Utxo>     byAmount   = new TreeSet<Utxo>(BY_AMOUNT);
+  /** Ordered by the funding strategy: oldest or newest first. */
+  private final TreeSet<Utxo>     byAge;
+  private long                    total      = 0;
+
+  public UnspentIndex(boolean newestFirst)
+  {
+    Comparator<Utxo> age = Comparator.comparingInt(Utxo::getConfirmations);
+    if (!newestFirst)
+    {
+      age = age.reversed();
+    }
+    byAge = new TreeSet<Utxo>(age.thenComparing(BY_OUTPOINT));
+  }
+
+  /** @return false if the output was already in the index. */
+  public boolean add(Utxo u)
+  {
+    if (null != byOutpoint.putIfAbsent(u.getOutpoint(), u))
+    {
+      return false;
+    }
+    byAmount.add(u);
+    byAge.add(u);
+    total += u.getAmount();
+    return true;
+  }
+
+  /** @return false if the output was not in the index. */
+  public boolean remove(Utxo u)
+  {
+    Utxo indexed = byOutpoint.remove(u.getOutpoint());
+    if (null == indexed)
+    {
+      return false;
+    }
+    byAmount.remove(indexed);
+    byAge.remove(indexed);
+    total -= indexed.getAmount();
+    return true;
+  }
+
+  public boolean contains(Utxo u)
+  {
+    return byOutpoint.containsKey(u.getOutpoint());
+  }
+
+  /** @return the largest output, or null if the index is empty. */
+  public Utxo largest()
+  {
+    return byAmount.isEmpty() ? null : byAmount.last();
+  }
+
+  /**
+   * Iterate outputs from the largest down, starting at the largest whose
+   * amount is no more than max (or strictly less, if not inclusive).
+   */
+  public Iterator<Utxo> descendingFrom(long max, boolean inclusive)
+  {
+    Utxo bound = inclusive ? above(max) : below(max);
+    return byAmount.headSet(bound, false).descendingIterator();
+  }
+
+  /** @return the smallest output whose amount exceeds min, or null if none. */
+  public Utxo smallestAbove(long min)
+  {
+    return byAmount.higher(above(min));
+  }
+
+  /** A probe ordered after every output of the given amount. */
+  private static Utxo above(long amount)
+  {
+    return new Utxo("\uffff", Integer.MAX_VALUE, amount, 0, null);
+  }
+
+  /** A probe ordered before every output of the given amount. */
+  private static Utxo below(long amount)
+  {
+    return new Utxo("", Integer.MIN_VALUE, amount, 0, null);
+  }
+
+  /** Remove and return the largest output, or null if the index is empty. */
+  public Utxo takeLargest()
+  {
+    Utxo u = largest();
+    if (null != u)
+    {
+      remove(u);
+    }
+    return u;
+  }
+
+  /**
+   * Remove outputs in funding strategy order until their total reaches the
+   * amount.
+   *
+   * @return the outputs taken, or null (taking nothing) if the whole index
+   *         can't reach the amount.
+   */
+  public List<Utxo> take(long amount)
+  {
+    if (total < amount)
+    {
+      return null;
+    }
+    List<Utxo> taken   = new ArrayList<Utxo>();
+    long       balance = 0;
+    while (balance < amount && !byAge.isEmpty())
+    {
+      Utxo u = byAge.first();
+      remove(u);
+      taken.add(u);
+      balance += u.getAmount();
+    }
+    return taken;
+  }
+
+  public int size()
+  {
+    return byOutpoint.size();
+  }
+
+  public boolean isEmpty()
+  {
+    return byOutpoint.isEmpty();
+  }
+
+  public long getTotal()
+  {
+    return total;
+  }
+
+  /** Iterates in funding strategy order. */
+  @Override
+  public Iterator<Utxo> iterator()
+  {
+    return byAge.iterator();
+  }
+}
@@ -0,0 +1,309 @@
+package live.thought.rationalize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import live.thought.thought4j.ThoughtRPCClient;
+
+/**
+ * The source addresses' unspent outputs as of a block count, kept between
+ * runs so the next run only has to ask the wallet what changed since. The
+ * outputs are complete up to the newest block that had
+ * {@link UnspentCursor#MIN_CONFIRMATIONS} confirmations at that count; that
+ * block's hash is kept too, to tell whether the chain has been reorganized
+ * since.
+ * <p>
+ * The file is binary: a header with the block count, the block hash and the
+ * addresses, then 50 bytes for each output: its txid, vout, amount in units
+ * of 1e-8 THT, the height of the block that confirmed it, and the index of
+ * its address in the header.
+ */
+public class UnspentSnapshot
+{
+  /** "RUS" and a format version. */
+  private static final int   MAGIC = 0x52555301;
+
+  private int                height;
+  private String             blockHash;
+  private final List<String> addresses;
+  /** Confirmations are counted at the snapshot's block count. */
+  private List<Utxo>         unspent;
+
+  /**
+   * @param height
+   *          the block count when the outputs' confirmations were counted.
+   * @param blockHash
+   *          the hash of the newest block the outputs are complete up to.
+   */
+  public UnspentSnapshot(int height, String blockHash, String[] addresses, List<Utxo> unspent)
+  {
+    this.height = height;
+    this.blockHash = blockHash;
+    this.addresses = new ArrayList<String>(Arrays.asList(addresses));
+    this.unspent = unspent;
+  }
+
+  public int getHeight()
+  {
+    return height;
+  }
+
+  public String getBlockHash()
+  {
+    return blockHash;
+  }
+
+  public List<Utxo> getUnspent()
+  {
+    return unspent;
+  }
+
+  /** @return whether the snapshot holds the outputs of exactly these addresses. */
+  public boolean isFor(String[] sourceAddresses)
+  {
+    return new HashSet<String>(addresses).equals(new HashSet<String>(Arrays.asList(sourceAddresses)));
+  }
+
+  /**
+   * Bring the snapshot up to the wallet's current block count: drop the
+   * outputs spent by the wallet's transactions since the snapshot's newest
+   * block, and add the outputs confirmed in the blocks since then.
+   *
+   * @return false if that block is no longer in the chain, so the snapshot
+   *         can't be trusted.
+   */
+  public boolean refresh(ThoughtRPCClient client, JsonRpcBatch batch) throws IOException
+  {
+    int tip     = client.getBlockCount();
+    int covered = height - UnspentCursor.MIN_CONFIRMATIONS + 1;
+    int matured = tip - UnspentCursor.MIN_CONFIRMATIONS + 1;
+    if (matured < covered || !blockHash.equals(client.query("getblockhash", covered)))
+    {
+      Console.output("The chain has been reorganized since the unspent snapshot was taken.");
+      return false;
+    }
+
+    Map<String, Utxo> byOutpoint = new LinkedHashMap<String, Utxo>();
+    for (Utxo u : unspent)
+    {
+      byOutpoint.put(u.getOutpoint(), u);
+    }
+    int spent = dropSpent(client, batch, byOutpoint);
+
+    // Count confirmations at the new tip.
+    int        shift     = tip - height;
+    List<Utxo> refreshed = new ArrayList<Utxo>(byOutpoint.size());
+    for (Utxo u : byOutpoint.values())
+    {
+      refreshed.add(shift == 0 ? u
+          : new Utxo(u.getTxid(), u.getVout(), u.getAmount(), u.getConfirmations() + shift, u.getAddress()));
+    }
+    int added = 0;
+    if (matured > covered)
+    {
+      Console.debug("  Fetching unspent at confirmations " + UnspentCursor.MIN_CONFIRMATIONS + " to "
+          + (tip - covered), 1);
+      for (Utxo u : UnspentCursor.listUnspent(client, UnspentCursor.MIN_CONFIRMATIONS, tip - covered,
+          addresses.toArray(new String[addresses.size()])))
+      {
+        if (!byOutpoint.containsKey(u.getOutpoint()))
+        {
+          refreshed.add(u);
+          added++;
+        }
+      }
+      blockHash = (String) client.query("getblockhash", matured);
+    }
+    Console.output(String.format("Unspent snapshot brought from block %d to %d: %d spent, %d new.", height, tip,
+        spent, added));
+    height = tip;
+    unspent = refreshed;
+    return true;
+  }
+
+  /**
+   * Remove the outputs spent by the wallet's transactions since the
+   * snapshot's newest block, including those not yet confirmed.
+   *
+   * @return the number removed.
+   */
+  private int dropSpent(ThoughtRPCClient client, JsonRpcBatch batch, Map<String, Utxo> byOutpoint)
+      throws IOException
+  {
+    // Anything spending the wallet's outputs shows up as a send.
+    Set<String> txids = new LinkedHashSet<String>();
+    Map<?, ?>   since = (Map<?, ?>) client.query("listsinceblock", blockHash);
+    for (Object o : (List<?>) since.get("transactions"))
+    {
+      Map<?, ?> tx = (Map<?, ?>) o;
+      if ("send".equals(tx.get("category")))
+      {
+        txids.add((String) tx.get("txid"));
+      }
+    }
+    List<Object[]> lookups = new ArrayList<Object[]>(txids.size());
+    for (String txid : txids)
+    {
+      lookups.add(new Object[] { txid });
+    }
+    List<Object[]> decodes = new ArrayList<Object[]>(txids.size());
+    for (JsonRpcBatch.Result result : batch.call("gettransaction", lookups))
+    {
+      if (result.isError())
+      {
+        throw new IOException("Unable to get transaction: " + result.getError());
+      }
+      decodes.add(new Object[] { ((Map<?, ?>) result.getResult()).get("hex") });
+    }
+    int spent = 0;
+    for (JsonRpcBatch.Result result : batch.call("decoderawtransaction", decodes))
+    {
+      if (result.isError())
+      {
+        throw new IOException("Unable to decode transaction: " + result.getError());
+      }
+      for (Object o : (List<?>) ((Map<?, ?>) result.getResult()).get("vin"))
+      {
+        Map<?, ?> in = (Map<?, ?>) o;
+        // Coinbase inputs have no txid.
+        if (null != in.get("txid")
+            && null != byOutpoint.remove(in.get("txid") + ":" + ((Number) in.get("vout")).intValue()))
+        {
+          spent++;
+        }
+      }
+    }
+    return spent;
+  }
+
+  public static UnspentSnapshot read(File file) throws IOException
+  {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+    {
+      if (in.readInt() != MAGIC)
+      {
+        throw new IOException(file + " is not an unspent snapshot.");
+      }
+      int      height    = in.readInt();
+      byte[]   hash      = new byte[32];
+      in.readFully(hash);
+      String[] addresses = new String[in.readUnsignedShort()];
+      for (int i = 0; i < addresses.length; i++)
+      {
+        addresses[i] = in.readUTF();
+      }
+      int        count   = in.readInt();
+      List<Utxo> unspent = new ArrayList<Utxo>(count);
+      byte[]     txid    = new byte[32];
+      for (int i = 0; i < count; i++)
+      {
+        in.readFully(txid);
+        int  vout    = in.readInt();
+        long amount  = in.readLong();
+        int  block   = in.readInt();
+        int  address = in.readUnsignedShort();
+        if (address >= addresses.length || block > height)
+        {
+          throw new IOException("Bad unspent output " + (i + 1) + " in " + file);
+        }
+        unspent.add(new Utxo(hex(txid), vout, amount, height - block + 1, addresses[address]));
+      }
+      return new UnspentSnapshot(height, hex(hash), addresses, unspent);
+    }
+    catch (EOFException e)
+    {
+      throw new IOException(file + " is truncated.");
+    }
+  }
+
+  /** Write the snapshot to a new file and then put it in place, so a failed write leaves the old one. */
+  public void write(File file) throws IOException
+  {
+    Map<String, Integer> index = new HashMap<String, Integer>();
+    for (String a : addresses)
+    {
+      index.putIfAbsent(a, index.size());
+    }
+    List<String> table = new ArrayList<String>(addresses);
+    for (Utxo u : unspent)
+    {
+      if (null == index.putIfAbsent(u.getAddress(), table.size()))
+      {
+        table.add(u.getAddress());
+      }
+    }
+
+    File temp = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)))
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(height);
+      out.write(bytes(blockHash));
+      out.writeShort(table.size());
+      for (String a : table)
+      {
+        out.writeUTF(a);
+      }
+      out.writeInt(unspent.size());
+      for (Utxo u : unspent)
+      {
+        out.write(bytes(u.getTxid()));
+        out.writeInt(u.getVout());
+        out.writeLong(u.getAmount());
+        out.writeInt(height - u.getConfirmations() + 1);
+        out.writeShort(index.get(u.getAddress()));
+      }
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String hex(byte[] bytes)
+  {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      chars[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+      chars[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+    }
+    return new String(chars);
+  }
+
+  /** @return the 32 bytes of a hex hash or txid. */
+  private static byte[] bytes(String hex) throws IOException
+  {
+    if (hex.length() != 64)
+    {
+      throw new IOException("Not a 32 byte hash: " + hex);
+    }
+    byte[] bytes = new byte[32];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low  = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0)
+      {
+        throw new IOException("Not a 32 byte hash: " + hex);
+      }
+      bytes[i] = (byte) (high << 4 | low);
+    }
+    return bytes;
+  }
+}
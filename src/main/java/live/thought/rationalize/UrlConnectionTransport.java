@@ -0,0 +1,78 @@
+package live.thought.rationalize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends each request on an {@link HttpURLConnection} of its own, as thought4j
+ * does, leaving any reuse of connections to the JDK. For daemons or proxies
+ * the {@link KeepAliveTransport} doesn't get along with.
+ */
+public class UrlConnectionTransport implements RpcTransport
+{
+  private final URL    url;
+  private final String authorization;
+
+  /**
+   * @param authorization
+   *          the Authorization header value, or null for none.
+   */
+  public UrlConnectionTransport(String host, int port, String authorization)
+  {
+    try
+    {
+      this.url = new URL("http", host, port, "/");
+    }
+    catch (IOException e)
+    {
+      throw new IllegalArgumentException("Invalid RPC host: " + host);
+    }
+    this.authorization = authorization;
+  }
+
+  @Override
+  public <T> T post(byte[] request, ResponseReader<T> reader) throws IOException
+  {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+    conn.setDoOutput(true);
+    conn.setRequestMethod("POST");
+    conn.setRequestProperty("Content-Type", "application/json");
+    conn.setRequestProperty("Accept-Encoding", "gzip");
+    if (null != authorization)
+    {
+      conn.setRequestProperty("Authorization", authorization);
+    }
+    try (OutputStream out = conn.getOutputStream())
+    {
+      out.write(request);
+    }
+
+    int         status = conn.getResponseCode();
+    InputStream body   = status == HttpURLConnection.HTTP_OK ? conn.getInputStream() : conn.getErrorStream();
+    if (null == body)
+    {
+      body = new ByteArrayInputStream(new byte[0]);
+    }
+    else if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+    {
+      body = new GZIPInputStream(body);
+    }
+    try (InputStream in = body)
+    {
+      return reader.read(status, in);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    // Nothing is held open.
+  }
+}
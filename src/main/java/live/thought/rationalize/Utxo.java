@@ -0,0 +1,91 @@
+package live.thought.rationalize;
+
+import live.thought.thought4j.ThoughtClientInterface.BasicTxInput;
+import live.thought.thought4j.ThoughtClientInterface.TxInput;
+import live.thought.thought4j.ThoughtClientInterface.Unspent;
+
+/**
+ * An unspent output held in the cache, identified by its outpoint (txid and
+ * vout).
+ */
+public class Utxo
+{
+  protected final String txid;
+  protected final int    vout;
+  /** Amount in units of 1e-8 THT */
+  protected final long   amount;
+  protected final int    confirmations;
+  protected final String address;
+  protected final String outpoint;
+
+  public Utxo(String txid, int vout, long amount, int confirmations, String address)
+  {
+    this.txid = txid;
+    this.vout = vout;
+    this.amount = amount;
+    this.confirmations = confirmations;
+    this.address = address;
+    this.outpoint = txid + ":" + vout;
+  }
+
+  public Utxo(Unspent u)
+  {
+    this(u.txid(), u.vout(), Amounts.toUnits(u.amount()), u.confirmations(), u.address());
+  }
+
+  public String getTxid()
+  {
+    return txid;
+  }
+
+  public int getVout()
+  {
+    return vout;
+  }
+
+  public long getAmount()
+  {
+    return amount;
+  }
+
+  public int getConfirmations()
+  {
+    return confirmations;
+  }
+
+  public String getAddress()
+  {
+    return address;
+  }
+
+  /** @return the outpoint in txid:vout form. */
+  public String getOutpoint()
+  {
+    return outpoint;
+  }
+
+  public TxInput toInput()
+  {
+    return new BasicTxInput(txid, vout);
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o) return true;
+    if (!(o instanceof Utxo)) return false;
+    return outpoint.equals(((Utxo) o).outpoint);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return outpoint.hashCode();
+  }
+
+  @Override
+  public String toString()
+  {
+    return outpoint + " " + Amounts.format(amount) + " THT (" + confirmations + " confirmations)";
+  }
+}
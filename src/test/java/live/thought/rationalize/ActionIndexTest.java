@@ -0,0 +1,134 @@
+package live.thought.rationalize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the pending actions are named as they are taken, and taken by
+ * amount or in the order they were added.
+ */
+public class ActionIndexTest
+{
+  @Test
+  public void namesLineActionsAsTaken()
+  {
+    ActionIndex actions = new ActionIndex();
+    actions.addLine("p", 3, line(5000, 3));
+    assertEquals(3, actions.size());
+    assertEquals(Arrays.asList("p-3-1", "p-3-2", "p-3-3"), names(actions));
+    assertTrue(actions.isEmpty());
+  }
+
+  @Test
+  public void startsLineAtFirstIndex()
+  {
+    ActionIndex actions = new ActionIndex();
+    actions.addLine("p", 1, line(5000, 2), 4);
+    FundingAction act = actions.takeFirst();
+    assertEquals("p-1-4", act.getName());
+    assertEquals(5000, act.getAmount());
+    assertEquals(1, act.getLine());
+    assertEquals("p-1-5", actions.takeFirst().getName());
+    assertNull(actions.takeFirst());
+  }
+
+  @Test
+  public void skipsEmptyLine()
+  {
+    ActionIndex actions = new ActionIndex();
+    actions.addLine("p", 1, line(5000, 0));
+    assertTrue(actions.isEmpty());
+    assertNull(actions.takeFirst());
+    assertNull(actions.takeLargestBelow(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void takesInOrderAdded()
+  {
+    ActionIndex actions = new ActionIndex();
+    actions.addLine("p", 1, line(1000, 1));
+    actions.add(new FundingAction("carried", 9000, 2));
+    actions.addLine("p", 3, line(5000, 1));
+    assertEquals(Arrays.asList("p-1-1", "carried", "p-3-1"), names(actions));
+  }
+
+  @Test
+  public void takesLargestStrictlyBelow()
+  {
+    ActionIndex actions = new ActionIndex();
+    actions.addLine("p", 1, line(1000, 1));
+    actions.addLine("p", 2, line(5000, 1));
+    actions.addLine("p", 3, line(3000, 1));
+    assertEquals("p-3-1", actions.takeLargestBelow(5000).getName());
+    assertNull(actions.takeLargestBelow(1000));
+    assertEquals("p-2-1", actions.takeLargestBelow(5001).getName());
+    assertEquals("p-1-1", actions.takeLargestBelow(Long.MAX_VALUE).getName());
+    assertTrue(actions.isEmpty());
+  }
+
+  @Test
+  public void takesEarliestOfEqualAmounts()
+  {
+    ActionIndex   actions = new ActionIndex();
+    FundingAction carried = new FundingAction("carried", 5000, 1);
+    actions.add(carried);
+    actions.addLine("p", 2, line(5000, 2));
+    assertSame(carried, actions.takeLargestBelow(Long.MAX_VALUE));
+    assertEquals("p-2-1", actions.takeLargestBelow(Long.MAX_VALUE).getName());
+    assertEquals("p-2-2", actions.takeLargestBelow(Long.MAX_VALUE).getName());
+    assertNull(actions.takeLargestBelow(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void mixesTakingByAmountAndInTurn()
+  {
+    ActionIndex actions = new ActionIndex();
+    actions.addLine("p", 1, line(1000, 2));
+    actions.addLine("p", 2, line(5000, 2));
+    assertEquals("p-2-1", actions.takeLargestBelow(Long.MAX_VALUE).getName());
+    assertEquals("p-1-1", actions.takeFirst().getName());
+    assertEquals("p-1-2", actions.takeFirst().getName());
+    assertEquals(1, actions.size());
+    assertEquals("p-2-2", actions.takeLargestBelow(5001).getName());
+    assertTrue(actions.isEmpty());
+  }
+
+  @Test
+  public void countsLargeLineWithoutExpandingIt()
+  {
+    ActionIndex actions = new ActionIndex();
+    actions.addLine("p", 1, line(1000, 2000000));
+    actions.addLine("p", 2, line(1000, 2000000));
+    assertEquals(4000000, actions.size());
+    assertEquals("p-1-1", actions.takeLargestBelow(Long.MAX_VALUE).getName());
+    assertEquals(3999999, actions.size());
+  }
+
+  private static FundingLine line(long amount, int accounts)
+  {
+    FundingLine line = new FundingLine();
+    line.setAmount(amount);
+    line.setAccounts(accounts);
+    return line;
+  }
+
+  /** @return the names of all the actions, taken in turn. */
+  private static List<String> names(ActionIndex actions)
+  {
+    List<String>  names = new ArrayList<String>();
+    FundingAction act;
+    while (null != (act = actions.takeFirst()))
+    {
+      names.add(act.getName());
+    }
+    return names;
+  }
+}
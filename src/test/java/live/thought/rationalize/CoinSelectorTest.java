@@ -0,0 +1,229 @@
+package live.thought.rationalize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks each coin selector against small caches whose best selections are
+ * known: an exact match, no solution, the fallback, and a search that runs
+ * out of time.
+ */
+public class CoinSelectorTest
+{
+  private static final long CHANGE_COST = LocalTransactionBuilder.DUST;
+
+  @Test
+  public void ageOrderedStopsOnReachingTarget()
+  {
+    UnspentIndex cache    = cache(5000, 3000, 2000);
+    List<Utxo>   selected = new AgeOrderedSelector().select(cache, 8000, 0);
+    assertEquals(Arrays.asList(5000L, 3000L), amounts(selected));
+    assertEquals(2000, cache.getTotal());
+  }
+
+  @Test
+  public void ageOrderedTakesWholeCacheForExactTotal()
+  {
+    UnspentIndex cache = cache(5000, 3000);
+    assertEquals(8000, total(new AgeOrderedSelector().select(cache, 8000, 0)));
+    assertTrue(cache.isEmpty());
+  }
+
+  @Test
+  public void ageOrderedWithoutSolution()
+  {
+    UnspentIndex cache = cache(5000, 3000);
+    assertNull(new AgeOrderedSelector().select(cache, 8001, 0));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void knapsackExactSingleOutput()
+  {
+    UnspentIndex cache = cache(7000, 5000, 3000);
+    assertEquals(Arrays.asList(5000L), amounts(new KnapsackSelector(1000, null).select(cache, 5000, 0)));
+    assertEquals(10000, cache.getTotal());
+  }
+
+  @Test
+  public void knapsackExactSubset()
+  {
+    UnspentIndex cache = cache(6000, 4000, 3000, 2000);
+    assertEquals(7000, total(new KnapsackSelector(1000, null).select(cache, 7000, 0)));
+    assertEquals(8000, cache.getTotal());
+  }
+
+  @Test
+  public void knapsackPrefersSmallestLargerOutput()
+  {
+    UnspentIndex cache = cache(11000, 6000, 5000);
+    assertEquals(Arrays.asList(11000L), amounts(new KnapsackSelector(1000, null).select(cache, 10000, 0)));
+  }
+
+  @Test
+  public void knapsackFallsBack()
+  {
+    Recorder     fallback = new Recorder();
+    UnspentIndex cache    = cache(3000, 2000);
+    assertNull(new KnapsackSelector(1000, fallback).select(cache, 10000, 0));
+    assertEquals(1, fallback.calls);
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void knapsackWithoutSolution()
+  {
+    UnspentIndex cache = cache(3000, 2000);
+    assertNull(CoinSelector.forStrategy(Config.KNAPSACK, 1000, 0).select(cache, 10000, 0));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void knapsackOutOfTimeStillCoversTarget()
+  {
+    UnspentIndex cache = cache(6000, 4000, 3000, 2000);
+    long         total = total(new KnapsackSelector(0, null).select(cache, 7000, 0));
+    assertTrue("covers the target", total >= 7000);
+    assertEquals(15000 - total, cache.getTotal());
+  }
+
+  @Test
+  public void branchAndBoundExactMatch()
+  {
+    Recorder     fallback = new Recorder();
+    UnspentIndex cache    = cache(5000, 3000, 2000, 1500);
+    assertEquals(6500, total(new BranchAndBoundSelector(1000, 0, fallback).select(cache, 6500, 0)));
+    assertEquals(0, fallback.calls);
+    assertEquals(5000, cache.getTotal());
+  }
+
+  @Test
+  public void branchAndBoundMatchWithinChangeCost()
+  {
+    UnspentIndex cache = cache(100000, 60000, 40300);
+    assertEquals(100300, total(new BranchAndBoundSelector(1000, 0, null).select(cache, 100200, 0)));
+  }
+
+  @Test
+  public void branchAndBoundFallsBackBeyondChangeCost()
+  {
+    Recorder     fallback = new Recorder();
+    UnspentIndex cache    = cache(100000, 60000, 41000);
+    assertNull(new BranchAndBoundSelector(1000, 0, fallback).select(cache, 100200, 0));
+    assertEquals(1, fallback.calls);
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void branchAndBoundWithoutSolution()
+  {
+    UnspentIndex cache = cache(3000, 2000);
+    assertNull(CoinSelector.forStrategy(Config.BRANCH_AND_BOUND, 1000, 0).select(cache, 10000, 0));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void branchAndBoundOutOfTimeFallsBack()
+  {
+    Recorder     fallback = new Recorder();
+    UnspentIndex cache    = cache(5000, 3000, 2000, 1500);
+    new BranchAndBoundSelector(0, 0, fallback).select(cache, 6500, 0);
+    assertEquals(1, fallback.calls);
+    assertEquals(4, cache.size());
+  }
+
+  @Test
+  public void branchAndBoundPaysOwnFee()
+  {
+    // At 1000 per kB, spending an output costs 181, and an output and the overhead 44.
+    UnspentIndex cache    = cache(100000, 60181, 40225);
+    List<Utxo>   selected = new BranchAndBoundSelector(1000, 1000, null).select(cache, 100000,
+        Rationalize.FEE_ALLOWANCE);
+    assertEquals(Arrays.asList(60181L, 40225L), amounts(selected));
+
+    PlannedTransaction tx = new PlannedTransaction(1);
+    tx.addInputs(selected);
+    tx.addOutput("a", 100000);
+    assertTrue(tx.isChangeless(1000, CoinSelector.changeCost(1000)));
+    assertEquals(LocalTransactionBuilder.fee(2, 1, 1000), tx.getInputTotal() - tx.getOutputTotal());
+  }
+
+  @Test
+  public void changelessBetweenFeeAndChangeCost()
+  {
+    PlannedTransaction tx = new PlannedTransaction(1);
+    tx.addInputs(Arrays.asList(utxo(0, 6000)));
+    tx.addOutput("a", 5500);
+    assertTrue(tx.isChangeless(0, CHANGE_COST));
+    tx.addInputs(Arrays.asList(utxo(1, 1000)));
+    tx.addOutput("b", 900);
+    assertFalse("too much over", tx.isChangeless(0, CHANGE_COST));
+
+    // At 1000 per kB, one input and one output need 225.
+    tx = new PlannedTransaction(2);
+    tx.addInputs(Arrays.asList(utxo(2, 5224)));
+    tx.addOutput("a", 5000);
+    assertFalse("short of the fee", tx.isChangeless(1000, CHANGE_COST));
+    tx = new PlannedTransaction(3);
+    tx.addInputs(Arrays.asList(utxo(2, 5225)));
+    tx.addOutput("a", 5000);
+    assertTrue(tx.isChangeless(1000, CHANGE_COST));
+  }
+
+  /** @return a cache of outputs with the given amounts, oldest first. */
+  private static UnspentIndex cache(long... amounts)
+  {
+    UnspentIndex cache = new UnspentIndex(false);
+    for (int i = 0; i < amounts.length; i++)
+    {
+      cache.add(utxo(i, amounts[i]));
+    }
+    return cache;
+  }
+
+  private static Utxo utxo(int index, long amount)
+  {
+    return new Utxo(String.format("%064x", index), 0, amount, 1000 - index, null);
+  }
+
+  private static List<Long> amounts(List<Utxo> selected)
+  {
+    List<Long> amounts = new ArrayList<Long>();
+    for (Utxo u : selected)
+    {
+      amounts.add(u.getAmount());
+    }
+    return amounts;
+  }
+
+  private static long total(List<Utxo> selected)
+  {
+    long total = 0;
+    for (Utxo u : selected)
+    {
+      total += u.getAmount();
+    }
+    return total;
+  }
+
+  /** A fallback that selects nothing, counting how often it is asked. */
+  private static class Recorder implements CoinSelector
+  {
+    private int calls;
+
+    @Override
+    public List<Utxo> select(UnspentIndex cache, long amount, long allowance)
+    {
+      calls++;
+      return null;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package live.thought.rationalize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks funding files are read a line at a time, skipping blank lines and
+ * comments, and that malformed or partial lines stop the read with their
+ * line number.
+ */
+public class FundingFileReaderTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readsLinesInOrder() throws IOException
+  {
+    try (FundingFileReader reader = reader("0.5,3\n40,2\n15000,1\n"))
+    {
+      assertLine(Amounts.COIN / 2, 3, reader.next());
+      assertLine(40 * Amounts.COIN, 2, reader.next());
+      assertLine(15000 * Amounts.COIN, 1, reader.next());
+      assertNull(reader.next());
+      assertNull("stays at the end", reader.next());
+    }
+  }
+
+  @Test
+  public void skipsBlankLinesAndComments() throws IOException
+  {
+    try (FundingFileReader reader = reader("# amount,accounts\n\n   \n 1 , 2 \r\n  # 5,5\n"))
+    {
+      assertLine(Amounts.COIN, 2, reader.next());
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void readsLastLineWithoutNewline() throws IOException
+  {
+    try (FundingFileReader reader = reader("1,2\n0.00000001,0"))
+    {
+      assertLine(Amounts.COIN, 2, reader.next());
+      assertLine(1, 0, reader.next());
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void readsEmptyFile() throws IOException
+  {
+    try (FundingFileReader reader = reader(""))
+    {
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void rejectsMalformedLines() throws IOException
+  {
+    assertBad("1\n", 1);
+    assertBad("1,2,3\n", 1);
+    assertBad("# header\n1,2\nabc,2\n", 3);
+    assertBad("1,two\n", 1);
+    assertBad("1,2.5\n", 1);
+    assertBad("0,2\n", 1);
+    assertBad("-1,2\n", 1);
+    assertBad("1,-2\n", 1);
+    assertBad("0.000000001,2\n", 1);
+  }
+
+  @Test
+  public void rejectsPartialLines() throws IOException
+  {
+    assertBad("1,2\n5,", 2);
+    assertBad("1,2\n,5\n", 2);
+    assertBad("1,2\n\n5", 3);
+  }
+
+  private FundingFileReader reader(String content) throws IOException
+  {
+    File file = folder.newFile();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return new FundingFileReader(file);
+  }
+
+  /** Check reading the content stops at the given line, with its number. */
+  private void assertBad(String content, int line) throws IOException
+  {
+    try (FundingFileReader reader = reader(content))
+    {
+      for (int i = 0; i < 10; i++)
+      {
+        reader.next();
+      }
+      fail("read " + content);
+    }
+    catch (IOException e)
+    {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Bad funding line at line " + line + " "));
+    }
+  }
+
+  private static void assertLine(long amount, int accounts, FundingLine line)
+  {
+    assertEquals("amount", amount, line.getAmount());
+    assertEquals("accounts", accounts, line.getAccounts());
+  }
+}
@@ -0,0 +1,191 @@
+package live.thought.rationalize;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitcoinj.core.Base58;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Test;
+
+/**
+ * Checks locally built transactions serialize as the daemon would, pay
+ * change only when it is worth an output, and are refused when the inputs
+ * can't cover the fee. Transactions are read back with bitcoinj, whose
+ * serialization is the same as the daemon's.
+ */
+public class LocalTransactionBuilderTest
+{
+  private static final long   RATE   = 1000;
+  private static final String CHANGE = address(0);
+
+  @Test
+  public void serializesInputsOutputsAndChange()
+  {
+    List<Utxo>        inputs  = Arrays.asList(utxo(1, 3, 60000), utxo(2, 0, 50000));
+    Map<String, Long> outputs = outputs(address(1), 40000, address(2), 30000);
+    LocalTransactionBuilder.Built built = builder().build(inputs, outputs, false);
+    assertEquals(LocalTransactionBuilder.fee(2, 3, RATE), built.getFee());
+
+    Transaction tx = parse(built.getHex());
+    assertEquals(LocalTransactionBuilder.VERSION, tx.getVersion());
+    assertEquals(0, tx.getLockTime());
+    assertEquals(2, tx.getInputs().size());
+    for (int i = 0; i < inputs.size(); i++)
+    {
+      TransactionInput in = tx.getInput(i);
+      assertEquals(inputs.get(i).getTxid(), in.getOutpoint().getHash().toString());
+      assertEquals(inputs.get(i).getVout(), in.getOutpoint().getIndex());
+      assertEquals(0, in.getScriptBytes().length);
+      assertEquals(0xffffffffL, in.getSequenceNumber());
+    }
+    assertEquals(3, tx.getOutputs().size());
+    assertOutput(address(1), 40000, tx.getOutput(0));
+    assertOutput(address(2), 30000, tx.getOutput(1));
+    assertOutput(CHANGE, 110000 - 70000 - built.getFee(), tx.getOutput(2));
+  }
+
+  @Test
+  public void serializesSignatureScripts()
+  {
+    LocalTransactionBuilder.Built built = builder().build(Arrays.asList(utxo(1, 0, 60000), utxo(2, 1, 50000)),
+        outputs(address(1), 100000), false);
+    byte[]      scriptSig = { 1, 2, 3 };
+    Transaction tx        = new Transaction(MainNetParams.get(), built.serialize(new byte[][] { null, scriptSig }));
+    assertEquals(0, tx.getInput(0).getScriptBytes().length);
+    assertArrayEquals(scriptSig, tx.getInput(1).getScriptBytes());
+  }
+
+  @Test
+  public void serializesManyOutputs()
+  {
+    Map<String, Long> outputs = new LinkedHashMap<String, Long>();
+    for (int i = 1; i <= 300; i++)
+    {
+      outputs.put(address(i), 1000L * i);
+    }
+    LocalTransactionBuilder.Built built = builder().build(Arrays.asList(utxo(1, 0, 100 * Amounts.COIN)), outputs,
+        false);
+    Transaction tx = parse(built.getHex());
+    assertEquals(301, tx.getOutputs().size());
+    assertOutput(address(300), 300000, tx.getOutput(299));
+    assertEquals(LocalTransactionBuilder.fee(1, 301, RATE), built.getFee());
+  }
+
+  @Test
+  public void foldsDustChangeIntoFee()
+  {
+    long fee    = LocalTransactionBuilder.fee(1, 2, RATE);
+    long amount = 100000 - fee - (LocalTransactionBuilder.DUST - 1);
+    LocalTransactionBuilder.Built built = builder().build(Arrays.asList(utxo(1, 0, 100000)),
+        outputs(address(1), amount), false);
+    assertEquals(1, parse(built.getHex()).getOutputs().size());
+    assertEquals(100000 - amount, built.getFee());
+  }
+
+  @Test
+  public void paysChangeOfDust()
+  {
+    long fee    = LocalTransactionBuilder.fee(1, 2, RATE);
+    long amount = 100000 - fee - LocalTransactionBuilder.DUST;
+    LocalTransactionBuilder.Built built = builder().build(Arrays.asList(utxo(1, 0, 100000)),
+        outputs(address(1), amount), false);
+    Transaction tx = parse(built.getHex());
+    assertEquals(2, tx.getOutputs().size());
+    assertOutput(CHANGE, LocalTransactionBuilder.DUST, tx.getOutput(1));
+    assertEquals(fee, built.getFee());
+  }
+
+  @Test
+  public void leavesExcessToFeeWhenChangeless()
+  {
+    LocalTransactionBuilder.Built built = builder().build(Arrays.asList(utxo(1, 0, 100000)),
+        outputs(address(1), 90000), true);
+    assertEquals(1, parse(built.getHex()).getOutputs().size());
+    assertEquals(10000, built.getFee());
+  }
+
+  @Test
+  public void refusesInputsShortOfFee()
+  {
+    long fee = LocalTransactionBuilder.fee(1, 1, RATE);
+    assertNull(builder().build(Arrays.asList(utxo(1, 0, 100000)), outputs(address(1), 100000 - fee + 1), false));
+    assertNull(builder().build(Arrays.asList(utxo(1, 0, 100000)), outputs(address(1), 100000 - fee + 1), true));
+    assertNull(builder().build(Arrays.asList(utxo(1, 0, 100000)), outputs(address(1), 200000), false));
+    assertEquals(fee,
+        builder().build(Arrays.asList(utxo(1, 0, 100000)), outputs(address(1), 100000 - fee), false).getFee());
+  }
+
+  @Test
+  public void roundsFeeUp()
+  {
+    assertEquals(0, LocalTransactionBuilder.fee(1000, 0));
+    assertEquals(1, LocalTransactionBuilder.fee(1, 1));
+    assertEquals(1000, LocalTransactionBuilder.fee(1000, 1000));
+    assertEquals(1001, LocalTransactionBuilder.fee(1001, 1000));
+    assertEquals(LocalTransactionBuilder.OVERHEAD + LocalTransactionBuilder.MAX_INPUT_SIZE
+        + LocalTransactionBuilder.OUTPUT_SIZE, LocalTransactionBuilder.fee(1, 1, 1000));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsOtherNetworkAddress()
+  {
+    builder().build(Arrays.asList(utxo(1, 0, 100000)),
+        outputs(Base58.encodeChecked(PrivateKey.addressVersion(true), new byte[20]), 50000), false);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsMalformedAddress()
+  {
+    builder().build(Arrays.asList(utxo(1, 0, 100000)), outputs("not an address", 50000), false);
+  }
+
+  private static LocalTransactionBuilder builder()
+  {
+    return new LocalTransactionBuilder(CHANGE, false, RATE);
+  }
+
+  /** @return a mainnet P2PKH address whose hash is all the given byte. */
+  private static String address(int index)
+  {
+    byte[] hash = new byte[20];
+    Arrays.fill(hash, (byte) index);
+    hash[0] = (byte) (index >>> 8);
+    return Base58.encodeChecked(PrivateKey.addressVersion(false), hash);
+  }
+
+  private static Map<String, Long> outputs(Object... addressesAndAmounts)
+  {
+    Map<String, Long> outputs = new LinkedHashMap<String, Long>();
+    for (int i = 0; i < addressesAndAmounts.length; i += 2)
+    {
+      outputs.put((String) addressesAndAmounts[i], ((Number) addressesAndAmounts[i + 1]).longValue());
+    }
+    return outputs;
+  }
+
+  private static Utxo utxo(int index, int vout, long amount)
+  {
+    return new Utxo(String.format("%064x", index), vout, amount, 100, CHANGE);
+  }
+
+  private static Transaction parse(String hex)
+  {
+    return new Transaction(MainNetParams.get(), LocalTransactionBuilder.bytes(hex));
+  }
+
+  private static void assertOutput(String address, long amount, TransactionOutput output)
+  {
+    assertEquals(amount, output.getValue().getValue());
+    assertArrayEquals(LocalTransactionBuilder.script(address, PrivateKey.addressVersion(false)),
+        output.getScriptBytes());
+  }
+}
@@ -0,0 +1,371 @@
+package live.thought.rationalize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitcoinj.core.Base58;
+import org.bitcoinj.core.ECKey;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs Rationalize end to end against a {@link ThoughtDaemonSimulator}.
+ * <p>
+ * The scale scenario is skipped unless the rationalize.scale property lists
+ * the numbers of actions to run, for example:
+ *
+ * <pre>
+ * mvn test -Dtest=ScaleScenarioTest -Drationalize.scale=10000,100000,1000000
+ * </pre>
+ *
+ * The rationalize.latency property adds a delay, in milliseconds, to every
+ * simulated call.
+ */
+public class ScaleScenarioTest
+{
+  private static final PrivateKey SOURCE_KEY = new PrivateKey(false);
+  private static final String    SOURCE = SOURCE_KEY.getAddress();
+  private static final int       HEIGHT = 500000;
+
+  @Rule
+  public TemporaryFolder         folder = new TemporaryFolder();
+
+  private ThoughtDaemonSimulator daemon;
+
+  @Before
+  public void startDaemon() throws IOException
+  {
+    daemon = new ThoughtDaemonSimulator(HEIGHT);
+    daemon.setLatency(Long.getLong("rationalize.latency", 0));
+    daemon.start();
+  }
+
+  @After
+  public void stopDaemon()
+  {
+    daemon.stop();
+  }
+
+  @Test
+  public void fundsEveryAction() throws IOException
+  {
+    File results = run(200);
+    assertFunded(results, 200);
+  }
+
+  @Test
+  public void refreshesSnapshot() throws IOException
+  {
+    File snapshot = new File(folder.newFolder(), "unspent.dat");
+    daemon.addUnspent(SOURCE, 400, Amounts.COIN, 5000 * Amounts.COIN, 400);
+    assertFunded(fund(200, snapshot), 200);
+    assertTrue("snapshot saved", snapshot.exists());
+
+    // The second run fetches only the blocks since, and mustn't reuse the first run's inputs.
+    daemon.mine(10);
+    long listed = daemon.getCalls().get("listunspent");
+    assertFunded(fund(200, snapshot), 200);
+    assertEquals("listunspent calls", listed + 1, (long) daemon.getCalls().get("listunspent"));
+  }
+
+  @Test
+  public void importsKeysAhead() throws IOException
+  {
+    // A look-ahead shorter than a batch, with every address checked against the wallet.
+    daemon.addUnspent(SOURCE, 200, Amounts.COIN, 5000 * Amounts.COIN, 200);
+    assertFunded(fund(200, null, "--keyLookahead", "7", "--verifyInterval", "1"), 200);
+    assertEquals("importprivkey calls", 200L, (long) daemon.getCalls().get("importprivkey"));
+    assertEquals("getaddressesbyaccount calls", 200L, (long) daemon.getCalls().get("getaddressesbyaccount"));
+  }
+
+  @Test
+  public void derivesKeysFromSeed() throws IOException
+  {
+    daemon.addUnspent(SOURCE, 200, Amounts.COIN, 5000 * Amounts.COIN, 200);
+    File seed    = new File(folder.newFolder(), "seed.txt");
+    File results = fund(200, null, "--keyDerivation", "hd", "--seedFile", seed.getPath());
+    assertFunded(results, 200);
+
+    // Every account's key comes back from the seed file alone.
+    File exported = new File(seed.getParentFile(), "keys.csv");
+    new Rationalize(new Config(new String[] { "--seedFile", seed.getPath(), "--exportKeys", exported.getPath() }))
+        .run();
+    Map<String, String> addresses = new HashMap<String, String>();
+    ResultsWriter.readLines(exported, line -> {
+      String[] f   = line.split(",");
+      byte[]   wif = Base58.decodeChecked(f[1]);
+      addresses.put(f[0], f[2]);
+      assertEquals(f[0], f[2],
+          new PrivateKey(ECKey.fromPrivate(Arrays.copyOfRange(wif, 1, 33)), (wif[0] & 0xff) == 235).getAddress());
+    });
+    assertEquals("exported keys", 200, addresses.size());
+    ResultsWriter.readLines(results, line -> {
+      String[] f = line.split(",");
+      assertTrue(f[1], f[1].startsWith("m/0'/"));
+      assertEquals(f[0], addresses.get(f[0]), f[2]);
+    });
+  }
+
+  @Test
+  public void spreadsRunOverNodes() throws IOException
+  {
+    ThoughtDaemonSimulator other  = new ThoughtDaemonSimulator(HEIGHT);
+    String                 source = new PrivateKey(false).getAddress();
+    other.start();
+    try
+    {
+      daemon.addUnspent(SOURCE, 200, Amounts.COIN, 5000 * Amounts.COIN, 200);
+      other.addUnspent(source, 200, Amounts.COIN, 5000 * Amounts.COIN, 201);
+      File nodes = folder.newFile("nodes.conf");
+      try (PrintWriter pw = new PrintWriter(nodes, StandardCharsets.UTF_8.name()))
+      {
+        pw.println("node.1.port=" + daemon.getPort());
+        pw.println("node.1.addresses=" + SOURCE);
+        pw.println("node.2.port=" + other.getPort());
+        pw.println("node.2.addresses=" + source);
+      }
+      File results = fund(201, null, "--config", nodes.getPath());
+
+      // Each account is funded once, by one node or the other, named as a single node would.
+      List<String> lines = new ArrayList<String>();
+      ResultsWriter.readLines(results, lines::add);
+      assertEquals("result lines", 201, lines.size());
+      Map<String, String> names = new HashMap<String, String>();
+      for (String line : lines)
+      {
+        String[] f = line.split(",");
+        assertEquals(f[0], Amounts.parse(f[3]), daemon.getReceived(f[2]) + other.getReceived(f[2]));
+        assertEquals(f[0], null, names.put(f[0].substring(f[0].indexOf('-', f[0].indexOf('-') + 1)), f[0]));
+      }
+      assertTrue("first line complete", names.containsKey("-1-1") && names.containsKey("-1-140"));
+      assertTrue("both nodes sent", daemon.getCalls().containsKey("sendrawtransaction")
+          && other.getCalls().containsKey("sendrawtransaction"));
+    }
+    finally
+    {
+      other.stop();
+    }
+  }
+
+  @Test
+  public void keepsConnectionsAlive() throws IOException
+  {
+    daemon.addUnspent(SOURCE, 200, Amounts.COIN, 5000 * Amounts.COIN, 200);
+    assertFunded(fund(200, null), 200);
+    // No more connections than the pool holds: one per transaction in flight and fetch worker, and two more.
+    assertTrue("connections " + daemon.getConnections(), daemon.getConnections() <= 4 + 4 + 2);
+
+    // The same run with a connection per call.
+    stopDaemon();
+    startDaemon();
+    daemon.addUnspent(SOURCE, 200, Amounts.COIN, 5000 * Amounts.COIN, 200);
+    assertFunded(fund(200, null, "--rpcTransport", "urlconnection"), 200);
+  }
+
+  @Test
+  public void writesGzipResults() throws IOException
+  {
+    daemon.addUnspent(SOURCE, 200, Amounts.COIN, 5000 * Amounts.COIN, 200);
+    File results = fund(200, null, "--outputFormat", "gzip", "--commitRecords", "7");
+    assertFunded(results, 200);
+    assertEquals("gzip magic", 0x1f, Files.readAllBytes(results.toPath())[0]);
+  }
+
+  @Test
+  public void buildsTransactionsLocally() throws IOException
+  {
+    daemon.addUnspent(SOURCE, 200, Amounts.COIN, 5000 * Amounts.COIN, 200);
+    assertFunded(fund(200, null, "--transactionBuilder", "local"), 200);
+    Map<String, Long> calls = daemon.getCalls();
+    assertEquals("fundrawtransaction calls", calls.get("createrawtransaction"), calls.get("fundrawtransaction"));
+    assertTrue("built locally", calls.getOrDefault("fundrawtransaction", 0L) < calls.get("sendrawtransaction"));
+  }
+
+  @Test
+  public void signsTransactionsLocally() throws IOException
+  {
+    // Keys from the wallet, then from a key file.
+    daemon.importKey(SOURCE_KEY.toString());
+    daemon.addUnspent(SOURCE, 400, Amounts.COIN, 5000 * Amounts.COIN, 400);
+    assertFunded(fund(200, null, "--transactionBuilder", "local", "--signing", "local"), 200);
+    File keyFile = folder.newFile("keys.txt");
+    Files.write(keyFile.toPath(), Arrays.asList("# source", SOURCE_KEY.toString()), StandardCharsets.UTF_8);
+    assertFunded(fund(200, null, "--transactionBuilder", "local", "--signing", "local", "--keyFile",
+        keyFile.getPath()), 200);
+    assertEquals("dumpprivkey calls", 1L, (long) daemon.getCalls().get("dumpprivkey"));
+    assertEquals("signrawtransaction calls", 0L, (long) daemon.getCalls().getOrDefault("signrawtransaction", 0L));
+  }
+
+  @Test
+  public void resumesStoppedRun() throws IOException
+  {
+    daemon.addUnspent(SOURCE, 200, Amounts.COIN, 5000 * Amounts.COIN, 200);
+    File dir = folder.newFolder();
+    daemon.setSendLimit(1);
+    File results = fund(dir, 200, null);
+    List<String> lines = new ArrayList<String>();
+    ResultsWriter.readLines(results, lines::add);
+    assertTrue("stopped partway: " + lines.size(), lines.size() < 200);
+
+    daemon.setSendLimit(Long.MAX_VALUE);
+    long sent = daemon.getCalls().get("sendrawtransaction");
+    fund(dir, 200, null, "--resume", new File(dir, "journal.log").getPath());
+    assertTrue("resumed", daemon.getCalls().get("sendrawtransaction") > sent);
+
+    // Each account once, with its line's full amount, received exactly once.
+    long[]              amounts = { Amounts.COIN / 2, 40 * Amounts.COIN, 15000 * Amounts.COIN };
+    Map<String, String> last    = new HashMap<String, String>();
+    ResultsWriter.readLines(results, line -> last.put(line.split(",")[0], line));
+    assertEquals("accounts", 200, last.size());
+    for (String line : last.values())
+    {
+      String[] f    = line.split(",");
+      String[] name = f[0].split("-");
+      assertEquals(f[0], amounts[Integer.parseInt(name[name.length - 2]) - 1], Amounts.parse(f[3]));
+      assertEquals(f[0], Amounts.parse(f[3]), daemon.getReceived(f[2]));
+    }
+  }
+
+  @Test
+  public void leavesNoChangeOnExactMatch() throws IOException
+  {
+    // Two inputs that pay five THT and their fee at the default rate exactly, and one that fits nowhere.
+    long fee = LocalTransactionBuilder.fee(2, 1, Amounts.parse("0.00001"));
+    for (String builder : Arrays.asList(Config.DAEMON_BUILDER, Config.LOCAL_BUILDER))
+    {
+      stopDaemon();
+      startDaemon();
+      daemon.addUnspent(SOURCE, 3 * Amounts.COIN, 1);
+      daemon.addUnspent(SOURCE, 2 * Amounts.COIN + fee, 2);
+      daemon.addUnspent(SOURCE, 7 * Amounts.COIN / 10, 3);
+      File results = fund(Arrays.asList("5,1"), null, "--fundingStrategy", Config.BRANCH_AND_BOUND,
+          "--transactionBuilder", builder);
+      assertFunded(results, 1);
+      assertEquals(builder + " fee paid", fee, daemon.getFees());
+      assertEquals(builder + " change", 0L, daemon.getReceived(SOURCE));
+    }
+  }
+
+  @Test
+  public void scale() throws IOException
+  {
+    String sizes = System.getProperty("rationalize.scale");
+    Assume.assumeTrue("Set rationalize.scale to run the scale scenario", null != sizes);
+    for (String size : sizes.split(","))
+    {
+      int actions = Integer.parseInt(size.trim());
+      // Each size gets a fresh wallet.
+      stopDaemon();
+      startDaemon();
+      long start   = System.currentTimeMillis();
+      File results = run(actions);
+      long elapsed = System.currentTimeMillis() - start;
+      assertFunded(results, actions);
+      System.out.println(String.format("%d actions: %.1f s wall time, %.0f actions/s; calls %s", actions,
+          elapsed / 1000.0, actions * 1000.0 / elapsed, daemon.getCalls()));
+    }
+  }
+
+  /**
+   * Give the source address enough outputs for the given number of actions and
+   * fund them, fetching unspent inputs from the wallet as they're needed.
+   *
+   * @return the results file.
+   */
+  private File run(int actions) throws IOException
+  {
+    daemon.addUnspent(SOURCE, actions, Amounts.COIN, 5000 * Amounts.COIN, actions);
+    return fund(actions, null);
+  }
+
+  /**
+   * Fund the given number of actions: most small, some medium and a few
+   * needing many inputs.
+   *
+   * @param snapshot
+   *          the unspent snapshot file, or null for none.
+   * @param options
+   *          more command line options.
+   * @return the results file.
+   */
+  private File fund(int actions, File snapshot, String... options) throws IOException
+  {
+    return fund(folder.newFolder(), actions, snapshot, options);
+  }
+
+  /**
+   * Fund the actions with the run's files in the given directory, so a run
+   * can be resumed.
+   *
+   * @return the results file.
+   */
+  private File fund(File dir, int actions, File snapshot, String... options) throws IOException
+  {
+    int small  = actions * 7 / 10;
+    int medium = actions / 4;
+    int large  = actions - small - medium;
+    return fund(dir, Arrays.asList("0.5," + small, "40," + medium, "15000," + large), snapshot, options);
+  }
+
+  /**
+   * Fund the lines of a funding file.
+   *
+   * @return the results file.
+   */
+  private File fund(List<String> lines, File snapshot, String... options) throws IOException
+  {
+    return fund(folder.newFolder(), lines, snapshot, options);
+  }
+
+  private File fund(File dir, List<String> lines, File snapshot, String... options) throws IOException
+  {
+    File funding = new File(dir, "funding.csv");
+    Files.write(funding.toPath(), lines, StandardCharsets.UTF_8);
+    File   results = new File(dir, "results.csv");
+    String[] args  = { "--host", "127.0.0.1", "--port", Integer.toString(daemon.getPort()), "--user", "user",
+        "--password", "password", "--addresses", SOURCE, "--fundingFile", funding.getPath(), "--output",
+        results.getPath(), "--journal", new File(dir, "journal.log").getPath(), "--metrics",
+        new File(dir, "metrics.json").getPath(), "--prometheus", new File(dir, "metrics.prom").getPath(),
+        "--snapshot", null == snapshot ? "" : snapshot.getPath() };
+    List<String> all = new ArrayList<String>(Arrays.asList(args));
+    all.addAll(Arrays.asList(options));
+    Config config = new Config(all.toArray(new String[all.size()]));
+    if (config.getNodes().isEmpty())
+    {
+      new Rationalize(config).run();
+    }
+    else
+    {
+      NodeFanout.run(config);
+    }
+    return results;
+  }
+
+  /** Check every action has a line in the results and its address received exactly that. */
+  private void assertFunded(File results, int actions) throws IOException
+  {
+    List<String> lines = new ArrayList<String>();
+    ResultsWriter.readLines(results, lines::add);
+    assertEquals("result lines", actions, lines.size());
+    for (String line : lines)
+    {
+      String[] f = line.split(",");
+      assertEquals(f[0], Amounts.parse(f[3]), daemon.getReceived(f[2]));
+    }
+  }
+}
@@ -0,0 +1,770 @@
+package live.thought.rationalize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.bitcoinj.core.Base58;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for a Thought daemon's JSON-RPC server, for running Rationalize
+ * end to end without a wallet. It serves the calls Rationalize makes, single
+ * or batched, on a local port from an in-memory set of unspent outputs.
+ * <p>
+ * Raw transactions it creates are hex-encoded JSON rather than real
+ * serialized transactions, since only the simulator reads them, but their
+ * txids are the double SHA-256 of their bytes like the real thing. Real
+ * serialized transactions paying P2PKH addresses are read too, and if they
+ * arrive signed, their signatures are checked. Sent transactions spend
+ * their inputs and create outputs in the next block, which is only mined
+ * when a test asks for it. Larger responses are gzip compressed for clients
+ * that accept it.
+ */
+public class ThoughtDaemonSimulator
+{
+  /** Fee charged by fundrawtransaction, in units of 1e-8 THT. */
+  public static final long                     FEE            = Amounts.COIN / 10000;
+  /** Confirmations the generated outputs are kept clear of. */
+  private static final int                     MATURITY       = 10;
+  /** Responses larger than this are compressed, if the client accepts it. */
+  private static final int                     GZIP_THRESHOLD = 4096;
+
+  private int                                  height;
+  private final HttpServer                     server;
+  private final ExecutorService                executor;
+  /** Unspent outputs by outpoint */
+  private final Map<String, Output>            unspent      = new HashMap<String, Output>();
+  /** Outpoints of the unspent outputs by block height */
+  private final NavigableMap<Integer, List<String>> byHeight = new TreeMap<Integer, List<String>>();
+  private final Map<String, List<String>>      accounts     = new HashMap<String, List<String>>();
+  private final Map<String, String>            transactions = new HashMap<String, String>();
+  /** Height of the block each sent transaction is in, or will be once mined */
+  private final Map<String, Integer>           txHeights    = new HashMap<String, Integer>();
+  /** Addresses by the hex of their public key hash, for reading real transactions */
+  private final Map<String, String>            byKeyHash    = new ConcurrentHashMap<String, String>();
+  /** Private keys of the imported addresses, for dumpprivkey */
+  private final Map<String, String>            privateKeys  = new ConcurrentHashMap<String, String>();
+  /** Total sent to each address */
+  private final Map<String, Long>              received     = new HashMap<String, Long>();
+  /** Fees paid by the transactions sent so far */
+  private long                                 fees;
+  /** Transactions still accepted before sendrawtransaction starts failing */
+  private long                                 sendLimit    = Long.MAX_VALUE;
+  private final Map<String, AtomicLong>        calls        = new ConcurrentHashMap<String, AtomicLong>();
+  /** Client ends of every connection served */
+  private final Set<InetSocketAddress>         connections  = ConcurrentHashMap.newKeySet();
+  private volatile long                        latency      = 0;
+
+  /**
+   * @param height
+   *          the block count the simulated chain starts at.
+   */
+  public ThoughtDaemonSimulator(int height) throws IOException
+  {
+    this.height = height;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.executor = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "simulator");
+      t.setDaemon(true);
+      return t;
+    });
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+  }
+
+  public void start()
+  {
+    server.start();
+  }
+
+  public void stop()
+  {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public int getPort()
+  {
+    return server.getAddress().getPort();
+  }
+
+  /** Delay added to every request, batched or not, like a network round trip. */
+  public void setLatency(long millis)
+  {
+    this.latency = millis;
+  }
+
+  /**
+   * Give an address confirmed outputs with amounts spread evenly between min
+   * and max and heights spread evenly over the chain.
+   */
+  public synchronized void addUnspent(String address, int count, long min, long max, long seed)
+  {
+    Random random = new Random(seed);
+    for (int i = 0; i < count; i++)
+    {
+      String txid   = hex(Sha256Hash.hash((seed + "-" + i).getBytes(StandardCharsets.UTF_8)));
+      long   amount = min + (long) (random.nextDouble() * (max - min));
+      add(new Output(txid, 0, address, amount, 1 + random.nextInt(height - MATURITY)));
+    }
+  }
+
+  /** Give an address one confirmed output of the given amount. */
+  public synchronized void addUnspent(String address, long amount, long seed)
+  {
+    String txid = hex(Sha256Hash.hash((seed + "-single").getBytes(StandardCharsets.UTF_8)));
+    add(new Output(txid, 0, address, amount, 1 + new Random(seed).nextInt(height - MATURITY)));
+  }
+
+  /** Accept only so many more transactions, and refuse the rest without sending them. */
+  public synchronized void setSendLimit(long transactions)
+  {
+    sendLimit = transactions;
+  }
+
+  /** Import a key, as if the wallet already held it. */
+  public void importKey(String wif)
+  {
+    importPrivKey(wif, "");
+  }
+
+  /** Mine blocks, confirming the transactions sent so far. */
+  public synchronized void mine(int blocks)
+  {
+    height += blocks;
+  }
+
+  /** @return the total sent to the address by transactions so far. */
+  public synchronized long getReceived(String address)
+  {
+    return received.getOrDefault(address, 0L);
+  }
+
+  /** @return the fees paid by transactions so far. */
+  public synchronized long getFees()
+  {
+    return fees;
+  }
+
+  /** @return the number of times each method was called. */
+  public Map<String, Long> getCalls()
+  {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    calls.forEach((m, c) -> counts.put(m, c.get()));
+    return counts;
+  }
+
+  /** @return the number of connections requests have come in on. */
+  public int getConnections()
+  {
+    return connections.size();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException
+  {
+    connections.add(exchange.getRemoteAddress());
+    Object request;
+    try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))
+    {
+      request = Json.parse(reader);
+    }
+    if (latency > 0)
+    {
+      try
+      {
+        Thread.sleep(latency);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    Object response;
+    int    status = 200;
+    if (request instanceof List)
+    {
+      List<Object> responses = new ArrayList<Object>();
+      for (Object call : (List<?>) request)
+      {
+        responses.add(call((Map<?, ?>) call));
+      }
+      response = responses;
+    }
+    else
+    {
+      Map<String, Object> single = call((Map<?, ?>) request);
+      if (null != single.get("error"))
+      {
+        status = 500;
+      }
+      response = single;
+    }
+
+    byte[] body     = Json.stringify(response).getBytes(StandardCharsets.UTF_8);
+    String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (body.length > GZIP_THRESHOLD && null != encoding && encoding.contains("gzip"))
+    {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+      try (OutputStream gzip = new GZIPOutputStream(compressed))
+      {
+        gzip.write(body);
+      }
+      body = compressed.toByteArray();
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody())
+    {
+      out.write(body);
+    }
+  }
+
+  private Map<String, Object> call(Map<?, ?> request)
+  {
+    String              method   = (String) request.get("method");
+    List<?>             params   = (List<?>) request.get("params");
+    Map<String, Object> response = new LinkedHashMap<String, Object>();
+    calls.computeIfAbsent(method, m -> new AtomicLong()).incrementAndGet();
+    try
+    {
+      response.put("result", dispatch(method, null == params ? new ArrayList<Object>() : params));
+      response.put("error", null);
+    }
+    catch (RpcError e)
+    {
+      Map<String, Object> error = new LinkedHashMap<String, Object>();
+      error.put("code", e.code);
+      error.put("message", e.getMessage());
+      response.put("result", null);
+      response.put("error", error);
+    }
+    response.put("id", request.get("id"));
+    return response;
+  }
+
+  private Object dispatch(String method, List<?> params)
+  {
+    switch (method)
+    {
+      case "getblockcount":
+        return getBlockCount();
+      case "getblockhash":
+        return getBlockHash(((Number) params.get(0)).intValue());
+      case "listsinceblock":
+        return listSinceBlock((String) params.get(0));
+      case "listunspent":
+        return listUnspent(((Number) params.get(0)).intValue(), ((Number) params.get(1)).intValue(),
+            params.size() > 2 ? (List<?>) params.get(2) : null);
+      case "listaddressbalances":
+        return listAddressBalances();
+      case "importprivkey":
+        importPrivKey((String) params.get(0), (String) params.get(1));
+        return null;
+      case "dumpprivkey":
+        return dumpPrivKey((String) params.get(0));
+      case "getaddressesbyaccount":
+        return getAddressesByAccount((String) params.get(0));
+      case "createrawtransaction":
+        return createRawTransaction((List<?>) params.get(0), (Map<?, ?>) params.get(1));
+      case "fundrawtransaction":
+        return fundRawTransaction((String) params.get(0), params.size() > 1 ? (Map<?, ?>) params.get(1) : null);
+      case "signrawtransaction":
+        Map<String, Object> signed = new LinkedHashMap<String, Object>();
+        signed.put("hex", params.get(0));
+        signed.put("complete", Boolean.TRUE);
+        return signed;
+      case "sendrawtransaction":
+        return sendRawTransaction((String) params.get(0));
+      case "gettransaction":
+        return getTransaction((String) params.get(0));
+      case "decoderawtransaction":
+        return decodeRawTransaction((String) params.get(0));
+      default:
+        throw new RpcError(-32601, "Method not found");
+    }
+  }
+
+  private synchronized int getBlockCount()
+  {
+    return height;
+  }
+
+  private synchronized String getBlockHash(int block)
+  {
+    if (block < 0 || block > height)
+    {
+      throw new RpcError(-8, "Block height out of range");
+    }
+    return blockHash(block);
+  }
+
+  /** Every sent transaction in a block after the given one, or not yet mined, as a send. */
+  private synchronized Map<String, Object> listSinceBlock(String hash)
+  {
+    int block = -1;
+    for (int h = height; h >= 0 && block < 0; h--)
+    {
+      if (blockHash(h).equals(hash))
+      {
+        block = h;
+      }
+    }
+    if (block < 0)
+    {
+      throw new RpcError(-5, "Block not found");
+    }
+    List<Object> sends = new ArrayList<Object>();
+    for (Map.Entry<String, Integer> e : txHeights.entrySet())
+    {
+      if (e.getValue() > block)
+      {
+        Map<String, Object> send = new LinkedHashMap<String, Object>();
+        send.put("txid", e.getKey());
+        send.put("category", "send");
+        sends.add(send);
+      }
+    }
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("transactions", sends);
+    result.put("lastblock", blockHash(height));
+    return result;
+  }
+
+  private synchronized List<Object> listUnspent(int minconf, int maxconf, List<?> addresses)
+  {
+    List<Object> result = new ArrayList<Object>();
+    // Confirmations count down from the tip; unconfirmed outputs sit above it.
+    int low  = height - maxconf + 1;
+    int high = height - minconf + 1;
+    for (List<String> outpoints : byHeight.subMap(low, true, high, true).values())
+    {
+      for (String outpoint : outpoints)
+      {
+        Output o = unspent.get(outpoint);
+        if (null != o && (null == addresses || addresses.contains(o.address)))
+        {
+          Map<String, Object> u = new LinkedHashMap<String, Object>();
+          u.put("txid", o.txid);
+          u.put("vout", o.vout);
+          u.put("address", o.address);
+          u.put("account", "");
+          u.put("scriptPubKey", "76a914" + o.txid.substring(0, 40) + "88ac");
+          u.put("amount", coins(o.amount));
+          u.put("confirmations", Math.max(0, height - o.height + 1));
+          u.put("spendable", Boolean.TRUE);
+          u.put("solvable", Boolean.TRUE);
+          result.add(u);
+        }
+      }
+    }
+    return result;
+  }
+
+  private synchronized Map<String, Object> listAddressBalances()
+  {
+    Map<String, Long> balances = new TreeMap<String, Long>();
+    for (Output o : unspent.values())
+    {
+      balances.merge(o.address, o.amount, Long::sum);
+    }
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    balances.forEach((a, b) -> result.put(a, coins(b)));
+    return result;
+  }
+
+  private void importPrivKey(String wif, String label)
+  {
+    byte[] decoded;
+    try
+    {
+      decoded = Base58.decodeChecked(wif);
+    }
+    catch (RuntimeException e)
+    {
+      throw new RpcError(-5, "Invalid private key encoding");
+    }
+    int     version    = decoded[0] & 0xff;
+    boolean compressed = decoded.length == 34;
+    ECKey   key        = ECKey.fromPrivate(Arrays.copyOfRange(decoded, 1, 33), compressed);
+    String  address    = Base58.encodeChecked(version == 235 ? 109 : 7, key.getPubKeyHash());
+    byKeyHash.put(hex(key.getPubKeyHash()), address);
+    privateKeys.put(address, wif);
+    synchronized (this)
+    {
+      accounts.computeIfAbsent(label, l -> new ArrayList<String>()).add(address);
+    }
+  }
+
+  private String dumpPrivKey(String address)
+  {
+    String wif = privateKeys.get(address);
+    if (null == wif)
+    {
+      throw new RpcError(-4, "Private key for address " + address + " is not known");
+    }
+    return wif;
+  }
+
+  private synchronized List<String> getAddressesByAccount(String label)
+  {
+    return new ArrayList<String>(accounts.getOrDefault(label, new ArrayList<String>()));
+  }
+
+  private String createRawTransaction(List<?> inputs, Map<?, ?> outputs)
+  {
+    Map<String, Object> tx = new LinkedHashMap<String, Object>();
+    tx.put("inputs", inputs);
+    tx.put("outputs", outputs);
+    return encode(tx);
+  }
+
+  @SuppressWarnings("unchecked")
+  private synchronized Map<String, Object> fundRawTransaction(String hex, Map<?, ?> options)
+  {
+    Map<String, Object> tx      = decode(hex);
+    long                in      = 0;
+    String              payer   = null;
+    for (Object i : (List<?>) tx.get("inputs"))
+    {
+      Output o = unspent.get(outpoint((Map<?, ?>) i));
+      if (null == o)
+      {
+        throw new RpcError(-4, "Insufficient funds");
+      }
+      in += o.amount;
+      payer = o.address;
+    }
+    long out = 0;
+    for (Object amount : ((Map<?, ?>) tx.get("outputs")).values())
+    {
+      out += Amounts.toUnits(((Number) amount).doubleValue());
+    }
+    if (in < out + FEE)
+    {
+      throw new RpcError(-4, "Insufficient funds");
+    }
+
+    Map<String, Object> outputs   = new LinkedHashMap<String, Object>((Map<String, Object>) tx.get("outputs"));
+    int                 changePos = -1;
+    if (in > out + FEE)
+    {
+      Object changeAddress = null == options ? null : options.get("changeAddress");
+      String address       = null == changeAddress ? payer : changeAddress.toString();
+      long   change        = in - out - FEE;
+      Object existing      = outputs.get(address);
+      if (null != existing)
+      {
+        change += Amounts.toUnits(((Number) existing).doubleValue());
+      }
+      changePos = new ArrayList<String>(outputs.keySet()).indexOf(address);
+      if (changePos < 0)
+      {
+        changePos = outputs.size();
+      }
+      outputs.put(address, coins(change));
+    }
+    tx.put("outputs", outputs);
+
+    Map<String, Object> funded = new LinkedHashMap<String, Object>();
+    funded.put("hex", encode(tx));
+    funded.put("fee", coins(FEE));
+    funded.put("changepos", changePos);
+    return funded;
+  }
+
+  private synchronized String sendRawTransaction(String hex)
+  {
+    String txid = txid(hex);
+    if (transactions.containsKey(txid))
+    {
+      throw new RpcError(-27, "transaction already in block chain");
+    }
+    if (sendLimit <= 0)
+    {
+      throw new RpcError(-1, "Send limit reached");
+    }
+    sendLimit--;
+    Map<String, Object> tx = decode(hex);
+    for (Object i : (List<?>) tx.get("inputs"))
+    {
+      if (!unspent.containsKey(outpoint((Map<?, ?>) i)))
+      {
+        throw new RpcError(-26, "bad-txns-inputs-spent");
+      }
+    }
+    if (!hex.startsWith("7b"))
+    {
+      verifySignatures(hex);
+    }
+    for (Object i : (List<?>) tx.get("inputs"))
+    {
+      Output o = unspent.remove(outpoint((Map<?, ?>) i));
+      byHeight.get(o.height).remove(o.outpoint);
+      fees += o.amount;
+    }
+    int vout = 0;
+    for (Map.Entry<?, ?> e : ((Map<?, ?>) tx.get("outputs")).entrySet())
+    {
+      String address = e.getKey().toString();
+      long   amount  = Amounts.toUnits(((Number) e.getValue()).doubleValue());
+      add(new Output(txid, vout++, address, amount, height + 1));
+      received.merge(address, amount, Long::sum);
+      fees -= amount;
+    }
+    transactions.put(txid, hex);
+    txHeights.put(txid, height + 1);
+    return txid;
+  }
+
+  /** Check the signatures of a real transaction's inputs, if it has any. */
+  private void verifySignatures(String hex)
+  {
+    Transaction tx = new Transaction(MainNetParams.get(), bytes(hex));
+    for (int i = 0; i < tx.getInputs().size(); i++)
+    {
+      TransactionInput in = tx.getInput(i);
+      if (in.getScriptBytes().length == 0)
+      {
+        continue;
+      }
+      Output spent   = unspent.get(in.getOutpoint().getHash() + ":" + in.getOutpoint().getIndex());
+      byte[] keyHash = Arrays.copyOfRange(Base58.decodeChecked(spent.address), 1, 21);
+      try
+      {
+        in.getScriptSig().correctlySpends(tx, i, null, null, ScriptBuilder.createP2PKHOutputScript(keyHash),
+            Script.ALL_VERIFY_FLAGS);
+      }
+      catch (ScriptException e)
+      {
+        throw new RpcError(-26, "mandatory-script-verify-flag-failed (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  private synchronized Map<String, Object> getTransaction(String txid)
+  {
+    String hex = transactions.get(txid);
+    if (null == hex)
+    {
+      throw new RpcError(-5, "Invalid or non-wallet transaction id");
+    }
+    Map<String, Object> tx = new LinkedHashMap<String, Object>();
+    tx.put("txid", txid);
+    tx.put("confirmations", 0);
+    tx.put("hex", hex);
+    return tx;
+  }
+
+  private Map<String, Object> decodeRawTransaction(String hex)
+  {
+    Map<String, Object> decoded = new LinkedHashMap<String, Object>();
+    decoded.put("txid", txid(hex));
+    decoded.put("vin", decode(hex).get("inputs"));
+    return decoded;
+  }
+
+  private void add(Output o)
+  {
+    try
+    {
+      byte[] decoded = Base58.decodeChecked(o.address);
+      byKeyHash.put(hex(Arrays.copyOfRange(decoded, 1, decoded.length)), o.address);
+    }
+    catch (RuntimeException e)
+    {
+      // Not a real address, so no real transaction can pay it.
+    }
+    unspent.put(o.outpoint, o);
+    byHeight.computeIfAbsent(o.height, h -> new ArrayList<String>()).add(o.outpoint);
+  }
+
+  private static String outpoint(Map<?, ?> input)
+  {
+    return input.get("txid") + ":" + ((Number) input.get("vout")).intValue();
+  }
+
+  private static BigDecimal coins(long units)
+  {
+    return BigDecimal.valueOf(units, Amounts.DECIMALS);
+  }
+
+  private static String blockHash(int block)
+  {
+    return hex(Sha256Hash.hash(("block-" + block).getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static String encode(Map<String, Object> tx)
+  {
+    return hex(Json.stringify(tx).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String hex(byte[] bytes)
+  {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+    {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> decode(String hex)
+  {
+    if (!hex.startsWith("7b"))
+    {
+      return decodeSerialized(ByteBuffer.wrap(bytes(hex)).order(ByteOrder.LITTLE_ENDIAN));
+    }
+    return (Map<String, Object>) Json.parse(new String(bytes(hex), StandardCharsets.UTF_8));
+  }
+
+  /** Read a real serialized transaction into the same form as the JSON ones. */
+  private Map<String, Object> decodeSerialized(ByteBuffer tx)
+  {
+    tx.getInt(); // version
+    List<Object> inputs = new ArrayList<Object>();
+    for (long i = varInt(tx); i > 0; i--)
+    {
+      byte[] txid = new byte[32];
+      tx.get(txid);
+      for (int j = 0; j < txid.length / 2; j++)
+      {
+        byte b = txid[j];
+        txid[j] = txid[txid.length - 1 - j];
+        txid[txid.length - 1 - j] = b;
+      }
+      Map<String, Object> input = new LinkedHashMap<String, Object>();
+      input.put("txid", hex(txid));
+      input.put("vout", tx.getInt());
+      int scriptLength = (int) varInt(tx);
+      tx.position(tx.position() + scriptLength + 4);
+      inputs.add(input);
+    }
+    Map<String, Object> outputs = new LinkedHashMap<String, Object>();
+    for (long i = varInt(tx); i > 0; i--)
+    {
+      long   amount = tx.getLong();
+      byte[] script = new byte[(int) varInt(tx)];
+      tx.get(script);
+      String address = script.length == 25 ? byKeyHash.get(hex(Arrays.copyOfRange(script, 3, 23))) : null;
+      if (null == address)
+      {
+        throw new RpcError(-22, "TX decode failed");
+      }
+      outputs.put(address, coins(amount));
+    }
+    Map<String, Object> decoded = new LinkedHashMap<String, Object>();
+    decoded.put("inputs", inputs);
+    decoded.put("outputs", outputs);
+    return decoded;
+  }
+
+  private static long varInt(ByteBuffer tx)
+  {
+    int first = tx.get() & 0xff;
+    switch (first)
+    {
+      case 0xfd:
+        return tx.getShort() & 0xffff;
+      case 0xfe:
+        return tx.getInt() & 0xffffffffL;
+      case 0xff:
+        return tx.getLong();
+      default:
+        return first;
+    }
+  }
+
+  private static byte[] bytes(String hex)
+  {
+    byte[] raw = new byte[hex.length() / 2];
+    for (int i = 0; i < raw.length; i++)
+    {
+      raw[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return raw;
+  }
+
+  private static String txid(String hex)
+  {
+    // Transaction ids are shown byte-reversed.
+    byte[] hash = Sha256Hash.hashTwice(bytes(hex));
+    for (int i = 0; i < hash.length / 2; i++)
+    {
+      byte b = hash[i];
+      hash[i] = hash[hash.length - 1 - i];
+      hash[hash.length - 1 - i] = b;
+    }
+    return hex(hash);
+  }
+
+  /** An unspent output. */
+  private static class Output
+  {
+    private final String txid;
+    private final int    vout;
+    private final String outpoint;
+    private final String address;
+    private final long   amount;
+    private final int    height;
+
+    Output(String txid, int vout, String address, long amount, int height)
+    {
+      this.txid = txid;
+      this.vout = vout;
+      this.outpoint = txid + ":" + vout;
+      this.address = address;
+      this.amount = amount;
+      this.height = height;
+    }
+  }
+
+  /** A JSON-RPC error to hand back to the caller. */
+  private static class RpcError extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+    private final int         code;
+
+    RpcError(int code, String message)
+    {
+      super(message);
+      this.code = code;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package live.thought.rationalize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the unspent cache keeps its amount and age orders and its total in
+ * step as outputs are added, removed and taken.
+ */
+public class UnspentIndexTest
+{
+  @Test
+  public void addsEachOutpointOnce()
+  {
+    UnspentIndex cache = new UnspentIndex(false);
+    assertTrue(cache.add(utxo(0, 5000, 10)));
+    assertFalse("same outpoint", cache.add(new Utxo(String.format("%064x", 0), 0, 7000, 20, null)));
+    assertEquals(1, cache.size());
+    assertEquals(5000, cache.getTotal());
+  }
+
+  @Test
+  public void removesByOutpoint()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10), utxo(1, 3000, 20));
+    // An equal outpoint removes the indexed output, whatever the amount given.
+    assertTrue(cache.remove(new Utxo(String.format("%064x", 0), 0, 1, 1, null)));
+    assertFalse("already removed", cache.remove(utxo(0, 5000, 10)));
+    assertFalse(cache.contains(utxo(0, 5000, 10)));
+    assertTrue(cache.contains(utxo(1, 3000, 20)));
+    assertEquals(3000, cache.getTotal());
+    assertEquals(Arrays.asList(3000L), amounts(cache.iterator()));
+  }
+
+  @Test
+  public void iteratesOldestFirst()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10), utxo(1, 3000, 30), utxo(2, 2000, 20));
+    assertEquals(Arrays.asList(3000L, 2000L, 5000L), amounts(cache.iterator()));
+  }
+
+  @Test
+  public void iteratesNewestFirst()
+  {
+    UnspentIndex cache = index(true, utxo(0, 5000, 10), utxo(1, 3000, 30), utxo(2, 2000, 20));
+    assertEquals(Arrays.asList(5000L, 2000L, 3000L), amounts(cache.iterator()));
+  }
+
+  @Test
+  public void keepsOutputsOfEqualAgeAndAmount()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10), utxo(1, 5000, 10), utxo(2, 5000, 10));
+    assertEquals(3, cache.size());
+    assertEquals(15000, cache.getTotal());
+    assertEquals(Arrays.asList(5000L, 5000L, 5000L), amounts(cache.iterator()));
+  }
+
+  @Test
+  public void takesLargest()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10), utxo(1, 7000, 30), utxo(2, 2000, 20));
+    assertEquals(7000, cache.largest().getAmount());
+    assertEquals(7000, cache.takeLargest().getAmount());
+    assertEquals(5000, cache.takeLargest().getAmount());
+    assertEquals(2000, cache.takeLargest().getAmount());
+    assertNull(cache.largest());
+    assertNull(cache.takeLargest());
+    assertTrue(cache.isEmpty());
+    assertEquals(0, cache.getTotal());
+  }
+
+  @Test
+  public void descendsFromBound()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10), utxo(1, 3000, 30), utxo(2, 3000, 20), utxo(3, 1000, 5));
+    assertEquals(Arrays.asList(3000L, 3000L, 1000L), amounts(cache.descendingFrom(3000, true)));
+    assertEquals(Arrays.asList(1000L), amounts(cache.descendingFrom(3000, false)));
+    assertEquals(Arrays.asList(5000L, 3000L, 3000L, 1000L), amounts(cache.descendingFrom(Long.MAX_VALUE, true)));
+    assertFalse(cache.descendingFrom(1000, false).hasNext());
+  }
+
+  @Test
+  public void findsSmallestAbove()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10), utxo(1, 3000, 30), utxo(2, 1000, 5));
+    assertEquals(3000, cache.smallestAbove(1000).getAmount());
+    assertEquals(3000, cache.smallestAbove(2999).getAmount());
+    assertEquals(5000, cache.smallestAbove(3000).getAmount());
+    assertNull(cache.smallestAbove(5000));
+  }
+
+  @Test
+  public void takesInAgeOrderUntilReached()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10), utxo(1, 3000, 30), utxo(2, 2000, 20));
+    assertEquals(Arrays.asList(3000L, 2000L), amounts(cache.take(5000).iterator()));
+    assertEquals(5000, cache.getTotal());
+    assertEquals(Arrays.asList(5000L), amounts(cache.take(1).iterator()));
+    assertTrue(cache.isEmpty());
+  }
+
+  @Test
+  public void takesNothingShortOfAmount()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10), utxo(1, 3000, 30));
+    assertNull(cache.take(8001));
+    assertEquals(2, cache.size());
+    assertEquals(8000, cache.getTotal());
+    assertEquals(8000, total(cache.take(8000)));
+    assertTrue(cache.isEmpty());
+  }
+
+  @Test
+  public void takesNothingForZero()
+  {
+    UnspentIndex cache = index(false, utxo(0, 5000, 10));
+    assertTrue(cache.take(0).isEmpty());
+    assertEquals(1, cache.size());
+  }
+
+  private static UnspentIndex index(boolean newestFirst, Utxo... outputs)
+  {
+    UnspentIndex cache = new UnspentIndex(newestFirst);
+    for (Utxo u : outputs)
+    {
+      cache.add(u);
+    }
+    return cache;
+  }
+
+  private static Utxo utxo(int index, long amount, int confirmations)
+  {
+    return new Utxo(String.format("%064x", index), 0, amount, confirmations, null);
+  }
+
+  private static List<Long> amounts(Iterator<Utxo> outputs)
+  {
+    List<Long> amounts = new ArrayList<Long>();
+    outputs.forEachRemaining(u -> amounts.add(u.getAmount()));
+    return amounts;
+  }
+
+  private static long total(List<Utxo> outputs)
+  {
+    long total = 0;
+    for (Utxo u : outputs)
+    {
+      total += u.getAmount();
+    }
+    return total;
+  }
+}